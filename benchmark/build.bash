@@ -0,0 +1,12 @@
+# build the JMH benchmarks of the compiler into benchmark/bin.
+# JMH_LIB should point to a directory containing jmh-core, jmh-generator-annprocess,
+# jopt-simple and commons-math3 jars, it defaults to benchmark/lib;
+# a relative JMH_LIB is taken from the repository root, as in run.bash.
+
+set -e
+cd "$(dirname "$0")/.."
+JMH_LIB=${JMH_LIB:-benchmark/lib}
+JMH_CP=$(find "$JMH_LIB" -name "*.jar" | tr '\n' ':')
+bash build.bash
+mkdir -p benchmark/bin
+find benchmark/src -name *.java | javac -d benchmark/bin -classpath "lib/antlr-4.7.1-complete.jar:bin:$JMH_CP" @/dev/stdin
@@ -0,0 +1,9 @@
+# run the JMH benchmarks built by build.bash, arguments are passed to JMH,
+# e.g. "bash benchmark/run.bash liveliness -p program=synthetic_funcs -rf json -rff result.json"
+# JMH runs from the repository root, where the compiler reads lib/builtin_functions.asm.
+
+set -e
+cd "$(dirname "$0")/.."
+JMH_LIB=${JMH_LIB:-benchmark/lib}
+JMH_CP=$(find "$JMH_LIB" -name "*.jar" | tr '\n' ':')
+java -Demcompiler.testcase=testcase -classpath "lib/antlr-4.7.1-complete.jar:bin:benchmark/bin:$JMH_CP" org.openjdk.jmh.Main "$@"
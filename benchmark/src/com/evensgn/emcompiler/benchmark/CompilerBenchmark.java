@@ -0,0 +1,146 @@
+package com.evensgn.emcompiler.benchmark;
+
+import com.evensgn.emcompiler.compiler.Compiler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiler throughput benchmarks. Each benchmark measures one stage of Compiler,
+ * the stages before it are run in the per-invocation setup.
+ * Programs are read from testcase/, names starting with "synthetic_" are generated
+ * by {@link SyntheticPrograms}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompilerBenchmark {
+    @Param({"test0", "test1", "test2", "test3", "test_ir_1", "test_ir_2", "test_ir_3", "test_ok",
+            "synthetic_funcs", "synthetic_nesting", "synthetic_block"})
+    public String program;
+
+    private byte[] source;
+
+    private static final PrintStream NULL_OUT = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    @Setup(Level.Trial)
+    public void loadProgram() throws Exception {
+        if (program.startsWith("synthetic_")) {
+            source = SyntheticPrograms.generate(program).getBytes(StandardCharsets.UTF_8);
+        } else {
+            String testcaseDir = System.getProperty("emcompiler.testcase", "testcase");
+            source = Files.readAllBytes(Paths.get(testcaseDir, program + ".mx"));
+        }
+    }
+
+    private Compiler newCompiler() {
+        return new Compiler(new ByteArrayInputStream(source), null, null, NULL_OUT);
+    }
+
+    @State(Scope.Thread)
+    public static class ParsedState {
+        Compiler compiler;
+
+        @Setup(Level.Invocation)
+        public void setup(CompilerBenchmark benchmark) throws Exception {
+            compiler = benchmark.newCompiler();
+            compiler.buildAST();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CheckedState {
+        Compiler compiler;
+
+        @Setup(Level.Invocation)
+        public void setup(CompilerBenchmark benchmark) throws Exception {
+            compiler = benchmark.newCompiler();
+            compiler.buildAST();
+            compiler.checkSemantics();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PreparedIRState {
+        Compiler compiler;
+
+        @Setup(Level.Invocation)
+        public void setup(CompilerBenchmark benchmark) throws Exception {
+            compiler = benchmark.newCompiler();
+            compiler.buildAST();
+            compiler.checkSemantics();
+            compiler.buildIR();
+            compiler.prepareIR();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AnalyzedState {
+        Compiler compiler;
+
+        @Setup(Level.Invocation)
+        public void setup(CompilerBenchmark benchmark) throws Exception {
+            compiler = benchmark.newCompiler();
+            compiler.buildAST();
+            compiler.checkSemantics();
+            compiler.buildIR();
+            compiler.prepareIR();
+            compiler.analyzeLiveliness();
+        }
+    }
+
+    @Benchmark
+    public Compiler parse() throws Exception {
+        Compiler compiler = newCompiler();
+        compiler.buildAST();
+        return compiler;
+    }
+
+    @Benchmark
+    public Compiler semantic(ParsedState state) throws Exception {
+        state.compiler.checkSemantics();
+        return state.compiler;
+    }
+
+    @Benchmark
+    public Compiler irBuild(CheckedState state) throws Exception {
+        state.compiler.buildIR();
+        return state.compiler;
+    }
+
+    @Benchmark
+    public Compiler liveliness(PreparedIRState state) throws Exception {
+        state.compiler.analyzeLiveliness();
+        return state.compiler;
+    }
+
+    @Benchmark
+    public Compiler registerAllocation(AnalyzedState state) throws Exception {
+        state.compiler.allocateRegisters();
+        return state.compiler;
+    }
+
+    @Benchmark
+    public Compiler compile() throws Exception {
+        Compiler compiler = newCompiler();
+        compiler.compile();
+        return compiler;
+    }
+}
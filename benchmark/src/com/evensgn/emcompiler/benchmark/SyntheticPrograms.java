@@ -0,0 +1,97 @@
+package com.evensgn.emcompiler.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generators of large Mx* programs that stress specific parts of the compiler.
+ * All generators are deterministic for a given size.
+ */
+public class SyntheticPrograms {
+    public static String generate(String name) {
+        switch (name) {
+            case "synthetic_funcs":
+                return manyFunctions(2000);
+            case "synthetic_nesting":
+                return deepNesting(60, 40);
+            case "synthetic_block":
+                return hugeBlock(20000);
+            default:
+                throw new IllegalArgumentException("unknown synthetic program: " + name);
+        }
+    }
+
+    // many small functions with loops, branches and global array accesses, calling each other in short chains
+    public static String manyFunctions(int numFuncs) {
+        Random random = new Random(numFuncs);
+        StringBuilder sb = new StringBuilder();
+        sb.append("int[] g = new int[1000];\n");
+        for (int i = 0; i < numFuncs; ++i) {
+            sb.append("int f").append(i).append("(int a, int b) {\n");
+            sb.append("    int s = a; int t = b; int i;\n");
+            for (int k = 0; k < 2; ++k) {
+                sb.append(String.format("    for (i = 0; i < %d; ++i) { s = s + i * %d + t %% %d; if (s > 100000) s = s - 99991; t = (t ^ (s + %d)) %% 100003; g[(i + %d) %% 1000] = g[(i + %d) %% 1000] + s; }\n",
+                        random.nextInt(7) + 3, random.nextInt(9) + 1, random.nextInt(8) + 2, k, k, k));
+                sb.append(String.format("    int v%d = s + t * %d; if (v%d %% 3 == 0) { t = t + v%d %% 7; } else { s = s + v%d / 3; }\n",
+                        k, k + 1, k, k, k));
+            }
+            if (i % 8 != 0) sb.append(String.format("    s = s + f%d(t %% 100, s %% 100) %% 1000;\n", i - 1));
+            sb.append("    return (s + t) % 100003;\n}\n");
+        }
+        sb.append("int main() {\n    int r = 0;\n");
+        for (int i = 7; i < numFuncs; i += 8) sb.append(String.format("    r = (r + f%d(r %% 100, %d)) %% 100003;\n", i, i));
+        sb.append("    println(toString(r));\n    return 0;\n}\n");
+        return sb.toString();
+    }
+
+    // functions whose bodies are deeply nested loops and conditions
+    public static String deepNesting(int numFuncs, int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < numFuncs; ++i) {
+            sb.append("int n").append(i).append("(int a) {\n    int s = a;\n");
+            for (int d = 0; d < depth; ++d) {
+                String var = "i" + d;
+                if (d % 2 == 0) {
+                    sb.append(String.format("    int %s; for (%s = 0; %s < 2; ++%s) {\n", var, var, var, var));
+                } else {
+                    sb.append(String.format("    int %s = s %% %d; if (%s < %d) {\n", var, d + 2, var, d / 2 + 1));
+                }
+                sb.append(String.format("    s = (s + %s * %d) %% 100003;\n", var, d + 1));
+            }
+            for (int d = 0; d < depth; ++d) sb.append("    }\n");
+            sb.append("    return s;\n}\n");
+        }
+        sb.append("int main() {\n    int r = 0;\n");
+        for (int i = 0; i < numFuncs; ++i) sb.append(String.format("    r = (r + n%d(%d)) %% 100003;\n", i, i));
+        sb.append("    println(toString(r));\n    return 0;\n}\n");
+        return sb.toString();
+    }
+
+    // a single function with one straight-line basic block of many overlapping live ranges
+    public static String hugeBlock(int numStmts) {
+        Random random = new Random(numStmts);
+        int numVars = 64;
+        StringBuilder sb = new StringBuilder();
+        sb.append("int main() {\n");
+        for (int v = 0; v < numVars; ++v) sb.append(String.format("    int x%d = %d;\n", v, v + 1));
+        for (int i = 0; i < numStmts; ++i) {
+            int dest = random.nextInt(numVars), lhs = random.nextInt(numVars), rhs = random.nextInt(numVars);
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.append(String.format("    x%d = (x%d + x%d) %% 100003;\n", dest, lhs, rhs));
+                    break;
+                case 1:
+                    sb.append(String.format("    x%d = x%d ^ x%d;\n", dest, lhs, rhs));
+                    break;
+                case 2:
+                    sb.append(String.format("    x%d = (x%d * %d) %% 100003;\n", dest, lhs, random.nextInt(97) + 2));
+                    break;
+                default:
+                    sb.append(String.format("    x%d = (x%d + %d) %% 100003;\n", dest, lhs, random.nextInt(100003)));
+            }
+        }
+        sb.append("    int r = 0;\n");
+        for (int v = 0; v < numVars; ++v) sb.append(String.format("    r = r ^ x%d;\n", v));
+        sb.append("    println(toString(r));\n    return 0;\n}\n");
+        return sb.toString();
+    }
+}
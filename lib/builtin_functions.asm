@@ -17,6 +17,7 @@ global _Z8toStringi
 global _Z27__member___string_substringPcii
 global _Z26__member___string_parseIntPc
 global _Z21__member___string_ordPci
+global __builtin_profile_start
 
 extern getchar
 extern strlen
@@ -27,6 +28,10 @@ extern puts
 extern printf
 extern strcmp
 extern malloc
+extern atexit
+extern fopen
+extern fprintf
+extern fclose
 
 
 SECTION .text   
@@ -725,16 +730,76 @@ _Z21__member___string_ordPci:
         ret
 
 
+; rdi: profile table of an instrumented build, written by __builtin_profile_dump at exit
+__builtin_profile_start:
+        push    rbp
+        mov     rbp, rsp
+        and     rsp, -16
+        mov     qword [__builtin_profile_table], rdi
+        mov     edi, __builtin_profile_dump
+        call    atexit
+        leave
+        ret
+
+
+; profile table: number of counters, file name, counters, names of the counters
+; one line "<name> <count>" is written for each counter
+__builtin_profile_dump:
+        push    rbp
+        mov     rbp, rsp
+        push    rbx
+        push    r12
+        push    r13
+        sub     rsp, 8
+        mov     rbx, qword [__builtin_profile_table]
+        mov     rdi, qword [rbx+8H]
+        mov     esi, L_044
+        call    fopen
+        test    rax, rax
+        jz      L_047
+        mov     r12, rax
+        mov     r13, 0
+L_045:  cmp     r13, qword [rbx]
+        jge     L_046
+        mov     rax, qword [rbx+10H]
+        mov     rcx, qword [rax+r13*8]
+        mov     rdx, qword [rbx+r13*8+18H]
+        mov     esi, L_048
+        mov     rdi, r12
+        mov     eax, 0
+        call    fprintf
+        inc     r13
+        jmp     L_045
+
+L_046:  mov     rdi, r12
+        call    fclose
+L_047:  add     rsp, 8
+        pop     r13
+        pop     r12
+        pop     rbx
+        pop     rbp
+        ret
+
+
 
 SECTION .data   
 
 
 SECTION .bss    
 
+__builtin_profile_table: resq 1
+
+
 
 SECTION .rodata 
 
 L_043:
         db 25H, 73H, 00H
 
+L_044:
+        db 77H, 00H
+
+L_048:
+        db 25H, 73H, 20H, 25H, 6CH, 64H, 0AH, 00H
+
 
@@ -1,4 +1,5 @@
 #include <cstdio>
+#include <cstdlib>
 #include <cstring>
 #include <malloc.h>
 
@@ -156,4 +157,22 @@ int __member___string_parseInt(char *str) {
 int __member___string_ord(char *str, int idx) {
     idx += 8;
     return str[idx];
+}
+
+// profile table of an instrumented build: number of counters, file name, counters, names of the counters
+static long *__builtin_profile_table;
+
+// one line "<name> <count>" is written for each counter
+static void __builtin_profile_dump() {
+    FILE *file = fopen((char*) __builtin_profile_table[1], "w");
+    if (file == NULL) return;
+    long *counters = (long*) __builtin_profile_table[2];
+    for (long i = 0; i < __builtin_profile_table[0]; ++i)
+        fprintf(file, "%s %ld\n", (char*) __builtin_profile_table[3 + i], counters[i]);
+    fclose(file);
+}
+
+void __builtin_profile_start(long *table) {
+    __builtin_profile_table = table;
+    atexit(__builtin_profile_dump);
 }
\ No newline at end of file
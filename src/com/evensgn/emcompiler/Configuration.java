@@ -6,12 +6,32 @@ package com.evensgn.emcompiler;
  */
 public class Configuration {
     private static final int REG_SIZE = 8;
+    private static final boolean ENABLE_TAIL_CALL_ELIMINATION = true;
     private static final boolean ENABLE_FUNCTION_INLINE = true;
+    private static final boolean ENABLE_CONSTANT_PROPAGATION = true;
+    private static final boolean ENABLE_COMMON_SUBEXPR_ELIMINATION = true;
+    private static final boolean ENABLE_LOOP_INVARIANT_CODE_MOTION = true;
+    private static final boolean ENABLE_STRENGTH_REDUCTION = true;
+    private static final boolean ENABLE_INSTRUCTION_SELECTION = true;
+    private static final boolean ENABLE_BLOCK_LAYOUT = true;
+    private static boolean parallelBackend = false;
+    private static boolean linearScanAllocator = false;
+    private static String instrumentProfileFile = null;
 
     public static String configInfo() {
         return "========= EM-Compiler Configuration =========\n" +
                 String.format("Size of register: %d\n", REG_SIZE) +
+                String.format("[Optimization] Enable tail call elimination: %s\n", ENABLE_TAIL_CALL_ELIMINATION ? "YES" : "NO") +
                 String.format("[Optimization] Enable function inline: %s\n", ENABLE_FUNCTION_INLINE ? "YES" : "NO") +
+                String.format("[Optimization] Enable sparse conditional constant propagation: %s\n", ENABLE_CONSTANT_PROPAGATION ? "YES" : "NO") +
+                String.format("[Optimization] Enable global value numbering: %s\n", ENABLE_COMMON_SUBEXPR_ELIMINATION ? "YES" : "NO") +
+                String.format("[Optimization] Enable loop-invariant code motion: %s\n", ENABLE_LOOP_INVARIANT_CODE_MOTION ? "YES" : "NO") +
+                String.format("[Optimization] Enable induction variable strength reduction: %s\n", ENABLE_STRENGTH_REDUCTION ? "YES" : "NO") +
+                String.format("[Optimization] Enable addressing mode and lea selection: %s\n", ENABLE_INSTRUCTION_SELECTION ? "YES" : "NO") +
+                String.format("[Optimization] Enable block layout: %s\n", ENABLE_BLOCK_LAYOUT ? "YES" : "NO") +
+                String.format("[Backend] Parallel per-function passes: %s\n", parallelBackend ? "YES" : "NO") +
+                String.format("[Backend] Register allocator: %s\n", linearScanAllocator ? "linear scan" : "graph coloring") +
+                String.format("[Backend] Instrument execution counts: %s\n", instrumentProfileFile != null ? "YES, into " + instrumentProfileFile : "NO") +
                 "=============================================\n";
     }
 
@@ -19,7 +39,60 @@ public class Configuration {
         return REG_SIZE;
     }
 
+    public static boolean isEnableTailCallElimination() {
+        return ENABLE_TAIL_CALL_ELIMINATION;
+    }
+
     public static boolean isEnableFunctionInline() {
         return ENABLE_FUNCTION_INLINE;
     }
-}
\ No newline at end of file
+
+    public static boolean isEnableConstantPropagation() {
+        return ENABLE_CONSTANT_PROPAGATION;
+    }
+
+    public static boolean isEnableCommonSubexprElimination() {
+        return ENABLE_COMMON_SUBEXPR_ELIMINATION;
+    }
+
+    public static boolean isEnableLoopInvariantCodeMotion() {
+        return ENABLE_LOOP_INVARIANT_CODE_MOTION;
+    }
+
+    public static boolean isEnableStrengthReduction() {
+        return ENABLE_STRENGTH_REDUCTION;
+    }
+
+    public static boolean isEnableInstructionSelection() {
+        return ENABLE_INSTRUCTION_SELECTION;
+    }
+
+    public static boolean isEnableBlockLayout() {
+        return ENABLE_BLOCK_LAYOUT;
+    }
+
+    public static boolean isParallelBackend() {
+        return parallelBackend;
+    }
+
+    public static void setParallelBackend(boolean parallelBackend) {
+        Configuration.parallelBackend = parallelBackend;
+    }
+
+    public static boolean isLinearScanAllocator() {
+        return linearScanAllocator;
+    }
+
+    public static void setLinearScanAllocator(boolean linearScanAllocator) {
+        Configuration.linearScanAllocator = linearScanAllocator;
+    }
+
+    // null if the build is not instrumented
+    public static String getInstrumentProfileFile() {
+        return instrumentProfileFile;
+    }
+
+    public static void setInstrumentProfileFile(String instrumentProfileFile) {
+        Configuration.instrumentProfileFile = instrumentProfileFile;
+    }
+}
@@ -1,5 +1,6 @@
 package com.evensgn.emcompiler;
 
+import com.evensgn.emcompiler.backend.ExecutionProfile;
 import com.evensgn.emcompiler.compiler.Compiler;
 
 import java.io.*;
@@ -20,6 +21,11 @@ public class Main {
         System.out.println("  -o <file>                     Place the output nasm code into <file>");
         System.out.println("  --ast <file>                  Output abstract syntax tree into <file>");
         System.out.println("  --ir <file>                   Output intermediate representation into <file>");
+        System.out.println("  --parallel                    Run per-function backend passes in parallel");
+        System.out.println("  --linear-scan                 Allocate registers by linear scan for faster compilation");
+        System.out.println("  --pass-report <file>          Output per-pass time, allocation and IR size into <file>");
+        System.out.println("  --profile <file>              Optimize by the execution counts in <file>");
+        System.out.println("  --instrument <file>           Count block entries and calls, written into <file> when the program exits");
     }
 
     private static void printVersion() {
@@ -37,7 +43,7 @@ public class Main {
     }
 
     public static void main(String[] args) throws Exception {
-        String inFile = null, astOutFile = null, irOutFile = null, nasmOutFile = null;
+        String inFile = null, astOutFile = null, irOutFile = null, nasmOutFile = null, passReportOutFile = null, profileFile = null;
         boolean isPrintHelp = false, isPrintVersion = false, isPrintConfig = false;
         for (int i = 0; i < args.length; ++i) {
             String arg = args[i];
@@ -72,6 +78,29 @@ public class Main {
                     else errorArgs();
                     break;
 
+                case "--pass-report":
+                    if (i + 1 < args.length) passReportOutFile = args[++i];
+                    else errorArgs();
+                    break;
+
+                case "--profile":
+                    if (i + 1 < args.length) profileFile = args[++i];
+                    else errorArgs();
+                    break;
+
+                case "--instrument":
+                    if (i + 1 < args.length) Configuration.setInstrumentProfileFile(args[++i]);
+                    else errorArgs();
+                    break;
+
+                case "--parallel":
+                    Configuration.setParallelBackend(true);
+                    break;
+
+                case "--linear-scan":
+                    Configuration.setLinearScanAllocator(true);
+                    break;
+
                 default:
                     if (inFile == null) inFile = arg;
                     else errorArgs();
@@ -84,7 +113,7 @@ public class Main {
         if (isPrintConfig) printConfig();
 
         InputStream inS;
-        PrintStream astOutS, irOutS, nasmOutS;
+        PrintStream astOutS, irOutS, nasmOutS, passReportOutS;
         if (inFile == null) inS = System.in;
         else inS = new FileInputStream(inFile);
         if (astOutFile == null) astOutS = null;
@@ -93,9 +122,16 @@ public class Main {
         else irOutS = new PrintStream(new FileOutputStream(irOutFile));
         if (nasmOutFile == null) nasmOutS = System.out;
         else nasmOutS = new PrintStream(new FileOutputStream(nasmOutFile));
+        if (passReportOutFile == null) passReportOutS = null;
+        else passReportOutS = new PrintStream(new FileOutputStream(passReportOutFile));
 
-        Compiler compiler = new Compiler(inS, astOutS, irOutS, nasmOutS);
+        Compiler compiler = new Compiler(inS, astOutS, irOutS, nasmOutS, passReportOutS);
         try {
+            if (profileFile != null) {
+                try (InputStream profileInS = new FileInputStream(profileFile)) {
+                    compiler.setProfile(new ExecutionProfile(profileInS));
+                }
+            }
             compiler.compile();
         }
         catch (Error e) {
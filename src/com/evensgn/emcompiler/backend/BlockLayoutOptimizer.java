@@ -0,0 +1,184 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.util.*;
+
+// block placement in the way of Pettis and Hansen: blocks are joined into chains along the heaviest edges first,
+// so that the hot successor of a block follows it and is reached by falling through; edge weights come from the
+// profile when the function has one, otherwise from static guesses where back edges and edges into deeper loops
+// are likely; NASMPrinter prints the blocks in this order and picks the branch condition that suits it
+public class BlockLayoutOptimizer {
+    private final int STATIC_LOOP_FREQ = 8;
+    private final int MAX_STATIC_LOOP_DEPTH = 5;
+    private final double LIKELY_PROB = 0.875;
+    // weights within about 3% of each other are taken as equal
+    private final int WEIGHT_BUCKETS_PER_E = 32;
+
+    private IRRoot ir;
+    private ExecutionProfile profile;
+
+    public BlockLayoutOptimizer(IRRoot ir, ExecutionProfile profile) {
+        this.ir = ir;
+        this.profile = profile;
+    }
+
+    public void run() {
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        if (irFunction.isBuiltIn()) return;
+        new FuncLayout(irFunction).layout();
+    }
+
+    private class Edge {
+        BasicBlock from, to;
+        double weight;
+
+        Edge(BasicBlock from, BasicBlock to, double weight) {
+            this.from = from;
+            this.to = to;
+            this.weight = weight;
+        }
+
+        long weightBucket() {
+            return weight > 0 ? (long) Math.floor(Math.log(weight) * WEIGHT_BUCKETS_PER_E) : Long.MIN_VALUE;
+        }
+
+        // a branch may still fall through to its other target, so among equal edges jumps are joined first,
+        // which also puts the test of a loop at its bottom
+        boolean isJump() {
+            return from.getLastInst() instanceof IRJump;
+        }
+    }
+
+    private class FuncLayout {
+        private IRFunction irFunction;
+        private List<BasicBlock> bbList = new ArrayList<>();
+        private Map<BasicBlock, Integer> bbIdxMap = new HashMap<>();
+        private Map<BasicBlock, List<BasicBlock>> predsMap = new HashMap<>();
+        private Map<BasicBlock, Double> freqMap = new HashMap<>();
+        private Map<BasicBlock, List<BasicBlock>> chainMap = new HashMap<>();
+
+        FuncLayout(IRFunction irFunction) {
+            this.irFunction = irFunction;
+        }
+
+        private void layout() {
+            // blocks left unreachable by removeBlankBB are not placed
+            Set<BasicBlock> reachable = new HashSet<>();
+            Deque<BasicBlock> worklist = new ArrayDeque<>();
+            reachable.add(irFunction.getStartBB());
+            worklist.add(irFunction.getStartBB());
+            while (!worklist.isEmpty()) {
+                for (BasicBlock succ : RegLivelinessAnalysis.successors(worklist.poll())) {
+                    if (reachable.add(succ)) worklist.add(succ);
+                }
+            }
+            for (BasicBlock bb : irFunction.getReversePostOrder()) {
+                if (!reachable.contains(bb)) continue;
+                bbIdxMap.put(bb, bbList.size());
+                bbList.add(bb);
+                predsMap.put(bb, new ArrayList<>());
+            }
+            for (BasicBlock bb : bbList) {
+                for (BasicBlock succ : RegLivelinessAnalysis.successors(bb)) predsMap.get(succ).add(bb);
+            }
+
+            List<Edge> edges = profile != null && profile.getCount(irFunction.getStartBB()) >= 0 ? profileEdges() : staticEdges();
+            // a stable sort keeps the reverse post order among edges of the same weight
+            edges.sort((a, b) -> {
+                if (a.weightBucket() != b.weightBucket()) return Long.compare(b.weightBucket(), a.weightBucket());
+                return Boolean.compare(b.isJump(), a.isJump());
+            });
+            for (BasicBlock bb : bbList) chainMap.put(bb, new ArrayList<>(Collections.singletonList(bb)));
+            for (Edge edge : edges) {
+                List<BasicBlock> fromChain = chainMap.get(edge.from), toChain = chainMap.get(edge.to);
+                if (fromChain == toChain || edge.to == irFunction.getStartBB()) continue;
+                if (fromChain.get(fromChain.size() - 1) != edge.from || toChain.get(0) != edge.to) continue;
+                fromChain.addAll(toChain);
+                for (BasicBlock bb : toChain) chainMap.put(bb, fromChain);
+            }
+            irFunction.setLayout(placeChains());
+        }
+
+        // the chain of the start block comes first, the others in the order of their heads, never run ones last
+        private List<BasicBlock> placeChains() {
+            List<List<BasicBlock>> chains = new ArrayList<>(), coldChains = new ArrayList<>();
+            Set<List<BasicBlock>> placed = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (BasicBlock bb : bbList) {
+                List<BasicBlock> chain = chainMap.get(bb);
+                if (!placed.add(chain)) continue;
+                boolean cold = true;
+                for (BasicBlock chainBB : chain) {
+                    if (freqMap.get(chainBB) > 0) cold = false;
+                }
+                if (cold && chain.get(0) != irFunction.getStartBB()) coldChains.add(chain);
+                else chains.add(chain);
+            }
+            List<BasicBlock> layout = new ArrayList<>();
+            for (List<BasicBlock> chain : chains) layout.addAll(chain);
+            for (List<BasicBlock> chain : coldChains) layout.addAll(chain);
+            return layout;
+        }
+
+        private boolean isBackEdge(BasicBlock from, BasicBlock to) {
+            return bbIdxMap.get(to) <= bbIdxMap.get(from);
+        }
+
+        private List<Edge> staticEdges() {
+            for (BasicBlock bb : bbList) freqMap.put(bb, Math.pow(STATIC_LOOP_FREQ, Math.min(bb.getLoopDepth(), MAX_STATIC_LOOP_DEPTH)));
+            List<Edge> edges = new ArrayList<>();
+            for (BasicBlock bb : bbList) {
+                double freq = freqMap.get(bb);
+                if (bb.getLastInst() instanceof IRJump) {
+                    edges.add(new Edge(bb, ((IRJump) bb.getLastInst()).getTargetBB(), freq));
+                } else if (bb.getLastInst() instanceof IRBranch) {
+                    BasicBlock thenBB = ((IRBranch) bb.getLastInst()).getThenBB(), elseBB = ((IRBranch) bb.getLastInst()).getElseBB();
+                    double thenProb = 0.5;
+                    if (isBackEdge(bb, thenBB) != isBackEdge(bb, elseBB)) {
+                        thenProb = isBackEdge(bb, thenBB) ? LIKELY_PROB : 1 - LIKELY_PROB;
+                    } else if (thenBB.getLoopDepth() != elseBB.getLoopDepth()) {
+                        thenProb = thenBB.getLoopDepth() > elseBB.getLoopDepth() ? LIKELY_PROB : 1 - LIKELY_PROB;
+                    }
+                    edges.add(new Edge(bb, thenBB, freq * thenProb));
+                    edges.add(new Edge(bb, elseBB, freq * (1 - thenProb)));
+                }
+            }
+            return edges;
+        }
+
+        // blocks made after the profiled numbering take the smaller count of their known neighbours
+        private double estimateCount(BasicBlock bb) {
+            long count = profile.getCount(bb);
+            if (count >= 0) return count;
+            long predCount = -1, succCount = -1;
+            for (BasicBlock pred : predsMap.get(bb)) predCount = Math.max(predCount, profile.getCount(pred));
+            for (BasicBlock succ : RegLivelinessAnalysis.successors(bb)) succCount = Math.max(succCount, profile.getCount(succ));
+            if (predCount < 0 || succCount < 0) return Math.max(Math.max(predCount, succCount), 0);
+            return Math.min(predCount, succCount);
+        }
+
+        private List<Edge> profileEdges() {
+            for (BasicBlock bb : bbList) freqMap.put(bb, estimateCount(bb));
+            List<Edge> edges = new ArrayList<>();
+            for (BasicBlock bb : bbList) {
+                double freq = freqMap.get(bb);
+                if (bb.getLastInst() instanceof IRJump) {
+                    edges.add(new Edge(bb, ((IRJump) bb.getLastInst()).getTargetBB(), freq));
+                } else if (bb.getLastInst() instanceof IRBranch) {
+                    // a branch is shared between its targets by their counts
+                    BasicBlock thenBB = ((IRBranch) bb.getLastInst()).getThenBB(), elseBB = ((IRBranch) bb.getLastInst()).getElseBB();
+                    double thenFreq = freqMap.get(thenBB), elseFreq = freqMap.get(elseBB);
+                    double thenProb = thenFreq + elseFreq > 0 ? thenFreq / (thenFreq + elseFreq) : 0.5;
+                    edges.add(new Edge(bb, thenBB, freq * thenProb));
+                    edges.add(new Edge(bb, elseBB, freq * (1 - thenProb)));
+                }
+            }
+            return edges;
+        }
+    }
+}
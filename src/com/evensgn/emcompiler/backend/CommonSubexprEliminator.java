@@ -0,0 +1,183 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.util.*;
+
+// dominator-based global value numbering on SSA form: a computation already available in a dominating block
+// is removed and its result replaced, loads are keyed with a memory version bumped by stores and calls
+public class CommonSubexprEliminator {
+    private IRRoot ir;
+
+    public CommonSubexprEliminator(IRRoot ir) {
+        this.ir = ir;
+    }
+
+    public void run() {
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        new FuncEliminator(irFunction).eliminate();
+    }
+
+    private class FuncEliminator {
+        private IRFunction irFunction;
+        private DominatorTree domTree;
+        private Map<VirtualRegister, Integer> defCntMap = new HashMap<>();
+        private Map<VirtualRegister, VirtualRegister> leaderMap = new HashMap<>();
+        private Map<List<Object>, VirtualRegister> availMap = new HashMap<>();
+        private Map<BasicBlock, Integer> exitMemVersionMap = new HashMap<>();
+        private int memVersionCnt = 0;
+
+        FuncEliminator(IRFunction irFunction) {
+            this.irFunction = irFunction;
+        }
+
+        private void eliminate() {
+            domTree = new DominatorTree(irFunction);
+            for (VirtualRegister argVreg : irFunction.getArgVRegList()) defCntMap.merge(argVreg, 1, Integer::sum);
+            for (BasicBlock bb : domTree.getBBList()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (inst.getDefinedRegister() instanceof VirtualRegister) defCntMap.merge((VirtualRegister) inst.getDefinedRegister(), 1, Integer::sum);
+                }
+            }
+            number();
+            if (!leaderMap.isEmpty()) replaceUses();
+        }
+
+        // registers defined more than once, or never, are not in SSA form and have no value number
+        private boolean isSSAReg(RegValue value) {
+            return value instanceof VirtualRegister && defCntMap.getOrDefault(value, 0) == 1;
+        }
+
+        private VirtualRegister getLeader(VirtualRegister vreg) {
+            VirtualRegister leader = leaderMap.get(vreg);
+            return leader == null ? vreg : leader;
+        }
+
+        // null if the operand has no value number
+        private Object operandKey(RegValue value) {
+            if (value instanceof IntImmediate) return ((IntImmediate) value).getValue();
+            if (isSSAReg(value)) return getLeader((VirtualRegister) value);
+            return null;
+        }
+
+        // null if the instruction is not numbered
+        private List<Object> exprKey(IRInstruction inst, int memVersion) {
+            Object lhs, rhs;
+            if (inst instanceof IRBinaryOperation) {
+                IRBinaryOperation binOp = (IRBinaryOperation) inst;
+                lhs = operandKey(binOp.getLhs());
+                rhs = operandKey(binOp.getRhs());
+                return lhs == null || rhs == null ? null : Arrays.asList(binOp.getOp(), lhs, rhs);
+            }
+            if (inst instanceof IRComparison) {
+                IRComparison cmp = (IRComparison) inst;
+                lhs = operandKey(cmp.getLhs());
+                rhs = operandKey(cmp.getRhs());
+                return lhs == null || rhs == null ? null : Arrays.asList(cmp.getOp(), lhs, rhs);
+            }
+            if (inst instanceof IRUnaryOperation) {
+                IRUnaryOperation unaryOp = (IRUnaryOperation) inst;
+                rhs = operandKey(unaryOp.getRhs());
+                return rhs == null ? null : Arrays.asList(unaryOp.getOp(), rhs);
+            }
+            if (inst instanceof IRLoad && !((IRLoad) inst).isStaticData()) {
+                IRLoad load = (IRLoad) inst;
+                lhs = operandKey(load.getAddr());
+                // lengths are never written after allocation
+                if (load.isLengthLoad()) memVersion = 0;
+                return lhs == null ? null : Arrays.asList(IRLoad.class, lhs, load.getAddrOffset(), load.getSize(), memVersion);
+            }
+            return null;
+        }
+
+        private boolean isCommutative(IRInstruction inst) {
+            if (inst instanceof IRBinaryOperation) return ((IRBinaryOperation) inst).isCommutativeOp();
+            if (inst instanceof IRComparison) {
+                IRComparison.IRCmpOp op = ((IRComparison) inst).getOp();
+                return op == IRComparison.IRCmpOp.EQUAL || op == IRComparison.IRCmpOp.INEQUAL;
+            }
+            return false;
+        }
+
+        // preorder walk of the dominator tree with an explicit stack, keys added in a block are removed after its subtree
+        private void number() {
+            Deque<BasicBlock> bbStack = new ArrayDeque<>();
+            Deque<List<List<Object>>> addedStack = new ArrayDeque<>();
+            Set<BasicBlock> visited = new HashSet<>();
+            bbStack.push(irFunction.getStartBB());
+            while (!bbStack.isEmpty()) {
+                BasicBlock bb = bbStack.peek();
+                if (visited.contains(bb)) {
+                    bbStack.pop();
+                    for (List<Object> key : addedStack.pop()) availMap.remove(key);
+                    continue;
+                }
+                visited.add(bb);
+                addedStack.push(numberBB(bb));
+                List<BasicBlock> children = domTree.getChildren(bb);
+                for (int i = children.size() - 1; i >= 0; --i) bbStack.push(children.get(i));
+            }
+        }
+
+        private List<List<Object>> numberBB(BasicBlock bb) {
+            // memory seen from the immediate dominator is only kept when nothing else can run in between
+            List<BasicBlock> preds = domTree.getPreds(bb);
+            int memVersion = preds.size() == 1 && preds.get(0) == domTree.getIdom(bb) ?
+                    exitMemVersionMap.get(preds.get(0)) : ++memVersionCnt;
+            List<List<Object>> added = new ArrayList<>();
+            IRInstruction nextInst;
+            for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = nextInst) {
+                nextInst = inst.getNextInst();
+                if (inst instanceof IRStore || inst instanceof IRFunctionCall) {
+                    memVersion = ++memVersionCnt;
+                    continue;
+                }
+                IRRegister dest = inst.getDefinedRegister();
+                if (!isSSAReg(dest)) continue;
+                if (inst instanceof IRMove) {
+                    // copies of SSA registers are propagated
+                    RegValue src = ((IRMove) inst).getRhs();
+                    if (isSSAReg(src)) {
+                        leaderMap.put((VirtualRegister) dest, getLeader((VirtualRegister) src));
+                        inst.remove();
+                    }
+                    continue;
+                }
+                List<Object> key = exprKey(inst, memVersion);
+                if (key == null) continue;
+                VirtualRegister avail = availMap.get(key);
+                if (avail == null && isCommutative(inst)) avail = availMap.get(Arrays.asList(key.get(0), key.get(2), key.get(1)));
+                if (avail != null) {
+                    leaderMap.put((VirtualRegister) dest, avail);
+                    inst.remove();
+                } else {
+                    availMap.put(key, (VirtualRegister) dest);
+                    added.add(key);
+                }
+            }
+            exitMemVersionMap.put(bb, memVersion);
+            return added;
+        }
+
+        private void replaceUses() {
+            Map<IRRegister, IRRegister> renameMap = new HashMap<>();
+            for (BasicBlock bb : domTree.getBBList()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    boolean renamed = false;
+                    renameMap.clear();
+                    for (IRRegister reg : inst.getUsedRegisters()) {
+                        IRRegister leader = reg instanceof VirtualRegister ? getLeader((VirtualRegister) reg) : reg;
+                        renameMap.put(reg, leader);
+                        if (leader != reg) renamed = true;
+                    }
+                    if (renamed) inst.setUsedRegisters(renameMap);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.util.*;
+
+// sparse conditional constant propagation by Wegman and Zadeck on SSA form: registers proved constant are
+// replaced with immediates, branches on constant conditions become jumps and blocks never reached are dropped
+public class ConstantPropagator {
+    private IRRoot ir;
+
+    public ConstantPropagator(IRRoot ir) {
+        this.ir = ir;
+    }
+
+    public void run() {
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        new FuncPropagator(irFunction).propagate();
+    }
+
+    private class FuncPropagator {
+        private IRFunction irFunction;
+        // registers absent from both are not known yet (top of the lattice)
+        private Map<VirtualRegister, Integer> constMap = new HashMap<>();
+        private Set<VirtualRegister> overdefined = new HashSet<>();
+        private Map<VirtualRegister, List<IRInstruction>> useMap = new HashMap<>();
+        private Map<BasicBlock, Set<BasicBlock>> executableEdges = new HashMap<>();
+        private Set<BasicBlock> executableBBs = new LinkedHashSet<>();
+        private Deque<BasicBlock[]> edgeWorklist = new ArrayDeque<>();
+        private Deque<IRInstruction> instWorklist = new ArrayDeque<>();
+
+        FuncPropagator(IRFunction irFunction) {
+            this.irFunction = irFunction;
+        }
+
+        private void propagate() {
+            init();
+            edgeWorklist.add(new BasicBlock[]{null, irFunction.getStartBB()});
+            while (!edgeWorklist.isEmpty() || !instWorklist.isEmpty()) {
+                while (!edgeWorklist.isEmpty()) {
+                    BasicBlock[] edge = edgeWorklist.poll();
+                    visitEdge(edge[0], edge[1]);
+                }
+                while (!instWorklist.isEmpty()) {
+                    IRInstruction inst = instWorklist.poll();
+                    if (inst.isRemoved() || !executableBBs.contains(inst.getParentBB())) continue;
+                    if (inst instanceof IRPhi) visitPhi((IRPhi) inst);
+                    else visitInst(inst);
+                }
+            }
+            rewrite();
+        }
+
+        private void init() {
+            Set<VirtualRegister> definedVregs = new HashSet<>(irFunction.getArgVRegList());
+            for (BasicBlock bb : irFunction.getReversePostOrder()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    for (IRRegister reg : inst.getUsedRegisters()) {
+                        if (reg instanceof VirtualRegister) useMap.computeIfAbsent((VirtualRegister) reg, k -> new ArrayList<>()).add(inst);
+                    }
+                    if (inst.getDefinedRegister() instanceof VirtualRegister) definedVregs.add((VirtualRegister) inst.getDefinedRegister());
+                }
+            }
+            // arguments and registers read without any definition may hold anything
+            overdefined.addAll(irFunction.getArgVRegList());
+            for (VirtualRegister vreg : useMap.keySet()) {
+                if (!definedVregs.contains(vreg)) overdefined.add(vreg);
+            }
+        }
+
+        private void visitEdge(BasicBlock from, BasicBlock to) {
+            if (from != null && !executableEdges.computeIfAbsent(from, k -> new HashSet<>()).add(to)) return;
+            IRInstruction inst = to.getFirstInst();
+            for (; inst instanceof IRPhi; inst = inst.getNextInst()) visitPhi((IRPhi) inst);
+            if (!executableBBs.add(to)) return;
+            for (; inst != null; inst = inst.getNextInst()) visitInst(inst);
+        }
+
+        private boolean isExecutable(BasicBlock from, BasicBlock to) {
+            Set<BasicBlock> succs = executableEdges.get(from);
+            return succs != null && succs.contains(to);
+        }
+
+        private void visitPhi(IRPhi phi) {
+            Integer value = null;
+            boolean isOverdefined = false;
+            for (Map.Entry<BasicBlock, RegValue> entry : phi.getPaths().entrySet()) {
+                if (!isExecutable(entry.getKey(), phi.getParentBB())) continue;
+                RegValue path = entry.getValue();
+                if (isOverdefined(path)) {
+                    isOverdefined = true;
+                    break;
+                }
+                Integer pathValue = getConst(path);
+                if (pathValue == null) continue;
+                if (value != null && !value.equals(pathValue)) {
+                    isOverdefined = true;
+                    break;
+                }
+                value = pathValue;
+            }
+            if (isOverdefined) setOverdefined(phi.getDest());
+            else if (value != null) setConst(phi.getDest(), value);
+        }
+
+        private void visitInst(IRInstruction inst) {
+            if (inst instanceof IRBranch) {
+                IRBranch branch = (IRBranch) inst;
+                if (isOverdefined(branch.getCond())) {
+                    edgeWorklist.add(new BasicBlock[]{inst.getParentBB(), branch.getThenBB()});
+                    edgeWorklist.add(new BasicBlock[]{inst.getParentBB(), branch.getElseBB()});
+                } else {
+                    Integer cond = getConst(branch.getCond());
+                    if (cond != null) edgeWorklist.add(new BasicBlock[]{inst.getParentBB(), cond != 0 ? branch.getThenBB() : branch.getElseBB()});
+                }
+                return;
+            }
+            if (inst instanceof IRJump) {
+                edgeWorklist.add(new BasicBlock[]{inst.getParentBB(), ((IRJump) inst).getTargetBB()});
+                return;
+            }
+            if (!(inst.getDefinedRegister() instanceof VirtualRegister)) return;
+            VirtualRegister dest = (VirtualRegister) inst.getDefinedRegister();
+            if (inst instanceof IRMove || inst instanceof IRBinaryOperation ||
+                    inst instanceof IRUnaryOperation || inst instanceof IRComparison) {
+                List<RegValue> operands = inst.getUsedRegValues();
+                for (RegValue operand : operands) {
+                    if (isOverdefined(operand)) {
+                        setOverdefined(dest);
+                        return;
+                    }
+                }
+                for (RegValue operand : operands) {
+                    if (getConst(operand) == null) return;
+                }
+                Long value = fold(inst);
+                if (value == null || value != value.intValue()) setOverdefined(dest);
+                else setConst(dest, value.intValue());
+            } else {
+                setOverdefined(dest);
+            }
+        }
+
+        // evaluated on 64 bits like the generated code, null if it cannot be done at compile time
+        private Long fold(IRInstruction inst) {
+            if (inst instanceof IRMove) return (long) getConst(((IRMove) inst).getRhs());
+            if (inst instanceof IRUnaryOperation) {
+                long rhs = getConst(((IRUnaryOperation) inst).getRhs());
+                switch (((IRUnaryOperation) inst).getOp()) {
+                    case NEG:
+                        return -rhs;
+                    case BITWISE_NOT:
+                        return ~rhs;
+                    default:
+                        return null;
+                }
+            }
+            if (inst instanceof IRComparison) {
+                IRComparison cmp = (IRComparison) inst;
+                int lhs = getConst(cmp.getLhs()), rhs = getConst(cmp.getRhs());
+                boolean result;
+                switch (cmp.getOp()) {
+                    case GREATER:
+                        result = lhs > rhs;
+                        break;
+                    case LESS:
+                        result = lhs < rhs;
+                        break;
+                    case GREATER_EQUAL:
+                        result = lhs >= rhs;
+                        break;
+                    case LESS_EQUAL:
+                        result = lhs <= rhs;
+                        break;
+                    case EQUAL:
+                        result = lhs == rhs;
+                        break;
+                    case INEQUAL:
+                        result = lhs != rhs;
+                        break;
+                    default:
+                        return null;
+                }
+                return result ? 1L : 0L;
+            }
+            IRBinaryOperation binOp = (IRBinaryOperation) inst;
+            long lhs = getConst(binOp.getLhs()), rhs = getConst(binOp.getRhs());
+            switch (binOp.getOp()) {
+                case ADD:
+                    return lhs + rhs;
+                case SUB:
+                    return lhs - rhs;
+                case MUL:
+                    return lhs * rhs;
+                case DIV:
+                    return rhs == 0 ? null : lhs / rhs;
+                case MOD:
+                    return rhs == 0 ? null : lhs % rhs;
+                case SHL:
+                    return lhs << rhs;
+                case SHR:
+                    return lhs >> rhs;
+                case BITWISE_AND:
+                    return lhs & rhs;
+                case BITWISE_OR:
+                    return lhs | rhs;
+                case BITWISE_XOR:
+                    return lhs ^ rhs;
+                default:
+                    return null;
+            }
+        }
+
+        private boolean isOverdefined(RegValue value) {
+            if (value instanceof IntImmediate) return false;
+            return !(value instanceof VirtualRegister) || overdefined.contains(value);
+        }
+
+        // null if not known yet
+        private Integer getConst(RegValue value) {
+            if (value instanceof IntImmediate) return ((IntImmediate) value).getValue();
+            return constMap.get(value);
+        }
+
+        private void setConst(VirtualRegister vreg, int value) {
+            if (overdefined.contains(vreg)) return;
+            Integer oldValue = constMap.get(vreg);
+            if (oldValue == null) {
+                constMap.put(vreg, value);
+                notifyUses(vreg);
+            } else if (oldValue != value) {
+                // more than one definition disagree, only possible for registers not in SSA form
+                setOverdefined(vreg);
+            }
+        }
+
+        private void setOverdefined(VirtualRegister vreg) {
+            if (!overdefined.add(vreg)) return;
+            constMap.remove(vreg);
+            notifyUses(vreg);
+        }
+
+        private void notifyUses(VirtualRegister vreg) {
+            List<IRInstruction> uses = useMap.get(vreg);
+            if (uses != null) instWorklist.addAll(uses);
+        }
+
+        private void rewrite() {
+            boolean bbGraphChanged = false;
+            Map<Object, Object> renameMap = new HashMap<>();
+            for (BasicBlock bb : irFunction.getReversePostOrder()) {
+                if (!executableBBs.contains(bb)) {
+                    bbGraphChanged = true;
+                    continue;
+                }
+                IRInstruction nextInst;
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = nextInst) {
+                    nextInst = inst.getNextInst();
+                    if (inst instanceof IRPhi) {
+                        IRPhi phi = (IRPhi) inst;
+                        for (BasicBlock pred : new ArrayList<>(phi.getPaths().keySet())) {
+                            if (!isExecutable(pred, bb)) phi.removePath(pred);
+                            else if (constMap.containsKey(phi.getPaths().get(pred))) phi.setPath(pred, new IntImmediate(constMap.get(phi.getPaths().get(pred))));
+                        }
+                        continue;
+                    }
+                    if (inst instanceof IRBranch && getConst(((IRBranch) inst).getCond()) != null) {
+                        IRBranch branch = (IRBranch) inst;
+                        BasicBlock targetBB = getConst(branch.getCond()) != 0 ? branch.getThenBB() : branch.getElseBB();
+                        if (branch.getThenBB() != branch.getElseBB()) bbGraphChanged = true;
+                        branch.remove();
+                        bb.setJumpInst(new IRJump(bb, targetBB));
+                        continue;
+                    }
+                    if (inst instanceof IRLoad) continue;
+                    renameMap.clear();
+                    for (IRRegister reg : inst.getUsedRegisters()) {
+                        if (constMap.containsKey(reg) && reg != inst.getDefinedRegister()) renameMap.put(reg, new IntImmediate(constMap.get(reg)));
+                    }
+                    // addresses stay in registers
+                    if (inst instanceof IRStore) renameMap.remove(((IRStore) inst).getAddr());
+                    if (!renameMap.isEmpty()) replaceConstUses(inst, renameMap);
+                }
+            }
+            removeConstDefs();
+            // block orders are computed again on demand
+            if (bbGraphChanged) irFunction.setNewBBGraph(irFunction.getStartBB(), irFunction.getEndBB());
+        }
+
+        private void replaceConstUses(IRInstruction inst, Map<Object, Object> renameMap) {
+            IRInstruction newInst = inst.copyRename(renameMap);
+            if (newInst instanceof IRComparison && ((IRComparison) newInst).getLhs() instanceof IntImmediate) {
+                // no cmp with an immediate on the left in x86
+                IRComparison cmp = (IRComparison) newInst;
+                newInst = new IRComparison(inst.getParentBB(), cmp.getDest(), swapCmpOp(cmp.getOp()), cmp.getRhs(), cmp.getLhs());
+            }
+            if (inst instanceof IRJumpInstruction) {
+                inst.remove();
+                inst.getParentBB().setJumpInst((IRJumpInstruction) newInst);
+            } else {
+                inst.replace(newInst);
+            }
+        }
+
+        private IRComparison.IRCmpOp swapCmpOp(IRComparison.IRCmpOp op) {
+            switch (op) {
+                case GREATER:
+                    return IRComparison.IRCmpOp.LESS;
+                case LESS:
+                    return IRComparison.IRCmpOp.GREATER;
+                case GREATER_EQUAL:
+                    return IRComparison.IRCmpOp.LESS_EQUAL;
+                case LESS_EQUAL:
+                    return IRComparison.IRCmpOp.GREATER_EQUAL;
+                default:
+                    return op;
+            }
+        }
+
+        // definitions of constants are dropped, or become moves of the immediate if still read as an address
+        private void removeConstDefs() {
+            Set<VirtualRegister> stillUsed = new HashSet<>();
+            for (BasicBlock bb : executableBBs) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    for (IRRegister reg : inst.getUsedRegisters()) {
+                        if (constMap.containsKey(reg)) stillUsed.add((VirtualRegister) reg);
+                    }
+                }
+            }
+            for (BasicBlock bb : executableBBs) {
+                IRInstruction nextInst;
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = nextInst) {
+                    nextInst = inst.getNextInst();
+                    IRRegister dest = inst.getDefinedRegister();
+                    if (!constMap.containsKey(dest)) continue;
+                    IRInstruction move = stillUsed.contains(dest) ? new IRMove(bb, dest, new IntImmediate(constMap.get(dest))) : null;
+                    if (inst instanceof IRPhi) {
+                        inst.remove();
+                        if (move == null) continue;
+                        IRInstruction firstInst = bb.getFirstInst();
+                        while (firstInst instanceof IRPhi) firstInst = firstInst.getNextInst();
+                        firstInst.prependInst(move);
+                    } else if (move == null) {
+                        inst.remove();
+                    } else {
+                        inst.replace(move);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.util.*;
+
+// dominator tree and dominance frontiers of the blocks reachable in a function,
+// successors are read from jump instructions like in RegLivelinessAnalysis
+public class DominatorTree {
+    private List<BasicBlock> bbList;
+    private Map<BasicBlock, Integer> orderMap = new HashMap<>();
+    private Map<BasicBlock, List<BasicBlock>> predMap = new HashMap<>();
+    private Map<BasicBlock, BasicBlock> idomMap = new HashMap<>();
+    private Map<BasicBlock, List<BasicBlock>> childrenMap = new HashMap<>();
+    private Map<BasicBlock, Set<BasicBlock>> frontierMap = null;
+
+    public DominatorTree(IRFunction irFunction) {
+        calcReversePostOrder(irFunction);
+        for (int i = 0; i < bbList.size(); ++i) {
+            BasicBlock bb = bbList.get(i);
+            orderMap.put(bb, i);
+            predMap.put(bb, new ArrayList<>());
+            childrenMap.put(bb, new ArrayList<>());
+        }
+        for (BasicBlock bb : bbList) {
+            for (BasicBlock succ : RegLivelinessAnalysis.successors(bb)) {
+                if (predMap.containsKey(succ)) predMap.get(succ).add(bb);
+            }
+        }
+        calcIdom();
+        for (BasicBlock bb : bbList) {
+            BasicBlock idom = idomMap.get(bb);
+            if (idom != null) childrenMap.get(idom).add(bb);
+        }
+    }
+
+    private void calcReversePostOrder(IRFunction irFunction) {
+        bbList = new ArrayList<>();
+        Set<BasicBlock> visited = new HashSet<>();
+        Deque<BasicBlock> bbStack = new ArrayDeque<>();
+        Deque<Iterator<BasicBlock>> succStack = new ArrayDeque<>();
+        visited.add(irFunction.getStartBB());
+        bbStack.push(irFunction.getStartBB());
+        succStack.push(RegLivelinessAnalysis.successors(irFunction.getStartBB()).iterator());
+        while (!bbStack.isEmpty()) {
+            Iterator<BasicBlock> iter = succStack.peek();
+            if (iter.hasNext()) {
+                BasicBlock succ = iter.next();
+                if (visited.add(succ)) {
+                    bbStack.push(succ);
+                    succStack.push(RegLivelinessAnalysis.successors(succ).iterator());
+                }
+            } else {
+                bbList.add(bbStack.pop());
+                succStack.pop();
+            }
+        }
+        Collections.reverse(bbList);
+    }
+
+    // iterative algorithm by Cooper, Harvey and Kennedy
+    private void calcIdom() {
+        BasicBlock startBB = bbList.get(0);
+        idomMap.put(startBB, startBB);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < bbList.size(); ++i) {
+                BasicBlock bb = bbList.get(i);
+                BasicBlock newIdom = null;
+                for (BasicBlock pred : predMap.get(bb)) {
+                    if (!idomMap.containsKey(pred)) continue;
+                    newIdom = newIdom == null ? pred : intersect(pred, newIdom);
+                }
+                if (idomMap.get(bb) != newIdom) {
+                    idomMap.put(bb, newIdom);
+                    changed = true;
+                }
+            }
+        }
+        idomMap.put(startBB, null);
+    }
+
+    private BasicBlock intersect(BasicBlock finger1, BasicBlock finger2) {
+        while (finger1 != finger2) {
+            while (orderMap.get(finger1) > orderMap.get(finger2)) finger1 = idomMap.get(finger1);
+            while (orderMap.get(finger2) > orderMap.get(finger1)) finger2 = idomMap.get(finger2);
+        }
+        return finger1;
+    }
+
+    private void calcDominanceFrontier() {
+        frontierMap = new HashMap<>();
+        for (BasicBlock bb : bbList) frontierMap.put(bb, new LinkedHashSet<>());
+        for (BasicBlock bb : bbList) {
+            if (predMap.get(bb).size() < 2) continue;
+            for (BasicBlock pred : predMap.get(bb)) {
+                for (BasicBlock runner = pred; runner != idomMap.get(bb); runner = idomMap.get(runner)) {
+                    frontierMap.get(runner).add(bb);
+                }
+            }
+        }
+    }
+
+    // reachable blocks in reverse post order, the start block first
+    public List<BasicBlock> getBBList() {
+        return bbList;
+    }
+
+    public List<BasicBlock> getPreds(BasicBlock bb) {
+        return predMap.get(bb);
+    }
+
+    // null for the start block
+    public BasicBlock getIdom(BasicBlock bb) {
+        return idomMap.get(bb);
+    }
+
+    public List<BasicBlock> getChildren(BasicBlock bb) {
+        return childrenMap.get(bb);
+    }
+
+    public Set<BasicBlock> getDominanceFrontier(BasicBlock bb) {
+        if (frontierMap == null) calcDominanceFrontier();
+        return frontierMap.get(bb);
+    }
+
+    public boolean dominates(BasicBlock dominator, BasicBlock bb) {
+        for (; bb != null; bb = idomMap.get(bb)) {
+            if (bb == dominator) return true;
+        }
+        return false;
+    }
+}
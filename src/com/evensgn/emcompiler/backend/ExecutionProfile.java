@@ -0,0 +1,93 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+import com.evensgn.emcompiler.utils.CompilerError;
+
+import java.io.*;
+import java.util.*;
+
+// execution counts of blocks and call sites, read from a text profile with one site per line:
+//     block <function> <block index> <count>
+//     call <function> <site index> <count>
+// where the index is the position of the block, or of the call among the calls of the function, in reverse post
+// order of the IR before any optimization; sites never run are listed with count 0, while a site not listed is
+// unknown, e.g. it was optimized away in the profiled build; empty lines and lines starting with '#' are skipped
+//
+// such a profile is written by an instrumented build (--instrument <file>) when the program exits, or for the
+// calls only, by LLIRInterpreter -profile <file> running the printed IR
+public class ExecutionProfile {
+    public static final String BLOCK = "block", CALL = "call";
+
+    private Map<String, Map<String, Map<Integer, Long>>> countMap = new HashMap<>();
+
+    public ExecutionProfile(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        int lineno = 0;
+        while ((line = reader.readLine()) != null) {
+            ++lineno;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] words = line.split("\\s+");
+            if (words.length != 4 || !(words[0].equals(BLOCK) || words[0].equals(CALL))) {
+                throw new CompilerError(String.format("invalid execution profile at line %d: %s", lineno, line));
+            }
+            try {
+                countMap.computeIfAbsent(words[0], k -> new HashMap<>()).computeIfAbsent(words[1], k -> new HashMap<>())
+                        .merge(Integer.valueOf(words[2]), Long.valueOf(words[3]), Long::sum);
+            } catch (NumberFormatException e) {
+                throw new CompilerError(String.format("invalid execution profile at line %d: %s", lineno, line));
+            }
+        }
+    }
+
+    // gives every block and call site its function and index, done once right after the IR is built
+    public static void numberSites(IRRoot ir) {
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            int bbIdx = 0, callIdx = 0;
+            for (BasicBlock bb : irFunction.getReversePostOrder()) {
+                bb.setSite(irFunction.getName(), bbIdx++);
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (inst instanceof IRFunctionCall) ((IRFunctionCall) inst).setSite(irFunction.getName(), callIdx++);
+                }
+            }
+        }
+    }
+
+    // the name of the site in a profile line, null if the block is not numbered
+    public static String siteName(BasicBlock bb) {
+        if (bb.getSiteFuncName() == null) return null;
+        return String.format("%s %s %d", BLOCK, bb.getSiteFuncName(), bb.getSiteIdx());
+    }
+
+    public static String siteName(IRFunctionCall funcCall) {
+        if (funcCall.getSiteFuncName() == null) return null;
+        return String.format("%s %s %d", CALL, funcCall.getSiteFuncName(), funcCall.getSiteIdx());
+    }
+
+    public static void write(PrintStream out, String kind, Map<String, Map<Integer, Long>> siteCountMap) {
+        for (Map.Entry<String, Map<Integer, Long>> funcEntry : new TreeMap<>(siteCountMap).entrySet()) {
+            for (Map.Entry<Integer, Long> siteEntry : new TreeMap<>(funcEntry.getValue()).entrySet()) {
+                out.printf("%s %s %d %d\n", kind, funcEntry.getKey(), siteEntry.getKey(), siteEntry.getValue());
+            }
+        }
+    }
+
+    private long getCount(String kind, String funcName, int idx) {
+        Map<String, Map<Integer, Long>> funcCountMap = countMap.get(kind);
+        if (funcCountMap == null || funcName == null) return -1;
+        Map<Integer, Long> siteCountMap = funcCountMap.get(funcName);
+        if (siteCountMap == null) return -1;
+        return siteCountMap.getOrDefault(idx, -1L);
+    }
+
+    // -1 if the block is not in the profile
+    public long getCount(BasicBlock bb) {
+        return getCount(BLOCK, bb.getSiteFuncName(), bb.getSiteIdx());
+    }
+
+    // -1 if the call site is not in the profile
+    public long getCount(IRFunctionCall funcCall) {
+        return getCount(CALL, funcCall.getSiteFuncName(), funcCall.getSiteIdx());
+    }
+}
@@ -25,12 +25,16 @@ public class ExtraInstructionOptimizer {
                                 ((IRStore) lastInst).getValue() == ((IRLoad) inst).getDest() &&
                                 ((IRStore) lastInst).getAddr() == ((IRLoad) inst).getAddr() &&
                                 ((IRStore) lastInst).getAddrOffset() == ((IRLoad) inst).getAddrOffset() &&
+                                ((IRStore) lastInst).getIndex() == ((IRLoad) inst).getIndex() &&
+                                ((IRStore) lastInst).getScale() == ((IRLoad) inst).getScale() &&
                                 ((IRStore) lastInst).getSize() == ((IRLoad) inst).getSize()) remove = true;
                     } else if (inst instanceof IRStore) {
                         if (lastInst instanceof IRLoad &&
                                 ((IRLoad) lastInst).getDest() == ((IRStore) inst).getValue() &&
                                 ((IRLoad) lastInst).getAddr() == ((IRStore) inst).getAddr() &&
                                 ((IRLoad) lastInst).getAddrOffset() == ((IRStore) inst).getAddrOffset() &&
+                                ((IRLoad) lastInst).getIndex() == ((IRStore) inst).getIndex() &&
+                                ((IRLoad) lastInst).getScale() == ((IRStore) inst).getScale() &&
                                 ((IRLoad) lastInst).getSize() == ((IRStore) inst).getSize()) remove = true;
                     }
                     if (remove) inst.remove();
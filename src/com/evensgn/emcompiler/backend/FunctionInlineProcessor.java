@@ -1,7 +1,6 @@
 package com.evensgn.emcompiler.backend;
 
 import com.evensgn.emcompiler.ir.*;
-import com.sun.corba.se.impl.ior.OldJIDLObjectKeyTemplate;
 
 import java.util.*;
 
@@ -10,8 +9,14 @@ public class FunctionInlineProcessor {
     private final int MAX_LOW_INLINE_INST = 30;
     private final int MAX_FUNC_INST = 1 << 12;
     private final int MAX_INLINE_DEPTH = 5;
+    // with a profile, a site is inlined with a larger budget if it runs this many times per callee instruction
+    private final int MAX_HOT_INLINE_INST = 300;
+    private final int HOT_CALLS_PER_INST = 4;
+    // and left as a call if it runs fewer times than this
+    private final int COLD_CALL_COUNT = 8;
 
     private IRRoot ir;
+    private ExecutionProfile profile;
 
     private class FuncInfo {
         int numInst = 0, numCalled = 0;
@@ -22,7 +27,21 @@ public class FunctionInlineProcessor {
     private Map<IRFunction, IRFunction> funcBakUpMap = new HashMap<>();
 
     public FunctionInlineProcessor(IRRoot ir) {
+        this(ir, null);
+    }
+
+    public FunctionInlineProcessor(IRRoot ir, ExecutionProfile profile) {
         this.ir = ir;
+        this.profile = profile;
+    }
+
+    private boolean isInlineWorthy(IRFunctionCall funcCallInst, FuncInfo funcInfo, FuncInfo calleeInfo, int maxInlineInst) {
+        if (calleeInfo.numInst + funcInfo.numInst > MAX_FUNC_INST) return false;
+        long count = profile == null ? -1 : profile.getCount(funcCallInst);
+        if (count < 0) return !calleeInfo.memFunc && calleeInfo.numInst <= maxInlineInst;
+        if (count < COLD_CALL_COUNT) return false;
+        if (calleeInfo.numInst <= maxInlineInst) return true;
+        return calleeInfo.numInst <= MAX_HOT_INLINE_INST && count >= (long) calleeInfo.numInst * HOT_CALLS_PER_INST;
     }
 
     public void run() {
@@ -67,8 +86,7 @@ public class FunctionInlineProcessor {
                         FuncInfo calleeInfo = funcInfoMap.get(((IRFunctionCall) inst).getFunc());
                         if (calleeInfo == null) continue; // skip built-in functions
                         if (calleeInfo.recursiveCall) continue; // skip self recursive function
-                        if (calleeInfo.memFunc) continue;
-                        if (calleeInfo.numInst > MAX_LOW_INLINE_INST || calleeInfo.numInst + funcInfo.numInst > MAX_FUNC_INST) continue;
+                        if (!isInlineWorthy((IRFunctionCall) inst, funcInfo, calleeInfo, MAX_LOW_INLINE_INST)) continue;
 
                         nextInst = inlineFunctionCall((IRFunctionCall) inst);
                         funcInfo.numInst += calleeInfo.numInst;
@@ -119,8 +137,7 @@ public class FunctionInlineProcessor {
                         if (!(inst instanceof IRFunctionCall)) continue;
                         FuncInfo calleeInfo = funcInfoMap.get(((IRFunctionCall) inst).getFunc());
                         if (calleeInfo == null) continue; // skip built-in functions
-                        if (calleeInfo.memFunc) continue;
-                        if (calleeInfo.numInst > MAX_INLINE_INST || calleeInfo.numInst + funcInfo.numInst > MAX_FUNC_INST) continue;
+                        if (!isInlineWorthy((IRFunctionCall) inst, funcInfo, calleeInfo, MAX_INLINE_INST)) continue;
 
                         nextInst = inlineFunctionCall((IRFunctionCall) inst);
                         int numAddInst = calleeInfo.numInst;
@@ -144,7 +161,9 @@ public class FunctionInlineProcessor {
         IRFunction bakFunc = new IRFunction();
         Map<Object, Object> bbRenameMap = new HashMap<>();
         for (BasicBlock bb : func.getReversePostOrder()) {
-            bbRenameMap.put(bb, new BasicBlock(bakFunc, bb.getName()));
+            BasicBlock bakBB = new BasicBlock(bakFunc, bb.getName());
+            bakBB.setSite(bb.getSiteFuncName(), bb.getSiteIdx());
+            bbRenameMap.put(bb, bakBB);
         }
         for (BasicBlock bb : func.getReversePostOrder()) {
             BasicBlock bakBB = (BasicBlock) bbRenameMap.get(bb);
@@ -185,6 +204,16 @@ public class FunctionInlineProcessor {
             }
             inst.remove();
         }
+        // phi functions after the call block now have their path from the new end block
+        for (BasicBlock succ : RegLivelinessAnalysis.successors(newEndBB)) {
+            for (IRInstruction inst = succ.getFirstInst(); inst instanceof IRPhi; inst = inst.getNextInst()) {
+                IRPhi phi = (IRPhi) inst;
+                RegValue value = phi.getPaths().get(funcCallInst.getParentBB());
+                if (value == null) continue;
+                phi.removePath(funcCallInst.getParentBB());
+                phi.setPath(newEndBB, value);
+            }
+        }
         IRInstruction newEndBBFisrtInst = newEndBB.getFirstInst();
         for (int i = 0; i < funcCallInst.getArgs().size(); ++i) {
             VirtualRegister oldArgVreg = calleeFunc.getArgVRegList().get(i);
@@ -195,7 +224,9 @@ public class FunctionInlineProcessor {
         funcCallInst.remove();
         for (BasicBlock bb : reversePostOrder) {
             if (!renameMap.containsKey(bb)) {
-                renameMap.put(bb, new BasicBlock(callerFunc, bb.getName()));
+                BasicBlock newBB = new BasicBlock(callerFunc, bb.getName());
+                newBB.setSite(bb.getSiteFuncName(), bb.getSiteIdx());
+                renameMap.put(bb, newBB);
             }
         }
         for (BasicBlock oldBB : reversePostOrder) {
@@ -236,6 +267,8 @@ public class FunctionInlineProcessor {
         if (returnInst.getRetValue() != null) {
             newEndBBFisrtInst.prependInst(new IRMove(newEndBB, funcCallInst.getDest(), (RegValue) renameMap.get(returnInst.getRetValue())));
         }
+        // the copied registers get their ids in the caller
+        for (BasicBlock oldBB : reversePostOrder) callerFunc.numberVregs((BasicBlock) renameMap.get(oldBB));
 
         return newEndBB.getFirstInst();
     }
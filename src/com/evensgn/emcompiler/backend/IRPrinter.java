@@ -254,7 +254,9 @@ public class IRPrinter implements IRVisitor {
         node.getDest().accept(this);
         out.printf(" = load %d ", node.getSize());
         node.getAddr().accept(this);
-        out.println(" " + node.getAddrOffset());
+        out.print(" " + node.getAddrOffset());
+        printIndex(node.getIndex(), node.getScale());
+        out.println();
     }
 
     @Override
@@ -263,7 +265,28 @@ public class IRPrinter implements IRVisitor {
         node.getAddr().accept(this);
         out.print(" ");
         node.getValue().accept(this);
-        out.println(" " + node.getAddrOffset());
+        out.print(" " + node.getAddrOffset());
+        printIndex(node.getIndex(), node.getScale());
+        out.println();
+    }
+
+    private void printIndex(IRRegister index, int scale) {
+        if (index == null) return;
+        out.print(" ");
+        index.accept(this);
+        out.print(" " + scale);
+    }
+
+    @Override
+    public void visit(IRLea node) {
+        out.print("    ");
+        node.getDest().accept(this);
+        out.print(" = lea ");
+        if (node.getBase() != null) node.getBase().accept(this);
+        else out.print("0");
+        out.print(" " + node.getOffset());
+        printIndex(node.getIndex(), node.getScale());
+        out.println();
     }
 
     @Override
@@ -278,6 +301,8 @@ public class IRPrinter implements IRVisitor {
             arg.accept(this);
             out.print(" ");
         }
+        // call site for profiling with LLIRInterpreter
+        if (node.getSiteFuncName() != null) out.printf("# %s %d", node.getSiteFuncName(), node.getSiteIdx());
         out.println();
     }
 
@@ -326,4 +351,16 @@ public class IRPrinter implements IRVisitor {
     public void visit(IRPop node) {
         // no actions
     }
+
+    @Override
+    public void visit(IRPhi node) {
+        out.print("    ");
+        node.getDest().accept(this);
+        out.print(" = phi");
+        for (Map.Entry<BasicBlock, RegValue> entry : node.getPaths().entrySet()) {
+            out.print(" %" + getBBID(entry.getKey()) + " ");
+            entry.getValue().accept(this);
+        }
+        out.println();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,251 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.util.*;
+
+import static com.evensgn.emcompiler.ir.IRBinaryOperation.IRBinaryOp.*;
+
+// instruction selection for x86 addressing on SSA form, after the optimizations: the address arithmetic of
+// array elements and members, a register plus a register scaled by 1, 2, 4 or 8 plus a displacement, is folded
+// into the loads and stores reading it, and such arithmetic left as a value, as well as multiplications by
+// 2, 3, 4, 5, 8 and 9, becomes a single lea; definitions no longer read are removed
+public class InstructionSelector {
+    private IRRoot ir;
+
+    public InstructionSelector(IRRoot ir) {
+        this.ir = ir;
+    }
+
+    public void run() {
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        new FuncSelector(irFunction).select();
+    }
+
+    // base + index * scale + disp, made of numOps binary operations
+    private static class Address {
+        IRRegister base, index;
+        int scale = 1;
+        long disp = 0;
+        int numOps = 0;
+
+        Address(IRRegister base) {
+            this.base = base;
+        }
+    }
+
+    private class FuncSelector {
+        private IRFunction irFunction;
+        private Map<VirtualRegister, IRInstruction> defMap = new HashMap<>();
+        private Set<VirtualRegister> multiDefVregs = new HashSet<>();
+        private Map<VirtualRegister, Integer> useCntMap = new HashMap<>();
+        // registers read as addresses of loads and stores only
+        private Set<VirtualRegister> addrOnlyVregs = new HashSet<>();
+
+        FuncSelector(IRFunction irFunction) {
+            this.irFunction = irFunction;
+        }
+
+        private void select() {
+            for (VirtualRegister argVreg : irFunction.getArgVRegList()) defMap.put(argVreg, null);
+            Map<VirtualRegister, Integer> addrUseCntMap = new HashMap<>();
+            for (BasicBlock bb : irFunction.getReversePostOrder()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (inst.getDefinedRegister() instanceof VirtualRegister) {
+                        VirtualRegister vreg = (VirtualRegister) inst.getDefinedRegister();
+                        if (defMap.containsKey(vreg)) multiDefVregs.add(vreg);
+                        defMap.put(vreg, inst);
+                    }
+                    addUses(inst, 1);
+                    RegValue addr = getAddr(inst);
+                    if (addr instanceof VirtualRegister) addrUseCntMap.merge((VirtualRegister) addr, 1, Integer::sum);
+                }
+            }
+            for (Map.Entry<VirtualRegister, Integer> entry : addrUseCntMap.entrySet()) {
+                if (entry.getValue().equals(useCntMap.get(entry.getKey()))) addrOnlyVregs.add(entry.getKey());
+            }
+
+            for (BasicBlock bb : irFunction.getReversePostOrder()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (inst instanceof IRLoad || inst instanceof IRStore) foldAddr(inst);
+                }
+            }
+            // users come before their operands when walking backwards in post order
+            List<BasicBlock> bbList = new ArrayList<>(irFunction.getReversePostOrder());
+            Collections.reverse(bbList);
+            for (BasicBlock bb : bbList) {
+                for (IRInstruction inst = bb.getLastInst(), prevInst; inst != null; inst = prevInst) {
+                    prevInst = inst.getPrevInst();
+                    if (!isFoldableDef(inst)) continue;
+                    if (getUseCnt(inst.getDefinedRegister()) == 0) {
+                        addUses(inst, -1);
+                        inst.remove();
+                    } else {
+                        selectLea((IRBinaryOperation) inst);
+                    }
+                }
+            }
+        }
+
+        private void addUses(IRInstruction inst, int delta) {
+            for (IRRegister reg : inst.getUsedRegisters()) {
+                if (reg instanceof VirtualRegister) useCntMap.merge((VirtualRegister) reg, delta, Integer::sum);
+            }
+        }
+
+        private int getUseCnt(RegValue reg) {
+            return useCntMap.getOrDefault(reg, 0);
+        }
+
+        private RegValue getAddr(IRInstruction inst) {
+            if (inst instanceof IRLoad && !((IRLoad) inst).isStaticData()) return ((IRLoad) inst).getAddr();
+            if (inst instanceof IRStore && !((IRStore) inst).isStaticData()) return ((IRStore) inst).getAddr();
+            return null;
+        }
+
+        private boolean isSSAReg(RegValue value) {
+            return value instanceof VirtualRegister && defMap.containsKey(value) && !multiDefVregs.contains(value);
+        }
+
+        // whether an operand of def holds the same value when read by user instead, a global being written only
+        // by its definitions and by calls before static data are put in registers
+        private boolean isOperand(RegValue value, IRInstruction def, IRInstruction user) {
+            if (isSSAReg(value)) return true;
+            if (!(value instanceof StaticVar) || def.getParentBB() != user.getParentBB()) return false;
+            for (IRInstruction inst = def; inst != user; inst = inst.getNextInst()) {
+                if (inst == null || inst instanceof IRFunctionCall || inst.getDefinedRegister() == value) return false;
+            }
+            return true;
+        }
+
+        private boolean isInt(long value) {
+            return value == (int) value;
+        }
+
+        // pure arithmetic an address can be made of
+        private boolean isFoldableDef(IRInstruction inst) {
+            if (!(inst instanceof IRBinaryOperation) || !isSSAReg(inst.getDefinedRegister())) return false;
+            IRBinaryOperation.IRBinaryOp op = ((IRBinaryOperation) inst).getOp();
+            return op == ADD || op == SUB || op == MUL || op == SHL;
+        }
+
+        // the address held by reg, taking its definition apart when absorb is set, as read by user
+        private Address matchAddr(IRRegister reg, boolean absorb, IRInstruction user) {
+            Address addr = new Address(reg);
+            if (!absorb || !isSSAReg(reg) || !isFoldableDef(defMap.get(reg))) return addr;
+            IRBinaryOperation def = (IRBinaryOperation) defMap.get(reg);
+            RegValue lhs = def.getLhs(), rhs = def.getRhs();
+            if ((def.getOp() == ADD || def.getOp() == MUL) && lhs instanceof IntImmediate) {
+                RegValue tmp = lhs;
+                lhs = rhs;
+                rhs = tmp;
+            }
+            if (!isOperand(lhs, def, user)) return addr;
+            if (rhs instanceof IntImmediate) {
+                long imm = ((IntImmediate) rhs).getValue();
+                switch (def.getOp()) {
+                    case ADD:
+                    case SUB:
+                        Address inner = matchAddr((IRRegister) lhs, getUseCnt(lhs) == 1, user);
+                        long disp = inner.disp + (def.getOp() == ADD ? imm : -imm);
+                        if (!isInt(disp)) return addr;
+                        inner.disp = disp;
+                        ++inner.numOps;
+                        return inner;
+                    case MUL:
+                        if (imm == 3 || imm == 5 || imm == 9) {
+                            addr.base = addr.index = (IRRegister) lhs;
+                            addr.scale = (int) imm - 1;
+                            addr.numOps = 1;
+                            return addr;
+                        }
+                        return matchScale(addr, (IRRegister) lhs, imm);
+                    case SHL:
+                        return imm >= 0 && imm <= 3 ? matchScale(addr, (IRRegister) lhs, 1 << imm) : addr;
+                    default:
+                        return addr;
+                }
+            }
+            if (def.getOp() != ADD || !isOperand(rhs, def, user)) return addr;
+            // base + index * scale, the scaled one being on either side
+            Address index = matchAddr((IRRegister) rhs, getUseCnt(rhs) == 1, user);
+            IRRegister base = (IRRegister) lhs;
+            if (!isIndex(index)) {
+                index = matchAddr((IRRegister) lhs, getUseCnt(lhs) == 1, user);
+                base = (IRRegister) rhs;
+                if (!isIndex(index)) index = new Address(null);
+            }
+            if (index.index == null) {
+                addr.base = (IRRegister) lhs;
+                addr.index = (IRRegister) rhs;
+            } else {
+                addr.base = base;
+                addr.index = index.index;
+                addr.scale = index.scale;
+            }
+            addr.numOps = index.numOps + 1;
+            return addr;
+        }
+
+        private Address matchScale(Address addr, IRRegister index, long scale) {
+            if (scale != 1 && scale != 2 && scale != 4 && scale != 8) return addr;
+            addr.base = null;
+            addr.index = index;
+            addr.scale = (int) scale;
+            addr.numOps = 1;
+            return addr;
+        }
+
+        // a scaled register alone
+        private boolean isIndex(Address addr) {
+            return addr.base == null && addr.index != null && addr.disp == 0;
+        }
+
+        private void foldAddr(IRInstruction inst) {
+            RegValue addrValue = getAddr(inst);
+            if (!addrOnlyVregs.contains(addrValue)) return;
+            Address addr = matchAddr((IRRegister) addrValue, true, inst);
+            if (addr.numOps == 0) return;
+            if (addr.base == null) {
+                if (addr.scale != 1) return;
+                addr.base = addr.index;
+                addr.index = null;
+            }
+            long disp = addr.disp + (inst instanceof IRLoad ? ((IRLoad) inst).getAddrOffset() : ((IRStore) inst).getAddrOffset());
+            if (!isInt(disp)) return;
+            addUses(inst, -1);
+            if (inst instanceof IRLoad) {
+                IRLoad load = (IRLoad) inst;
+                load.setAddr(addr.base);
+                load.setAddrOffset((int) disp);
+                load.setIndex(addr.index, addr.scale);
+            } else {
+                IRStore store = (IRStore) inst;
+                store.setAddr(addr.base);
+                store.setAddrOffset((int) disp);
+                store.setIndex(addr.index, addr.scale);
+            }
+            addUses(inst, 1);
+        }
+
+        // a lea pays off when it does the work of two instructions, or of a multiplication
+        private void selectLea(IRBinaryOperation inst) {
+            Address addr = matchAddr(inst.getDest(), true, inst);
+            if (addr.numOps == 0 || (addr.numOps == 1 && inst.getOp() != MUL && inst.getOp() != SHL)) return;
+            if (addr.base == null && addr.scale == 1) {
+                addr.base = addr.index;
+                addr.index = null;
+            }
+            IRLea lea = new IRLea(inst.getParentBB(), inst.getDest(), addr.base, addr.index, addr.scale, (int) addr.disp);
+            addUses(inst, -1);
+            addUses(lea, 1);
+            inst.replace(lea);
+            defMap.put((VirtualRegister) inst.getDest(), lea);
+        }
+    }
+}
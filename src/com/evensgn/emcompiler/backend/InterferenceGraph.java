@@ -0,0 +1,72 @@
+package com.evensgn.emcompiler.backend;
+
+import java.util.Arrays;
+
+// interference graph over nodes 0 to n - 1, the ids of virtual registers in a function: a triangular bit matrix
+// answers whether two nodes interfere, and an int array per node lists its neighbours in the order the edges
+// were added, for iteration; reset keeps the arrays, so one graph serves every function allocated by a thread
+public class InterferenceGraph {
+    private int numNodes = 0;
+    // bit of the pair (i, j) with i < j is at j * (j - 1) / 2 + i
+    private long[] matrix = new long[0];
+    private int[][] adjList = new int[0][];
+    private int[] adjSize = new int[0];
+
+    public void reset(int numNodes) {
+        // only the part used by the last graph can be dirty
+        Arrays.fill(matrix, 0, numWords(this.numNodes), 0);
+        Arrays.fill(adjSize, 0, this.numNodes, 0);
+        this.numNodes = numNodes;
+        if (matrix.length < numWords(numNodes)) matrix = new long[numWords(numNodes)];
+        if (adjList.length < numNodes) {
+            adjList = Arrays.copyOf(adjList, numNodes);
+            adjSize = new int[numNodes];
+        }
+    }
+
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+    private static int numWords(int numNodes) {
+        return (int) ((pairIndex(0, numNodes) + 63) >> 6);
+    }
+
+    private static long pairIndex(int i, int j) {
+        return (long) j * (j - 1) / 2 + i;
+    }
+
+    public boolean isAdjacent(int u, int v) {
+        if (u == v) return false;
+        long idx = u < v ? pairIndex(u, v) : pairIndex(v, u);
+        return (matrix[(int) (idx >> 6)] & (1L << idx)) != 0;
+    }
+
+    // false if the edge was there already
+    public boolean addEdge(int u, int v) {
+        if (u == v) return false;
+        long idx = u < v ? pairIndex(u, v) : pairIndex(v, u);
+        int word = (int) (idx >> 6);
+        long bit = 1L << idx;
+        if ((matrix[word] & bit) != 0) return false;
+        matrix[word] |= bit;
+        addAdj(u, v);
+        addAdj(v, u);
+        return true;
+    }
+
+    private void addAdj(int u, int v) {
+        int[] adj = adjList[u];
+        if (adj == null) adj = adjList[u] = new int[4];
+        else if (adjSize[u] == adj.length) adj = adjList[u] = Arrays.copyOf(adj, adj.length * 2);
+        adj[adjSize[u]++] = v;
+    }
+
+    public int getNumAdj(int u) {
+        return adjSize[u];
+    }
+
+    public int getAdj(int u, int k) {
+        return adjList[u][k];
+    }
+}
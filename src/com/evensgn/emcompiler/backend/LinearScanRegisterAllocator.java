@@ -0,0 +1,194 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+import com.evensgn.emcompiler.utils.CompilerError;
+
+import java.util.*;
+
+// linear scan over live intervals by Poletto and Sarkar, for fast compilation of large inputs;
+// see Configuration.isLinearScanAllocator
+public class LinearScanRegisterAllocator {
+    private IRRoot ir;
+    private RegLivelinessAnalysis livelinessAnalysis;
+    private List<PhysicalRegister> physicalRegs;
+
+    public LinearScanRegisterAllocator(IRRoot ir, RegLivelinessAnalysis livelinessAnalysis) {
+        this.ir = ir;
+        this.livelinessAnalysis = livelinessAnalysis;
+        this.physicalRegs = RegisterAllocator.getAllocatableRegs(ir);
+    }
+
+    // live range of a register in the linear order of instructions, holes are not tracked
+    private class Interval {
+        VirtualRegister vreg;
+        int start = Integer.MAX_VALUE, end = -1;
+        int order;
+        // partner of a move, whose register is tried first
+        VirtualRegister hint = null;
+        PhysicalRegister reg = null;
+        boolean spillTemp;
+        boolean crossesCall = false;
+
+        Interval(VirtualRegister vreg, int order) {
+            this.vreg = vreg;
+            this.order = order;
+        }
+
+        void extend(int pos) {
+            if (pos < start) start = pos;
+            if (pos > end) end = pos;
+        }
+    }
+
+    public void run() {
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        new FuncAllocator(irFunction).allocate();
+    }
+
+    private class FuncAllocator {
+        private IRFunction irFunction;
+        private List<PhysicalRegister> colorOrder;
+        private Map<VirtualRegister, Interval> intervalMap = new LinkedHashMap<>();
+        private Set<VirtualRegister> spillTemps = new HashSet<>();
+        private Map<VirtualRegister, StackSlot> slotMap = new HashMap<>();
+
+        FuncAllocator(IRFunction irFunction) {
+            this.irFunction = irFunction;
+        }
+
+        private void allocate() {
+            colorOrder = RegisterAllocator.getColorOrder(irFunction, physicalRegs);
+            while (true) {
+                buildIntervals();
+                scan();
+                if (slotMap.isEmpty()) break;
+                // spill code gets fresh temporaries with short intervals, so a second scan needs no more spills
+                RegisterAllocator.rewriteSpilledRegs(irFunction, slotMap, spillTemps);
+                slotMap.clear();
+                livelinessAnalysis.livelinessAnalysis(irFunction);
+            }
+            Map<VirtualRegister, PhysicalRegister> colorMap = new HashMap<>();
+            for (Interval interval : intervalMap.values()) {
+                colorMap.put(interval.vreg, interval.reg);
+            }
+            RegisterAllocator.assignPhysicalRegs(irFunction, colorMap);
+        }
+
+        private Interval getInterval(VirtualRegister vreg) {
+            Interval interval = intervalMap.get(vreg);
+            if (interval == null) {
+                interval = new Interval(vreg, intervalMap.size());
+                interval.reg = vreg.getForcedPhysicalRegister();
+                interval.spillTemp = spillTemps.contains(vreg);
+                intervalMap.put(vreg, interval);
+            }
+            return interval;
+        }
+
+        // instructions are numbered by two in block order, uses at even and definitions at odd positions,
+        // so that a register dying at an instruction can be reused for its result
+        private void buildIntervals() {
+            intervalMap.clear();
+            for (VirtualRegister argVreg : irFunction.getArgVRegList()) {
+                getInterval(argVreg).extend(0);
+            }
+            InstructionArena arena = irFunction.getInstArena();
+            InstructionArena.InstView inst = arena.view();
+            List<Integer> callPosList = new ArrayList<>();
+            for (int b = 0; b < arena.getNumBBs(); ++b) {
+                int bbStart = arena.getBBStart(b) * 2, bbEnd = arena.getBBEnd(b) * 2;
+                for (int i = arena.getBBStart(b); i < arena.getBBEnd(b); ++i) {
+                    inst.at(i);
+                    int pos = i * 2;
+                    if (inst.getOpcode() == InstructionArena.OP_CALL || inst.getOpcode() == InstructionArena.OP_HEAP_ALLOC) callPosList.add(pos);
+                    for (int k = 0; k < inst.getNumUses(); ++k) getInterval(arena.getVreg(inst.getUse(k))).extend(pos);
+                    if (inst.getDef() >= 0) {
+                        Interval interval = getInterval(arena.getVreg(inst.getDef()));
+                        interval.extend(pos + 1);
+                        if (inst.getMoveSrc() >= 0) {
+                            VirtualRegister src = arena.getVreg(inst.getMoveSrc());
+                            interval.hint = src;
+                            if (getInterval(src).hint == null) getInterval(src).hint = interval.vreg;
+                        }
+                    }
+                }
+                extendBits(arena, livelinessAnalysis.getLiveInSet(irFunction, b), bbStart);
+                extendBits(arena, livelinessAnalysis.getLiveOutSet(irFunction, b), bbEnd - 1);
+            }
+            // an interval lives across a call if it starts at or before the call and ends after its result
+            for (Interval interval : intervalMap.values()) {
+                int k = Collections.binarySearch(callPosList, interval.start);
+                if (k < 0) k = -k - 1;
+                interval.crossesCall = k < callPosList.size() && callPosList.get(k) + 1 < interval.end;
+            }
+        }
+
+        private void extendBits(InstructionArena arena, long[] set, int pos) {
+            for (int w = 0; w < set.length; ++w) {
+                for (long word = set[w]; word != 0; word &= word - 1) {
+                    getInterval(arena.getVreg((w << 6) + Long.numberOfTrailingZeros(word))).extend(pos);
+                }
+            }
+        }
+
+        private void scan() {
+            List<Interval> unhandled = new ArrayList<>();
+            for (Interval interval : intervalMap.values()) {
+                // registers forced to argument registers never share them with others
+                if (interval.vreg.getForcedPhysicalRegister() == null) unhandled.add(interval);
+            }
+            unhandled.sort((a, b) -> a.start != b.start ? Integer.compare(a.start, b.start) : Integer.compare(a.order, b.order));
+            Comparator<Interval> endComparator = (a, b) -> a.end != b.end ? Integer.compare(a.end, b.end) : Integer.compare(a.order, b.order);
+            TreeSet<Interval> active = new TreeSet<>(endComparator);
+            Set<PhysicalRegister> freeRegs = new LinkedHashSet<>(colorOrder);
+
+            for (Interval current : unhandled) {
+                while (!active.isEmpty() && active.first().end < current.start) {
+                    freeRegs.add(active.pollFirst().reg);
+                }
+                if (!freeRegs.isEmpty()) {
+                    current.reg = chooseReg(current, freeRegs);
+                    freeRegs.remove(current.reg);
+                    active.add(current);
+                    continue;
+                }
+                // spill the interval ending last, spill temporaries are never spilled again
+                Interval victim = current.spillTemp ? null : current;
+                for (Iterator<Interval> iter = active.descendingIterator(); iter.hasNext(); ) {
+                    Interval interval = iter.next();
+                    if (interval.spillTemp) continue;
+                    if (victim == null || endComparator.compare(interval, victim) > 0) victim = interval;
+                    break;
+                }
+                if (victim == null) {
+                    throw new CompilerError(String.format("no register left for spill temporary %s in function %s, all registers hold spill temporaries",
+                            current.vreg.getName(), irFunction.getName()));
+                }
+                if (victim != current) {
+                    active.remove(victim);
+                    current.reg = victim.reg;
+                    active.add(current);
+                }
+                victim.reg = null;
+                slotMap.put(victim.vreg, RegisterAllocator.getSpillSlot(irFunction, victim.vreg));
+            }
+        }
+
+        private PhysicalRegister chooseReg(Interval current, Set<PhysicalRegister> freeRegs) {
+            if (current.hint != null) {
+                Interval hintInterval = intervalMap.get(current.hint);
+                if (hintInterval.reg != null && freeRegs.contains(hintInterval.reg)) return hintInterval.reg;
+            }
+            List<PhysicalRegister> okRegs = new ArrayList<>();
+            for (PhysicalRegister preg : colorOrder) {
+                if (freeRegs.contains(preg)) okRegs.add(preg);
+            }
+            return okRegs.isEmpty() ? null : RegisterAllocator.getPreferredColor(okRegs, current.crossesCall);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.util.*;
+
+// loop-invariant code motion on SSA form: every natural loop gets a preheader, then computations whose
+// operands are all defined outside the loop are moved there, inner loops first
+public class LoopInvariantHoister {
+    private IRRoot ir;
+
+    public LoopInvariantHoister(IRRoot ir) {
+        this.ir = ir;
+    }
+
+    public void run() {
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        new FuncHoister(irFunction).hoist();
+    }
+
+    private class Loop {
+        NaturalLoop naturalLoop;
+        BasicBlock header, preheader = null;
+        Set<BasicBlock> body;
+        boolean hasMemWrite = false;
+
+        Loop(NaturalLoop naturalLoop) {
+            this.naturalLoop = naturalLoop;
+            header = naturalLoop.getHeader();
+            body = naturalLoop.getBody();
+            for (BasicBlock bb : body) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (inst instanceof IRStore || inst instanceof IRFunctionCall) hasMemWrite = true;
+                }
+            }
+        }
+    }
+
+    private class FuncHoister {
+        private IRFunction irFunction;
+        private DominatorTree domTree;
+        private List<Loop> loops;
+        private Map<VirtualRegister, BasicBlock> defBBMap = new HashMap<>();
+        private Set<VirtualRegister> multiDefVregs = new HashSet<>();
+
+        FuncHoister(IRFunction irFunction) {
+            this.irFunction = irFunction;
+        }
+
+        private void hoist() {
+            domTree = new DominatorTree(irFunction);
+            findLoops();
+            if (loops.isEmpty()) return;
+            boolean bbGraphChanged = false;
+            for (Loop loop : loops) {
+                if (insertPreheader(loop)) bbGraphChanged = true;
+            }
+            if (bbGraphChanged) {
+                // block orders are computed again on demand
+                irFunction.setNewBBGraph(irFunction.getStartBB(), irFunction.getEndBB());
+                domTree = new DominatorTree(irFunction);
+                findLoops();
+            }
+            collectDefs();
+            for (Loop loop : loops) {
+                loop.preheader = loop.naturalLoop.getPreheader(domTree);
+                if (loop.preheader != null) hoistLoop(loop);
+            }
+        }
+
+        private void findLoops() {
+            loops = new ArrayList<>();
+            for (NaturalLoop naturalLoop : NaturalLoop.findLoops(domTree)) {
+                if (naturalLoop.getHeader() != irFunction.getStartBB()) loops.add(new Loop(naturalLoop));
+            }
+        }
+
+        // returns whether a new block is made, which is needed unless the only entry already jumps to the header alone
+        private boolean insertPreheader(Loop loop) {
+            List<BasicBlock> entries = new ArrayList<>();
+            for (BasicBlock pred : domTree.getPreds(loop.header)) {
+                if (!loop.body.contains(pred)) entries.add(pred);
+            }
+            if (entries.size() == 1 && entries.get(0).getLastInst() instanceof IRJump) return false;
+
+            BasicBlock preheader = new BasicBlock(irFunction, "preheader");
+            preheader.setJumpInst(new IRJump(preheader, loop.header));
+            Map<Object, Object> renameMap = Collections.singletonMap(loop.header, preheader);
+            for (BasicBlock entry : entries) {
+                IRJumpInstruction jumpInst = (IRJumpInstruction) entry.getLastInst();
+                jumpInst.remove();
+                entry.setJumpInst(jumpInst.copyRename(renameMap));
+            }
+            for (IRInstruction inst = loop.header.getFirstInst(); inst instanceof IRPhi; inst = inst.getNextInst()) {
+                IRPhi phi = (IRPhi) inst;
+                IRPhi entryPhi = new IRPhi(preheader, new VirtualRegister(phi.getDest().getName()));
+                Set<RegValue> entryValues = new HashSet<>();
+                for (BasicBlock entry : entries) {
+                    RegValue value = phi.getPaths().get(entry);
+                    if (value == null) continue;
+                    phi.removePath(entry);
+                    entryPhi.setPath(entry, value);
+                    entryValues.add(value);
+                }
+                if (entryValues.isEmpty()) continue;
+                if (entryValues.size() == 1) {
+                    phi.setPath(preheader, entryValues.iterator().next());
+                } else {
+                    preheader.getFirstInst().prependInst(entryPhi);
+                    phi.setPath(preheader, entryPhi.getDest());
+                }
+            }
+            return true;
+        }
+
+        private void collectDefs() {
+            for (VirtualRegister argVreg : irFunction.getArgVRegList()) defBBMap.put(argVreg, null);
+            for (BasicBlock bb : domTree.getBBList()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (!(inst.getDefinedRegister() instanceof VirtualRegister)) continue;
+                    VirtualRegister vreg = (VirtualRegister) inst.getDefinedRegister();
+                    if (defBBMap.containsKey(vreg)) multiDefVregs.add(vreg);
+                    defBBMap.put(vreg, bb);
+                }
+            }
+        }
+
+        private boolean isInvariant(Loop loop, RegValue value) {
+            if (value instanceof IntImmediate) return true;
+            if (!(value instanceof VirtualRegister) || multiDefVregs.contains(value) || !defBBMap.containsKey(value)) return false;
+            return !loop.body.contains(defBBMap.get(value));
+        }
+
+        // whether the block runs in every iteration and before leaving the loop, so that a load in it may be done
+        // in the preheader without reading memory the loop never reads
+        private boolean isAlwaysExecuted(Loop loop, BasicBlock bb) {
+            for (BasicBlock bodyBB : loop.body) {
+                for (BasicBlock succ : RegLivelinessAnalysis.successors(bodyBB)) {
+                    if ((succ == loop.header || !loop.body.contains(succ)) && !domTree.dominates(bb, bodyBB)) return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isHoistable(Loop loop, IRInstruction inst) {
+            IRRegister dest = inst.getDefinedRegister();
+            if (!(dest instanceof VirtualRegister) || multiDefVregs.contains(dest)) return false;
+            if (inst instanceof IRBinaryOperation) {
+                IRBinaryOperation binOp = (IRBinaryOperation) inst;
+                if (binOp.getOp() == IRBinaryOperation.IRBinaryOp.DIV || binOp.getOp() == IRBinaryOperation.IRBinaryOp.MOD) {
+                    // a division may trap, only the ones by a nonzero constant are moved
+                    if (!(binOp.getRhs() instanceof IntImmediate) || ((IntImmediate) binOp.getRhs()).getValue() == 0) return false;
+                }
+            } else if (inst instanceof IRLoad) {
+                IRLoad load = (IRLoad) inst;
+                if (load.isStaticData() || (!load.isLengthLoad() && loop.hasMemWrite)) return false;
+                if (!isAlwaysExecuted(loop, inst.getParentBB())) return false;
+            } else if (!(inst instanceof IRComparison || inst instanceof IRUnaryOperation)) {
+                return false;
+            }
+            for (RegValue operand : inst.getUsedRegValues()) {
+                if (!isInvariant(loop, operand)) return false;
+            }
+            return true;
+        }
+
+        private void hoistLoop(Loop loop) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (BasicBlock bb : domTree.getBBList()) {
+                    if (!loop.body.contains(bb)) continue;
+                    IRInstruction nextInst;
+                    for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = nextInst) {
+                        nextInst = inst.getNextInst();
+                        if (!isHoistable(loop, inst)) continue;
+                        inst.remove();
+                        loop.preheader.getLastInst().prependInst(inst.copyRename(Collections.singletonMap(bb, loop.preheader)));
+                        defBBMap.put((VirtualRegister) inst.getDefinedRegister(), loop.preheader);
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+// loop depth of basic blocks, from the natural loops of back edges whose target dominates their source
+public class LoopNestingAnalysis {
+    private IRRoot ir;
+
+    public LoopNestingAnalysis(IRRoot ir) {
+        this.ir = ir;
+    }
+
+    public void run() {
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        DominatorTree domTree = new DominatorTree(irFunction);
+        for (BasicBlock bb : domTree.getBBList()) bb.setLoopDepth(0);
+        for (NaturalLoop loop : NaturalLoop.findLoops(domTree)) {
+            for (BasicBlock bb : loop.getBody()) bb.setLoopDepth(bb.getLoopDepth() + 1);
+        }
+    }
+}
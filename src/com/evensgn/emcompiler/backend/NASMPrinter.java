@@ -8,16 +8,25 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import static com.evensgn.emcompiler.ir.IRBinaryOperation.IRBinaryOp.*;
+import static com.evensgn.emcompiler.nasm.NASMRegisterSet.rdx;
 
 public class NASMPrinter implements IRVisitor {
     private PrintStream out;
     private Map<String, Integer> idCounter = new HashMap<>();
-    private Map<Object, String> idMap = new HashMap<>();
-    private PhysicalRegister preg0, preg1;
+    private Map<StaticData, String> dataIdMap = new HashMap<>();
+    // block labels by function id and block id
+    private String[][] bbIds;
+    private PhysicalRegister preg0;
+    private BasicBlock mainStartBB, nextBB;
+    // counter indices of the sites in an instrumented build, copies of a site share its counter
+    private Map<String, Integer> counterIdxMap = null;
 
     public NASMPrinter(PrintStream out) {
         this.out = out;
@@ -32,19 +41,23 @@ public class NASMPrinter implements IRVisitor {
     }
 
     private String dataId(StaticData data) {
-        String id = idMap.get(data);
+        String id = dataIdMap.get(data);
         if (id == null) {
             id = "__static_data_" + newId(data.getName());
-            idMap.put(data, id);
+            dataIdMap.put(data, id);
         }
         return id;
     }
 
     private String bbId(BasicBlock bb) {
-        String id = idMap.get(bb);
+        int funcId = bb.getFunc().getId();
+        if (bbIds[funcId] == null || bbIds[funcId].length <= bb.getId()) {
+            bbIds[funcId] = bbIds[funcId] == null ? new String[bb.getFunc().getNumBBIds()] : Arrays.copyOf(bbIds[funcId], bb.getFunc().getNumBBIds());
+        }
+        String id = bbIds[funcId][bb.getId()];
         if (id == null) {
             id = "__block_" + newId(bb.getName());
-            idMap.put(bb, id);
+            bbIds[funcId][bb.getId()] = id;
         }
         return id;
     }
@@ -52,9 +65,11 @@ public class NASMPrinter implements IRVisitor {
     @Override
     public void visit(IRRoot node) {
         preg0 = node.getPreg0();
-        preg1 = node.getPreg1();
 
-        idMap.put(node.getFuncs().get("main").getStartBB(), "main");
+        mainStartBB = node.getFuncs().get("main").getStartBB();
+        bbIds = new String[node.getNumFuncIds()][];
+        bbIds[mainStartBB.getFunc().getId()] = new String[mainStartBB.getFunc().getNumBBIds()];
+        bbIds[mainStartBB.getFunc().getId()][mainStartBB.getId()] = "main";
 
         out.println("\t\tglobal\tmain");
         out.println();
@@ -62,6 +77,8 @@ public class NASMPrinter implements IRVisitor {
         out.println("\t\textern\tmalloc");
         out.println();
 
+        if (Configuration.getInstrumentProfileFile() != null) printProfileTable(node);
+
         if (node.getStaticDataList().size() > 0) {
             isBssSection = true;
             out.println("\t\tsection\t.bss");
@@ -99,19 +116,69 @@ public class NASMPrinter implements IRVisitor {
         }
     }
 
+    // counters in .bss and the table read by __builtin_profile_dump in .data:
+    // number of counters, profile file name, counters, then the site name of each counter
+    private void printProfileTable(IRRoot node) {
+        counterIdxMap = new LinkedHashMap<>();
+        for (IRFunction irFunction : node.getFuncs().values()) {
+            for (BasicBlock bb : irFunction.getReversePostOrder()) {
+                addCounter(ExecutionProfile.siteName(bb));
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (inst instanceof IRFunctionCall) addCounter(ExecutionProfile.siteName((IRFunctionCall) inst));
+                }
+            }
+        }
+        out.println("\t\tsection\t.bss");
+        out.printf("__profile_counters:\tresq\t%d\n", Math.max(counterIdxMap.size(), 1));
+        out.println();
+        out.println("\t\tsection\t.data");
+        out.println("__profile_table:");
+        out.printf("\t\tdq\t\t%d\n", counterIdxMap.size());
+        out.println("\t\tdq\t\t__profile_file");
+        out.println("\t\tdq\t\t__profile_counters");
+        for (int i = 0; i < counterIdxMap.size(); ++i) {
+            out.printf("\t\tdq\t\t__profile_name_%d\n", i);
+        }
+        out.println("__profile_file:");
+        out.printf("\t\tdb\t\t%s\n", staticStrDataSection(Configuration.getInstrumentProfileFile()));
+        int counterIdx = 0;
+        for (String siteName : counterIdxMap.keySet()) {
+            out.printf("__profile_name_%d:\n", counterIdx++);
+            out.printf("\t\tdb\t\t%s\n", staticStrDataSection(siteName));
+        }
+        out.println();
+    }
+
+    private void addCounter(String siteName) {
+        if (siteName != null && !counterIdxMap.containsKey(siteName)) counterIdxMap.put(siteName, counterIdxMap.size());
+    }
+
+    // blocks and calls made by optimizations have no site and are not counted
+    private void printCounterInc(String siteName) {
+        if (counterIdxMap == null || siteName == null) return;
+        out.printf("\t\tinc\t\tqword [__profile_counters+%d]\n", counterIdxMap.get(siteName) * 8);
+    }
+
     @Override
     public void visit(IRFunction node) {
         out.printf("# function %s\n\n", node.getName());
-        int bbIdx = 0;
-        for (BasicBlock bb : node.getReversePostOrder()) {
-            bb.accept(this);
-            ++bbIdx;
+        List<BasicBlock> layout = node.getLayout();
+        for (int i = 0; i < layout.size(); ++i) {
+            // jumps to the next block are left out
+            nextBB = i + 1 < layout.size() ? layout.get(i + 1) : null;
+            layout.get(i).accept(this);
         }
     }
 
     @Override
     public void visit(BasicBlock node) {
         out.printf("%s:\n", bbId(node));
+        if (counterIdxMap != null && node == mainStartBB) {
+            // nothing is live yet, the counters are written by an exit handler
+            out.println("\t\tmov\t\trdi, __profile_table");
+            out.println("\t\tcall\t__builtin_profile_start");
+        }
+        printCounterInc(ExecutionProfile.siteName(node));
         for (IRInstruction inst = node.getFirstInst(); inst != null; inst = inst.getNextInst()) {
             inst.accept(this);
         }
@@ -121,23 +188,25 @@ public class NASMPrinter implements IRVisitor {
     @Override
     public void visit(IRBranch node) {
         if (node.getCond() instanceof IntImmediate) {
-            int boolValue = ((IntImmediate) node.getCond()).getValue();
-            out.printf("\t\tjmp\t\t%s\n", boolValue == 1 ? bbId(node.getThenBB()) : bbId(node.getElseBB()));
+            BasicBlock targetBB = ((IntImmediate) node.getCond()).getValue() == 1 ? node.getThenBB() : node.getElseBB();
+            if (targetBB != nextBB) out.printf("\t\tjmp\t\t%s\n", bbId(targetBB));
             return;
         }
         out.print("\t\tcmp\t\t");
         node.getCond().accept(this);
         out.println(", 1");
+        if (node.getThenBB() == nextBB) {
+            // the condition is inverted to fall through into the then block
+            out.printf("\t\tjne\t\t%s\n", bbId(node.getElseBB()));
+            return;
+        }
         out.printf("\t\tje\t\t%s\n", bbId(node.getThenBB()));
-        // remove meaningless jump
-        if (node.getElseBB().getPostOrderIdx() + 1 == node.getParentBB().getPostOrderIdx()) return;
-        out.printf("\t\tjmp\t\t%s\n", bbId(node.getElseBB()));
+        if (node.getElseBB() != nextBB) out.printf("\t\tjmp\t\t%s\n", bbId(node.getElseBB()));
     }
 
     @Override
     public void visit(IRJump node) {
-        // remove meaningless jump
-        if (node.getTargetBB().getPostOrderIdx() + 1 == node.getParentBB().getPostOrderIdx()) return;
+        if (node.getTargetBB() == nextBB) return;
         out.printf("\t\tjmp\t\t%s\n", bbId(node.getTargetBB()));
     }
 
@@ -168,10 +237,148 @@ public class NASMPrinter implements IRVisitor {
         out.println();
     }
 
+    // division by a register, or by zero, is printed as idiv with the divisor in rbx and rdx kept in preg0
+    static boolean isDivByReg(IRBinaryOperation inst) {
+        if (inst.getOp() != DIV && inst.getOp() != MOD) return false;
+        return !(inst.getRhs() instanceof IntImmediate) || ((IntImmediate) inst.getRhs()).getValue() == 0;
+    }
+
+    // whether the printed operation changes rbx: division by a register keeps the divisor there, division by
+    // a constant other than a power of two keeps rdx there, and shifts by a register keep rcx there
+    static boolean usesRbx(IRBinaryOperation inst) {
+        if (isDivByReg(inst)) return true;
+        if (inst.getOp() == DIV || inst.getOp() == MOD) {
+            long divisor = Math.abs((long) ((IntImmediate) inst.getRhs()).getValue());
+            return (divisor & (divisor - 1)) != 0;
+        }
+        return (inst.getOp() == SHL || inst.getOp() == SHR) && !(inst.getRhs() instanceof IntImmediate);
+    }
+
+    // magic number m and shift s of signed 64-bit division by d, |d| > 1, Hacker's Delight 10-1: the quotient
+    // of n is the high half of m * n, plus n if d > 0 and m < 0, minus n if d < 0 and m > 0, shifted right
+    // by s, plus one if negative
+    static long[] getDivMagic(long d) {
+        final long two63 = Long.MIN_VALUE;
+        long ad = Math.abs(d);
+        long t = two63 + (d >>> 63);
+        long anc = t - 1 - Long.remainderUnsigned(t, ad);
+        int p = 63;
+        long q1 = Long.divideUnsigned(two63, anc), r1 = two63 - q1 * anc;
+        long q2 = Long.divideUnsigned(two63, ad), r2 = two63 - q2 * ad;
+        long delta;
+        do {
+            ++p;
+            q1 <<= 1;
+            r1 <<= 1;
+            if (Long.compareUnsigned(r1, anc) >= 0) {
+                ++q1;
+                r1 -= anc;
+            }
+            q2 <<= 1;
+            r2 <<= 1;
+            if (Long.compareUnsigned(r2, ad) >= 0) {
+                ++q2;
+                r2 -= ad;
+            }
+            delta = ad - r2;
+        } while (Long.compareUnsigned(q1, delta) < 0 || (q1 == delta && r1 == 0));
+        long m = q2 + 1;
+        return new long[]{d < 0 ? -m : m, p - 64};
+    }
+
+    // rax is free in printed code, rbx keeps rdx when the high half of a multiplication is needed
+    private void printDivByConst(IRBinaryOperation node) {
+        boolean isDiv = node.getOp() == DIV;
+        long d = ((IntImmediate) node.getRhs()).getValue();
+        if (node.getLhs() instanceof IntImmediate) {
+            long n = ((IntImmediate) node.getLhs()).getValue();
+            out.print("\t\tmov\t\t");
+            node.getDest().accept(this);
+            out.println(", " + (isDiv ? n / d : n % d));
+            return;
+        }
+        if (d == 1 || d == -1) {
+            out.print("\t\tmov\t\t");
+            node.getDest().accept(this);
+            out.print(", ");
+            if (isDiv) node.getLhs().accept(this);
+            else out.print("0");
+            out.println();
+            if (isDiv && d == -1) {
+                out.print("\t\tneg\t\t");
+                node.getDest().accept(this);
+                out.println();
+            }
+            return;
+        }
+        long ad = Math.abs(d);
+        if ((ad & (ad - 1)) == 0) {
+            // n + 2^k - 1 for negative n, so that the shift rounds toward zero
+            int k = Long.numberOfTrailingZeros(ad);
+            out.print("\t\tmov\t\trax, ");
+            node.getLhs().accept(this);
+            out.println();
+            if (k == 1) {
+                out.println("\t\tshr\t\trax, 63");
+            } else {
+                out.println("\t\tsar\t\trax, 63");
+                out.println("\t\tshr\t\trax, " + (64 - k));
+            }
+            out.print("\t\tadd\t\trax, ");
+            node.getLhs().accept(this);
+            out.println();
+            if (isDiv) {
+                out.println("\t\tsar\t\trax, " + k);
+                if (d < 0) out.println("\t\tneg\t\trax");
+            } else {
+                out.println("\t\tand\t\trax, " + (-ad));
+                out.println("\t\tneg\t\trax");
+                out.print("\t\tadd\t\trax, ");
+                node.getLhs().accept(this);
+                out.println();
+            }
+        } else {
+            long[] magic = getDivMagic(d);
+            // the dividend is read from rbx once the multiplication has changed rdx
+            String savedLhs = node.getLhs() == rdx ? "rbx" : null;
+            out.println("\t\tmov\t\trbx, rdx");
+            out.println("\t\tmov\t\trax, " + magic[0]);
+            out.print("\t\timul\t");
+            node.getLhs().accept(this);
+            out.println();
+            if (d > 0 && magic[0] < 0 || d < 0 && magic[0] > 0) {
+                out.print("\t\t" + (d > 0 ? "add" : "sub") + "\t\trdx, ");
+                printDividend(node, savedLhs);
+                out.println();
+            }
+            if (magic[1] > 0) out.println("\t\tsar\t\trdx, " + magic[1]);
+            out.println("\t\tmov\t\trax, rdx");
+            out.println("\t\tshr\t\trax, 63");
+            out.println("\t\tadd\t\trax, rdx");
+            if (!isDiv) {
+                out.println("\t\timul\trax, rax, " + d);
+                out.println("\t\tneg\t\trax");
+                out.print("\t\tadd\t\trax, ");
+                printDividend(node, savedLhs);
+                out.println();
+            }
+            if (node.getDest() != rdx) out.println("\t\tmov\t\trdx, rbx");
+        }
+        out.print("\t\tmov\t\t");
+        node.getDest().accept(this);
+        out.println(", rax");
+    }
+
+    private void printDividend(IRBinaryOperation node, String savedName) {
+        if (savedName != null) out.print(savedName);
+        else node.getLhs().accept(this);
+    }
+
     @Override
     public void visit(IRBinaryOperation node) {
-        if (node.getOp() == DIV || node.getOp() == MOD) {
-            // to be optimized: not pushing rdx
+        if ((node.getOp() == DIV || node.getOp() == MOD) && !isDivByReg(node)) {
+            printDivByConst(node);
+        } else if (node.getOp() == DIV || node.getOp() == MOD) {
             out.print("\t\tmov\t\trbx, ");
             node.getRhs().accept(this);
             out.println();
@@ -179,7 +386,7 @@ public class NASMPrinter implements IRVisitor {
             node.getLhs().accept(this);
             out.println();
             out.println("\t\tmov\t\t" + preg0.getName() + ", rdx");
-            out.println("\t\tcdq");
+            out.println("\t\tcqo");
             out.println("\t\tidiv\trbx");
             out.print("\t\tmov\t\t");
             node.getDest().accept(this);
@@ -188,7 +395,8 @@ public class NASMPrinter implements IRVisitor {
             } else {
                 out.println(", rdx");
             }
-            out.println("\t\tmov\t\trdx, " + preg0.getName());
+            // a result in rdx itself is not to be overwritten
+            if (node.getDest() != rdx) out.println("\t\tmov\t\trdx, " + preg0.getName());
 
             /*
             // to be optimized: not pushing rdx, rbx
@@ -212,6 +420,11 @@ public class NASMPrinter implements IRVisitor {
             }
             out.println("\t\tpop\t\trdx");
             out.println("\t\tadd\t\trsp, 8");*/
+        } else if ((node.getOp() == SHL || node.getOp() == SHR) && node.getRhs() instanceof IntImmediate) {
+            out.print(node.getOp() == SHL ? "\t\tsal\t\t" : "\t\tsar\t\t");
+            node.getLhs().accept(this);
+            // the count is taken modulo 64, as cl would be
+            out.println(", " + (((IntImmediate) node.getRhs()).getValue() & 63));
         } else if (node.getOp() == SHL ||
                 node.getOp() == SHR) {
             out.println("\t\tmov\t\trbx, rcx");
@@ -381,14 +594,9 @@ public class NASMPrinter implements IRVisitor {
         }
         out.print("\t\tmov\t\t");
         node.getDest().accept(this);
-        out.print(", " + sizeStr(node.getSize()) + " [");
-        node.getAddr().accept(this);
-        if (node.getAddrOffset() < 0) {
-            out.print(node.getAddrOffset());
-        } else if (node.getAddrOffset() > 0) {
-            out.print("+" + node.getAddrOffset());
-        }
-        out.println("]");
+        out.print(", " + sizeStr(node.getSize()) + " ");
+        printAddr((IRRegister) node.getAddr(), node.getIndex(), node.getScale(), node.getAddrOffset());
+        out.println();
     }
 
     @Override
@@ -401,22 +609,45 @@ public class NASMPrinter implements IRVisitor {
             out.println();
             return;
         }
-        out.print("\t\tmov\t\t" + sizeStr(node.getSize()) + " [");
-        node.getAddr().accept(this);
-        if (node.getAddrOffset() < 0) {
-            out.print(node.getAddrOffset());
-        } else if (node.getAddrOffset() > 0) {
-            out.print("+" + node.getAddrOffset());
-        }
-        out.print("], ");
+        out.print("\t\tmov\t\t" + sizeStr(node.getSize()) + " ");
+        printAddr((IRRegister) node.getAddr(), node.getIndex(), node.getScale(), node.getAddrOffset());
+        out.print(", ");
         node.getValue().accept(this);
         out.println();
     }
 
+    // [base+index*scale+offset], base or index may be null
+    private void printAddr(IRRegister base, IRRegister index, int scale, int offset) {
+        out.print("[");
+        if (base != null) base.accept(this);
+        if (index != null) {
+            if (base != null) out.print("+");
+            index.accept(this);
+            if (scale != 1) out.print("*" + scale);
+        }
+        if (offset < 0) {
+            out.print(offset);
+        } else if (offset > 0 || (base == null && index == null)) {
+            out.print("+" + offset);
+        }
+        out.print("]");
+    }
+
+    @Override
+    public void visit(IRLea node) {
+        out.print("\t\tlea\t\t");
+        node.getDest().accept(this);
+        out.print(", ");
+        printAddr(node.getBase(), node.getIndex(), node.getScale(), node.getOffset());
+        out.println();
+    }
+
     @Override
     public void visit(IRFunctionCall node) {
-        if (node.getFunc().isBuiltIn()) out.println("\t\tcall\t" + node.getFunc().getBuiltInCallLabel());
-        else out.println("\t\tcall\t" + bbId(node.getFunc().getStartBB()));
+        printCounterInc(ExecutionProfile.siteName(node));
+        String op = node.isTailCall() ? "jmp\t\t" : "call\t";
+        if (node.getFunc().isBuiltIn()) out.println("\t\t" + op + node.getFunc().getBuiltInCallLabel());
+        else out.println("\t\t" + op + bbId(node.getFunc().getStartBB()));
     }
 
     @Override
@@ -438,6 +669,11 @@ public class NASMPrinter implements IRVisitor {
         out.println();
     }
 
+    @Override
+    public void visit(IRPhi node) {
+        throw new CompilerError("should not visit phi node in NASMPrinter");
+    }
+
     @Override
     public void visit(VirtualRegister node) {
         throw new CompilerError("should not visit virtual register node in NASMPrinter");
@@ -16,92 +16,305 @@ public class NASMTransformer {
     }
 
     private class FuncInfo {
-        List<PhysicalRegister> usedCallerSaveRegs = new ArrayList<>();
-        List<PhysicalRegister> usedCalleeSaveRegs = new ArrayList<>();
-        Set<PhysicalRegister> recursiveUsedRegs = new HashSet<>();
+        // callee save registers pushed in the prologue, rbp last if the function keeps a frame
+        List<PhysicalRegister> pushedCalleeSaveRegs = new ArrayList<>();
+        // callee save registers saved in frame slots by shrink-wrapping, by the block saving them,
+        // and those restored at each exit
+        Map<PhysicalRegister, BasicBlock> wrappedSaveBBMap = new LinkedHashMap<>();
+        Map<BasicBlock, List<PhysicalRegister>> exitRestoreRegsMap = new HashMap<>();
+        boolean hasCall = false, useRbp;
+        // registers changed by the function itself, and by it together with its callees
+        long clobberMask = 0, recursiveClobberMask = 0;
         Map<StackSlot, Integer> stackSlotOffsetMap = new HashMap<>();
+        // caller save registers live across each call, kept in frame slots of their own during the call,
+        // which callee save registers saved by shrink-wrapping also get
+        Map<IRInstruction, List<PhysicalRegister>> callSaveRegsMap = new HashMap<>();
+        Map<PhysicalRegister, Integer> saveSlotOffsetMap = new LinkedHashMap<>();
         int numExtraArgs, numStackSlot = 0;
     }
 
-    private Map<IRFunction, FuncInfo> funcInfoMap = new HashMap<>();
+    // by function id
+    private FuncInfo[] funcInfos;
+    private static final List<PhysicalRegister> allRegList = new ArrayList<>(allRegs);
+
+    private static long regMask(IRRegister reg) {
+        return reg instanceof PhysicalRegister ? 1L << allRegList.indexOf(reg) : 0;
+    }
+
+    private static long regMask(Collection<PhysicalRegister> pregs) {
+        long mask = 0;
+        for (PhysicalRegister preg : pregs) mask |= regMask(preg);
+        return mask;
+    }
+
+    private static long transferInst(IRInstruction inst, long live) {
+        live &= ~regMask(inst.getDefinedRegister());
+        for (IRRegister reg : inst.getUsedRegisters()) live |= regMask(reg);
+        return live;
+    }
+
+    // a function changes the registers given to it, rax, which printed code uses freely, the argument
+    // registers of its calls, and what malloc may change if it allocates; rbx, rcx and rdx used by division
+    // and shifts are restored or callee save
+    private long getOwnClobberMask(IRFunction irFunction) {
+        long mask = regMask(irFunction.getUsedPhysicalGeneralRegs()) | regMask(rax);
+        for (BasicBlock bb : irFunction.getReversePostOrder()) {
+            for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                if (inst instanceof IRFunctionCall) mask |= getArgRegMask((IRFunctionCall) inst);
+                else if (inst instanceof IRHeapAlloc) mask |= regMask(libcClobberedRegs);
+            }
+        }
+        return mask;
+    }
+
+    private long getArgRegMask(IRFunctionCall funcCall) {
+        return regMask(arg6.subList(0, Math.min(funcCall.getArgs().size(), arg6.size())));
+    }
+
+    // the callee and its callees, and the calling code setting arguments and reading the result
+    private long getClobberMask(IRFunctionCall funcCall) {
+        return funcInfos[funcCall.getFunc().getId()].recursiveClobberMask | getArgRegMask(funcCall) | regMask(rax);
+    }
+
+    // liveliness of physical registers after allocation, a caller save register is saved around a call
+    // only if it is live after the call and the callee may change it
+    private void findCallSaveRegs(IRFunction irFunction, FuncInfo funcInfo) {
+        List<BasicBlock> bbList = irFunction.getReversePostOrder();
+        long[] liveIn = new long[irFunction.getNumBBIds()];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = bbList.size() - 1; i >= 0; --i) {
+                BasicBlock bb = bbList.get(i);
+                long live = 0;
+                for (BasicBlock succBB : RegLivelinessAnalysis.successors(bb)) live |= liveIn[succBB.getId()];
+                for (IRInstruction inst = bb.getLastInst(); inst != null; inst = inst.getPrevInst()) {
+                    live = transferInst(inst, live);
+                }
+                if (live != liveIn[bb.getId()]) {
+                    liveIn[bb.getId()] = live;
+                    changed = true;
+                }
+            }
+        }
+
+        long callerSaveMask = regMask(callerSaveRegs), saveSlotMask = 0;
+        for (BasicBlock bb : bbList) {
+            long live = 0;
+            for (BasicBlock succBB : RegLivelinessAnalysis.successors(bb)) live |= liveIn[succBB.getId()];
+            for (IRInstruction inst = bb.getLastInst(); inst != null; inst = inst.getPrevInst()) {
+                long saveMask = 0;
+                if (inst instanceof IRFunctionCall && !((IRFunctionCall) inst).isTailCall()) {
+                    saveMask = live & callerSaveMask & getClobberMask((IRFunctionCall) inst);
+                } else if (inst instanceof IRHeapAlloc) {
+                    saveMask = live & callerSaveMask & regMask(libcClobberedRegs);
+                }
+                saveMask &= ~regMask(inst.getDefinedRegister());
+                if (saveMask != 0) {
+                    List<PhysicalRegister> saveRegs = new ArrayList<>();
+                    for (PhysicalRegister preg : allRegList) {
+                        if ((saveMask & regMask(preg)) != 0) saveRegs.add(preg);
+                    }
+                    funcInfo.callSaveRegsMap.put(inst, saveRegs);
+                    saveSlotMask |= saveMask;
+                }
+                live = transferInst(inst, live);
+            }
+        }
+        for (PhysicalRegister preg : allRegList) {
+            if ((saveSlotMask & regMask(preg)) != 0) funcInfo.saveSlotOffsetMap.put(preg, 0);
+        }
+    }
+
+    private boolean isTailCallBB(BasicBlock bb) {
+        for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+            if (inst instanceof IRFunctionCall && ((IRFunctionCall) inst).isTailCall()) return true;
+        }
+        return false;
+    }
+
+    private BasicBlock commonDominator(DominatorTree domTree, BasicBlock bb1, BasicBlock bb2) {
+        while (!domTree.dominates(bb1, bb2)) bb1 = domTree.getIdom(bb1);
+        return bb1;
+    }
+
+    // shrink-wrapping: a callee save register is saved at the start of the nearest block outside loops
+    // dominating every block using it, and restored on the edges leaving the blocks that one dominates and
+    // at the exits it dominates, so paths not using the register skip both; a register saved on every path
+    // is pushed in the prologue instead, as are all of them in a function without exits
+    private void shrinkWrap(IRFunction irFunction, FuncInfo funcInfo, DominatorTree domTree) {
+        List<BasicBlock> exitBBs = new ArrayList<>();
+        Map<PhysicalRegister, BasicBlock> saveBBMap = new LinkedHashMap<>();
+        for (BasicBlock bb : domTree.getBBList()) {
+            if (bb == irFunction.getEndBB() || isTailCallBB(bb)) exitBBs.add(bb);
+            for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                if (inst instanceof IRHeapAlloc || inst instanceof IRFunctionCall && !((IRFunctionCall) inst).isTailCall()) {
+                    funcInfo.hasCall = true;
+                }
+                List<IRRegister> regs = new ArrayList<>(inst.getUsedRegisters());
+                regs.add(inst.getDefinedRegister());
+                if (inst instanceof IRBinaryOperation && NASMPrinter.usesRbx((IRBinaryOperation) inst)) regs.add(rbx);
+                for (IRRegister reg : regs) {
+                    if (!(reg instanceof PhysicalRegister) || !((PhysicalRegister) reg).isCalleeSave() || reg == rbp) continue;
+                    BasicBlock saveBB = saveBBMap.get(reg);
+                    saveBBMap.put((PhysicalRegister) reg, saveBB == null ? bb : commonDominator(domTree, saveBB, bb));
+                }
+            }
+        }
+
+        for (Map.Entry<PhysicalRegister, BasicBlock> entry : saveBBMap.entrySet()) {
+            BasicBlock saveBB = entry.getValue();
+            while (saveBB.getLoopDepth() > 0 && domTree.getIdom(saveBB) != null) saveBB = domTree.getIdom(saveBB);
+            boolean savedOnAllPaths = true;
+            for (BasicBlock exitBB : exitBBs) {
+                if (!domTree.dominates(saveBB, exitBB)) savedOnAllPaths = false;
+            }
+            if (savedOnAllPaths) {
+                funcInfo.pushedCalleeSaveRegs.add(entry.getKey());
+                continue;
+            }
+            funcInfo.wrappedSaveBBMap.put(entry.getKey(), saveBB);
+            funcInfo.saveSlotOffsetMap.put(entry.getKey(), 0);
+            for (BasicBlock exitBB : exitBBs) {
+                if (domTree.dominates(saveBB, exitBB)) {
+                    funcInfo.exitRestoreRegsMap.computeIfAbsent(exitBB, k -> new ArrayList<>()).add(entry.getKey());
+                }
+            }
+        }
+    }
+
+    // the saves and the restores on edges of shrink-wrapped registers, once their slots are known; a branch
+    // leaving the region gets a block of its own for the restores
+    private void placeWrappedSaves(IRFunction irFunction, FuncInfo funcInfo, DominatorTree domTree) {
+        if (funcInfo.wrappedSaveBBMap.isEmpty()) return;
+        for (Map.Entry<PhysicalRegister, BasicBlock> entry : funcInfo.wrappedSaveBBMap.entrySet()) {
+            BasicBlock saveBB = entry.getValue();
+            saveBB.getFirstInst().prependInst(new IRStore(saveBB, entry.getKey(), Configuration.getRegSize(), rbp, funcInfo.saveSlotOffsetMap.get(entry.getKey())));
+        }
+        for (BasicBlock bb : new ArrayList<>(domTree.getBBList())) {
+            // nothing after a tail call is run
+            if (isTailCallBB(bb)) continue;
+            for (BasicBlock succBB : RegLivelinessAnalysis.successors(bb)) {
+                List<PhysicalRegister> restoreRegs = new ArrayList<>();
+                for (Map.Entry<PhysicalRegister, BasicBlock> entry : funcInfo.wrappedSaveBBMap.entrySet()) {
+                    if (domTree.dominates(entry.getValue(), bb) && !domTree.dominates(entry.getValue(), succBB)) {
+                        restoreRegs.add(entry.getKey());
+                    }
+                }
+                if (restoreRegs.isEmpty()) continue;
+                IRInstruction jumpInst = bb.getLastInst();
+                if (jumpInst instanceof IRBranch) {
+                    BasicBlock restoreBB = new BasicBlock(irFunction, "restore");
+                    restoreBB.setLoopDepth(succBB.getLoopDepth());
+                    restoreBB.setJumpInst(new IRJump(restoreBB, succBB));
+                    if (((IRBranch) jumpInst).getThenBB() == succBB) ((IRBranch) jumpInst).setThenBB(restoreBB);
+                    else ((IRBranch) jumpInst).setElseBB(restoreBB);
+                    bb.delNextBB(succBB);
+                    bb.addNextBB(restoreBB);
+                    jumpInst = restoreBB.getLastInst();
+                }
+                for (PhysicalRegister preg : restoreRegs) {
+                    jumpInst.prependInst(new IRLoad(jumpInst.getParentBB(), preg, Configuration.getRegSize(), rbp, funcInfo.saveSlotOffsetMap.get(preg)));
+                }
+            }
+        }
+        irFunction.setNewBBGraph(irFunction.getStartBB(), irFunction.getEndBB());
+    }
 
     public void run() {
+        funcInfos = new FuncInfo[ir.getNumFuncIds()];
         for (IRFunction irFunction : ir.getFuncs().values()) {
             FuncInfo funcInfo = new FuncInfo();
-            for (PhysicalRegister preg : irFunction.getUsedPhysicalGeneralRegs()) {
-                if (preg.isCalleeSave()) funcInfo.usedCalleeSaveRegs.add(preg);
-                if (preg.isCallerSave()) funcInfo.usedCallerSaveRegs.add(preg);
+            funcInfo.numExtraArgs = irFunction.getArgVRegList().size() - 6;
+            if (funcInfo.numExtraArgs < 0) funcInfo.numExtraArgs = 0;
+            funcInfo.clobberMask = getOwnClobberMask(irFunction);
+            funcInfos[irFunction.getId()] = funcInfo;
+        }
+
+        for (IRFunction builtinFunc : ir.getBuiltInFuncs().values()) {
+            FuncInfo funcInfo = new FuncInfo();
+            funcInfo.clobberMask = regMask(builtinFunc.getClobberedRegs());
+            funcInfos[builtinFunc.getId()] = funcInfo;
+        }
+        List<IRFunction> allFuncs = new ArrayList<>(ir.getFuncs().values());
+        allFuncs.addAll(ir.getBuiltInFuncs().values());
+        for (IRFunction irFunction : allFuncs) {
+            FuncInfo funcInfo = funcInfos[irFunction.getId()];
+            funcInfo.recursiveClobberMask = funcInfo.clobberMask;
+            for (IRFunction calleeFunc : irFunction.recursiveCalleeSet) {
+                funcInfo.recursiveClobberMask |= funcInfos[calleeFunc.getId()].clobberMask;
+            }
+        }
+
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            FuncInfo funcInfo = funcInfos[irFunction.getId()];
+
+            // a call whose value is returned right away becomes a jump, and the callee returns to our caller;
+            // callees with arguments on the stack still need our frame
+            if (Configuration.isEnableTailCallElimination()) {
+                for (BasicBlock bb : irFunction.getReversePostOrder()) {
+                    for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                        if (!(inst instanceof IRFunctionCall)) continue;
+                        IRFunctionCall funcCall = (IRFunctionCall) inst;
+                        if (funcInfos[funcCall.getFunc().getId()].numExtraArgs == 0 && TailRecursionEliminator.isTailCall(funcCall)) {
+                            funcCall.setTailCall(true);
+                        }
+                    }
+                }
             }
-            // could be optimized
-            funcInfo.usedCalleeSaveRegs.add(rbx);
-            funcInfo.usedCalleeSaveRegs.add(rbp);
+            findCallSaveRegs(irFunction, funcInfo);
+            DominatorTree domTree = new DominatorTree(irFunction);
+            shrinkWrap(irFunction, funcInfo, domTree);
 
             funcInfo.numStackSlot = irFunction.getStackSlots().size();
             for (int i = 0; i < funcInfo.numStackSlot; ++i) {
                 funcInfo.stackSlotOffsetMap.put(irFunction.getStackSlots().get(i), i * Configuration.getRegSize());
             }
-            // for rsp alignment
-            if ((funcInfo.usedCalleeSaveRegs.size() + funcInfo.numStackSlot) % 2 == 0) {
+            for (PhysicalRegister preg : funcInfo.saveSlotOffsetMap.keySet()) {
+                funcInfo.saveSlotOffsetMap.put(preg, funcInfo.numStackSlot++ * Configuration.getRegSize());
+            }
+            // a leaf without stack slots or arguments on the stack needs no frame
+            funcInfo.useRbp = funcInfo.numStackSlot > 0 || funcInfo.numExtraArgs > 0;
+            if (funcInfo.useRbp) funcInfo.pushedCalleeSaveRegs.add(rbp);
+            // for rsp alignment at calls
+            if (funcInfo.hasCall && (funcInfo.pushedCalleeSaveRegs.size() + funcInfo.numStackSlot) % 2 == 0) {
                 ++funcInfo.numStackSlot;
             }
+            placeWrappedSaves(irFunction, funcInfo, domTree);
 
-            funcInfo.numExtraArgs = irFunction.getArgVRegList().size() - 6;
-            if (funcInfo.numExtraArgs < 0) funcInfo.numExtraArgs = 0;
-
-            int extraArgOffset = (funcInfo.usedCalleeSaveRegs.size() + funcInfo.numStackSlot + 1) * Configuration.getRegSize(); // return address
+            int extraArgOffset = (funcInfo.pushedCalleeSaveRegs.size() + funcInfo.numStackSlot + 1) * Configuration.getRegSize(); // return address
             for (int i = 6; i < irFunction.getArgVRegList().size(); ++i) {
                 funcInfo.stackSlotOffsetMap.put(irFunction.getArgsStackSlotMap().get(irFunction.getArgVRegList().get(i)), extraArgOffset);
                 extraArgOffset += Configuration.getRegSize();
             }
-            funcInfoMap.put(irFunction, funcInfo);
-        }
-
-        for (IRFunction builtinFunc : ir.getBuiltInFuncs().values()) {
-            funcInfoMap.put(builtinFunc, new FuncInfo());
-        }
-        for (IRFunction irFunction : funcInfoMap.keySet()) {
-            FuncInfo funcInfo = funcInfoMap.get(irFunction);
-            funcInfo.recursiveUsedRegs.addAll(irFunction.getUsedPhysicalGeneralRegs());
-            for (IRFunction calleeFunc : irFunction.recursiveCalleeSet) {
-                funcInfo.recursiveUsedRegs.addAll(calleeFunc.getUsedPhysicalGeneralRegs());
-            }
         }
 
         for (IRFunction irFunction : ir.getFuncs().values()) {
-            FuncInfo funcInfo = funcInfoMap.get(irFunction);
+            FuncInfo funcInfo = funcInfos[irFunction.getId()];
+            boolean hasTailCall = false;
 
             // transform function entry
             BasicBlock entryBB = irFunction.getStartBB();
             IRInstruction firstInst = entryBB.getFirstInst();
-            for (PhysicalRegister preg : funcInfo.usedCalleeSaveRegs) {
+            for (PhysicalRegister preg : funcInfo.pushedCalleeSaveRegs) {
                 firstInst.prependInst(new IRPush(entryBB, preg));
             }
             if (funcInfo.numStackSlot > 0)
                 firstInst.prependInst(new IRBinaryOperation(entryBB, rsp, IRBinaryOperation.IRBinaryOp.SUB, rsp, new IntImmediate(funcInfo.numStackSlot * Configuration.getRegSize())));
-            firstInst.prependInst(new IRMove(entryBB, rbp, rsp));
+            if (funcInfo.useRbp) firstInst.prependInst(new IRMove(entryBB, rbp, rsp));
 
             for (BasicBlock bb : irFunction.getReversePostOrder()) {
                 for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
                     if (inst instanceof IRFunctionCall) {
                         IRFunction calleeFunc = ((IRFunctionCall) inst).getFunc();
-                        FuncInfo calleeInfo = funcInfoMap.get(calleeFunc);
-                        // push caller save registers which would be changed by callee
-                        int numPushCallerSave = 0;
-                        for (PhysicalRegister preg : funcInfo.usedCallerSaveRegs) {
-                            if (preg.isArg6() && preg.getArg6Idx() < irFunction.getArgVRegList().size()) continue;
-                            if (calleeInfo.recursiveUsedRegs.contains(preg)) {
-                                ++numPushCallerSave;
-                                inst.prependInst(new IRPush(inst.getParentBB(), preg));
-                            }
+                        FuncInfo calleeInfo = funcInfos[calleeFunc.getId()];
+                        boolean isTailCall = ((IRFunctionCall) inst).isTailCall();
+                        // save caller save registers live across the call which would be changed by callee
+                        List<PhysicalRegister> saveRegs = funcInfo.callSaveRegsMap.getOrDefault(inst, Collections.emptyList());
+                        for (PhysicalRegister preg : saveRegs) {
+                            inst.prependInst(new IRStore(inst.getParentBB(), preg, Configuration.getRegSize(), rbp, funcInfo.saveSlotOffsetMap.get(preg)));
                         }
 
-                        // push argument registers
-                        int numPushArg6Regs = irFunction.getArgVRegList().size() <= 6 ? irFunction.getArgVRegList().size() : 6;
-                        for (int i = 0; i < numPushArg6Regs; ++i) {
-                            inst.prependInst(new IRPush(inst.getParentBB(), arg6.get(i)));
-                        }
-                        numPushCallerSave += numPushArg6Regs;
-
                         // set arguments
                         boolean extraPush = false;
                         List<RegValue> args = ((IRFunctionCall) inst).getArgs();
@@ -109,7 +322,7 @@ public class NASMTransformer {
                         Map<PhysicalRegister, Integer> arg6BakOffsetMap = new HashMap<>();
 
                         // for rsp alignment
-                        if ((numPushCallerSave + calleeInfo.numExtraArgs) % 2 == 1) {
+                        if (calleeInfo.numExtraArgs % 2 == 1) {
                             extraPush = true;
                             inst.prependInst(new IRPush(inst.getParentBB(), new IntImmediate(0)));
                         }
@@ -158,22 +371,29 @@ public class NASMTransformer {
                             inst.prependInst(new IRBinaryOperation(inst.getParentBB(), rsp, IRBinaryOperation.IRBinaryOp.ADD, rsp, new IntImmediate(bakOffset * Configuration.getRegSize())));
                         }
 
+                        if (isTailCall) {
+                            // leave the frame as the function exit does, nothing after the call is run
+                            for (PhysicalRegister preg : funcInfo.exitRestoreRegsMap.getOrDefault(inst.getParentBB(), Collections.emptyList())) {
+                                inst.prependInst(new IRLoad(inst.getParentBB(), preg, Configuration.getRegSize(), rbp, funcInfo.saveSlotOffsetMap.get(preg)));
+                            }
+                            if (funcInfo.numStackSlot > 0)
+                                inst.prependInst(new IRBinaryOperation(inst.getParentBB(), rsp, IRBinaryOperation.IRBinaryOp.ADD, rsp, new IntImmediate(funcInfo.numStackSlot * Configuration.getRegSize())));
+                            for (int i = funcInfo.pushedCalleeSaveRegs.size() - 1; i >= 0; --i) {
+                                inst.prependInst(new IRPop(inst.getParentBB(), funcInfo.pushedCalleeSaveRegs.get(i)));
+                            }
+                            while (inst.getParentBB().getLastInst() != inst) inst.getParentBB().getLastInst().remove();
+                            hasTailCall = true;
+                            continue;
+                        }
+
                         // get return value
                         if (((IRFunctionCall) inst).getDest() != null) {
                             inst.appendInst(new IRMove(inst.getParentBB(), ((IRFunctionCall) inst).getDest(), rax));
                         }
 
                         // restore caller save registers
-                        for (PhysicalRegister preg : funcInfo.usedCallerSaveRegs) {
-                            if (preg.isArg6() && preg.getArg6Idx() < irFunction.getArgVRegList().size()) continue;
-                            if (calleeInfo.recursiveUsedRegs.contains(preg)) {
-                                inst.appendInst(new IRPop(inst.getParentBB(), preg));
-                            }
-                        }
-
-                        // restore argument registers
-                        for (int i = 0; i < numPushArg6Regs; ++i) {
-                            inst.appendInst(new IRPop(inst.getParentBB(), arg6.get(i)));
+                        for (PhysicalRegister preg : saveRegs) {
+                            inst.appendInst(new IRLoad(inst.getParentBB(), preg, Configuration.getRegSize(), rbp, funcInfo.saveSlotOffsetMap.get(preg)));
                         }
 
                         // remove extra arguments
@@ -182,29 +402,18 @@ public class NASMTransformer {
                             inst.appendInst(new IRBinaryOperation(inst.getParentBB(), rsp, IRBinaryOperation.IRBinaryOp.ADD, rsp, new IntImmediate(numPushArg * Configuration.getRegSize())));
                         }
                     } else if (inst instanceof IRHeapAlloc) {
-                        // push caller save registers which would be changed by callee
-                        int numPushCallerSave = 0;
-                        for (PhysicalRegister preg : funcInfo.usedCallerSaveRegs) {
-                            ++numPushCallerSave;
-                            // could be optimized known which reg would not be changed by malloc
-                            inst.prependInst(new IRPush(inst.getParentBB(), preg));
+                        // save caller save registers live across the call
+                        List<PhysicalRegister> saveRegs = funcInfo.callSaveRegsMap.getOrDefault(inst, Collections.emptyList());
+                        for (PhysicalRegister preg : saveRegs) {
+                            inst.prependInst(new IRStore(inst.getParentBB(), preg, Configuration.getRegSize(), rbp, funcInfo.saveSlotOffsetMap.get(preg)));
                         }
                         // set arg
                         inst.prependInst(new IRMove(inst.getParentBB(), rdi, ((IRHeapAlloc) inst).getAllocSize()));
-                        // for rsp alignment
-                        if (numPushCallerSave % 2 == 1) {
-                            inst.prependInst(new IRPush(inst.getParentBB(), new IntImmediate(0)));
-                        }
                         // get return value
                         inst.appendInst(new IRMove(inst.getParentBB(), ((IRHeapAlloc) inst).getDest(), rax));
                         // restore caller save registers
-                        for (PhysicalRegister preg : funcInfo.usedCallerSaveRegs) {
-                            // could be optimized known which reg would not be changed by malloc
-                            inst.appendInst(new IRPop(inst.getParentBB(), preg));
-                        }
-                        // restore rsp
-                        if (numPushCallerSave % 2 == 1) {
-                            inst.appendInst(new IRBinaryOperation(inst.getParentBB(), rsp, IRBinaryOperation.IRBinaryOp.ADD, rsp, new IntImmediate(Configuration.getRegSize())));
+                        for (PhysicalRegister preg : saveRegs) {
+                            inst.appendInst(new IRLoad(inst.getParentBB(), preg, Configuration.getRegSize(), rbp, funcInfo.saveSlotOffsetMap.get(preg)));
                         }
 
                     } else if (inst instanceof IRLoad) {
@@ -226,6 +435,9 @@ public class NASMTransformer {
                 }
             }
 
+            // the return is gone if every path ends with a tail call
+            if (hasTailCall) irFunction.setNewBBGraph(entryBB, irFunction.getEndBB());
+            if (irFunction.getRetInstList().isEmpty()) continue;
             IRReturn retInst = irFunction.getRetInstList().get(0);
             if (retInst.getRetValue() != null) {
                 retInst.prependInst(new IRMove(retInst.getParentBB(), rax, retInst.getRetValue()));
@@ -234,10 +446,13 @@ public class NASMTransformer {
             // transform function exit
             BasicBlock exitBB = irFunction.getEndBB();
             IRInstruction lastInst = exitBB.getLastInst();
+            for (PhysicalRegister preg : funcInfo.exitRestoreRegsMap.getOrDefault(exitBB, Collections.emptyList())) {
+                lastInst.prependInst(new IRLoad(exitBB, preg, Configuration.getRegSize(), rbp, funcInfo.saveSlotOffsetMap.get(preg)));
+            }
             if (funcInfo.numStackSlot > 0)
                 lastInst.prependInst(new IRBinaryOperation(entryBB, rsp, IRBinaryOperation.IRBinaryOp.ADD, rsp, new IntImmediate(funcInfo.numStackSlot * Configuration.getRegSize())));
-            for (int i = funcInfo.usedCalleeSaveRegs.size() - 1; i >= 0; --i) {
-                lastInst.prependInst(new IRPop(entryBB, funcInfo.usedCalleeSaveRegs.get(i)));
+            for (int i = funcInfo.pushedCalleeSaveRegs.size() - 1; i >= 0; --i) {
+                lastInst.prependInst(new IRPop(entryBB, funcInfo.pushedCalleeSaveRegs.get(i)));
             }
         }
     }
@@ -0,0 +1,62 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.util.*;
+
+// a natural loop: the target of back edges, whose target dominates their source, and the blocks
+// reaching one of those sources without passing the header; loops with the same header are merged
+public class NaturalLoop {
+    private BasicBlock header;
+    private Set<BasicBlock> body = new LinkedHashSet<>();
+
+    private NaturalLoop(BasicBlock header) {
+        this.header = header;
+        body.add(header);
+    }
+
+    // loops among the blocks of the dominator tree, smaller ones first, so that inner loops come before outer ones
+    public static List<NaturalLoop> findLoops(DominatorTree domTree) {
+        Map<BasicBlock, NaturalLoop> loopMap = new LinkedHashMap<>();
+        for (BasicBlock bb : domTree.getBBList()) {
+            for (BasicBlock header : RegLivelinessAnalysis.successors(bb)) {
+                if (!domTree.dominates(header, bb)) continue;
+                // back edge bb -> header, collect the loop body backwards from bb
+                NaturalLoop loop = loopMap.computeIfAbsent(header, NaturalLoop::new);
+                Deque<BasicBlock> worklist = new ArrayDeque<>();
+                if (loop.body.add(bb)) worklist.add(bb);
+                while (!worklist.isEmpty()) {
+                    for (BasicBlock pred : domTree.getPreds(worklist.poll())) {
+                        if (loop.body.add(pred)) worklist.add(pred);
+                    }
+                }
+            }
+        }
+        List<NaturalLoop> loops = new ArrayList<>(loopMap.values());
+        loops.sort(Comparator.comparingInt(loop -> loop.body.size()));
+        return loops;
+    }
+
+    public BasicBlock getHeader() {
+        return header;
+    }
+
+    public Set<BasicBlock> getBody() {
+        return body;
+    }
+
+    public boolean contains(BasicBlock bb) {
+        return body.contains(bb);
+    }
+
+    // the block outside the loop that all entries pass, null if there is none yet
+    public BasicBlock getPreheader(DominatorTree domTree) {
+        BasicBlock idom = domTree.getIdom(header);
+        if (idom == null || contains(idom) || !(idom.getLastInst() instanceof IRJump)) return null;
+        if (((IRJump) idom.getLastInst()).getTargetBB() != header) return null;
+        for (BasicBlock pred : domTree.getPreds(header)) {
+            if (pred != idom && !contains(pred)) return null;
+        }
+        return idom;
+    }
+}
@@ -5,97 +5,280 @@ import com.evensgn.emcompiler.ast.FuncCallExprNode;
 import com.evensgn.emcompiler.ir.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class RegLivelinessAnalysis {
     private IRRoot ir;
-    private boolean eliminationChanged;
 
     public RegLivelinessAnalysis(IRRoot ir) {
         this.ir = ir;
     }
 
-    private void livelinessAnalysis(IRFunction irFunction) {
-        List<BasicBlock> reversePreOrder = irFunction.getReversePreOrder();
-        for (BasicBlock bb : reversePreOrder) {
-            // init basic block
-            for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
-                if (inst.liveIn == null) inst.liveIn = new HashSet<>();
-                else inst.liveIn.clear();
-                if (inst.liveOut == null) inst.liveOut = new HashSet<>();
-                else inst.liveOut.clear();
+    private class FuncInfo {
+        InstructionArena arena;
+        int numWords;
+        long[][] use, def, liveIn, liveOut;
+    }
+
+    // functions may be analyzed concurrently, see Configuration.isParallelBackend
+    private Map<IRFunction, FuncInfo> funcInfoMap = new ConcurrentHashMap<>();
+
+    static void setBit(long[] set, int idx) {
+        set[idx >> 6] |= 1L << idx;
+    }
+
+    static void clearBit(long[] set, int idx) {
+        set[idx >> 6] &= ~(1L << idx);
+    }
+
+    static boolean testBit(long[] set, int idx) {
+        return (set[idx >> 6] & (1L << idx)) != 0;
+    }
+
+    // successors are read from the jump instruction, since removeBlankBB
+    // retargets jumps without touching the prev/next BB sets
+    static List<BasicBlock> successors(BasicBlock bb) {
+        IRInstruction lastInst = bb.getLastInst();
+        if (lastInst instanceof IRJump) {
+            return Collections.singletonList(((IRJump) lastInst).getTargetBB());
+        } else if (lastInst instanceof IRBranch) {
+            return Arrays.asList(((IRBranch) lastInst).getThenBB(), ((IRBranch) lastInst).getElseBB());
+        }
+        return Collections.emptyList();
+    }
+
+    // also packs the instructions into the arena of the function, which register allocators walk
+    void livelinessAnalysis(IRFunction irFunction) {
+        FuncInfo funcInfo = new FuncInfo();
+        funcInfoMap.put(irFunction, funcInfo);
+        irFunction.renumberVregs(irFunction.getReversePreOrder());
+        InstructionArena arena = new InstructionArena(irFunction, irFunction.getReversePreOrder());
+        irFunction.setInstArena(arena);
+        funcInfo.arena = arena;
+        int numBB = arena.getNumBBs();
+        int numWords = (arena.getNumVregs() + 63) >> 6;
+        funcInfo.numWords = numWords;
+        funcInfo.use = new long[numBB][numWords];
+        funcInfo.def = new long[numBB][numWords];
+        funcInfo.liveIn = new long[numBB][numWords];
+        funcInfo.liveOut = new long[numBB][numWords];
+
+        // block level use and def sets
+        InstructionArena.InstView inst = arena.view();
+        for (int i = 0; i < numBB; ++i) {
+            long[] use = funcInfo.use[i], def = funcInfo.def[i];
+            for (int pos = arena.getBBEnd(i) - 1; pos >= arena.getBBStart(i); --pos) {
+                inst.at(pos);
+                if (inst.getDef() >= 0) {
+                    clearBit(use, inst.getDef());
+                    setBit(def, inst.getDef());
+                }
+                for (int k = 0; k < inst.getNumUses(); ++k) setBit(use, inst.getUse(k));
             }
         }
-        Set<VirtualRegister> liveIn = new HashSet<>();
-        Set<VirtualRegister> liveOut = new HashSet<>();
-
-        // iterations to solve liveliness equation
-        boolean converged = false;
-        while (!converged) {
-            converged = true;
-            for (BasicBlock bb : reversePreOrder) {
-                for (IRInstruction inst = bb.getLastInst(); inst != null; inst = inst.getPrevInst()) {
-                    liveIn.clear();
-                    liveOut.clear();
-                    if (inst instanceof IRJumpInstruction) {
-                        if (inst instanceof IRJump) {
-                            liveOut.addAll(((IRJump) inst).getTargetBB().getFirstInst().liveIn);
-                        } else if (inst instanceof IRBranch) {
-                            liveOut.addAll(((IRBranch) inst).getThenBB().getFirstInst().liveIn);
-                            liveOut.addAll(((IRBranch) inst).getElseBB().getFirstInst().liveIn);
-                        }
-                    } else {
-                        if (inst.getNextInst() != null)
-                            liveOut.addAll(inst.getNextInst().liveIn);
-                    }
-                    liveIn.addAll(liveOut);
-                    IRRegister definedReg = inst.getDefinedRegister();
-                    if (definedReg instanceof VirtualRegister) {
-                        liveIn.remove(definedReg);
-                    }
-                    for (IRRegister usedReg : inst.getUsedRegisters()) {
-                        if (usedReg instanceof VirtualRegister) {
-                            liveIn.add((VirtualRegister) usedReg);
-                        }
-                    }
-                    if (!inst.liveIn.equals(liveIn)) {
-                        converged = false;
-                        inst.liveIn.clear();
-                        inst.liveIn.addAll(liveIn);
-                    }
-                    if (!inst.liveOut.equals(liveOut)) {
-                        converged = false;
-                        inst.liveOut.clear();
-                        inst.liveOut.addAll(liveOut);
-                    }
+
+        // worklist iterations to solve liveliness equation, seeded in post order
+        Deque<Integer> worklist = new ArrayDeque<>();
+        boolean[] inWorklist = new boolean[numBB];
+        for (int i = numBB - 1; i >= 0; --i) {
+            worklist.add(i);
+            inWorklist[i] = true;
+        }
+        while (!worklist.isEmpty()) {
+            int i = worklist.poll();
+            inWorklist[i] = false;
+            long[] liveOut = funcInfo.liveOut[i], liveIn = funcInfo.liveIn[i];
+            long[] use = funcInfo.use[i], def = funcInfo.def[i];
+            for (int k = 0; k < arena.getNumSuccs(i); ++k) {
+                long[] succLiveIn = funcInfo.liveIn[arena.getSucc(i, k)];
+                for (int w = 0; w < numWords; ++w) liveOut[w] |= succLiveIn[w];
+            }
+            boolean changed = false;
+            for (int w = 0; w < numWords; ++w) {
+                long newLiveIn = use[w] | (liveOut[w] & ~def[w]);
+                if (newLiveIn != liveIn[w]) {
+                    liveIn[w] = newLiveIn;
+                    changed = true;
+                }
+            }
+            if (!changed) continue;
+            for (int k = 0; k < arena.getNumPreds(i); ++k) {
+                int pred = arena.getPred(i, k);
+                if (!inWorklist[pred]) {
+                    worklist.add(pred);
+                    inWorklist[pred] = true;
                 }
             }
         }
     }
 
-    void tryEliminate(IRFunction func) {
-        List<BasicBlock> reversePreOrder = func.getReversePreOrder();
-        for (BasicBlock bb : reversePreOrder) {
-            for (IRInstruction inst = bb.getLastInst(), prevInst; inst != null; inst = prevInst) {
-                prevInst = inst.getPrevInst();
-                if (inst instanceof IRBinaryOperation || inst instanceof IRComparison ||
-                        inst instanceof IRLoad || inst instanceof IRMove || inst instanceof IRUnaryOperation ||
-                        inst instanceof IRHeapAlloc) {
-                    IRRegister dest = inst.getDefinedRegister();
-                    if (dest == null || !inst.liveOut.contains(dest)) {
-                        eliminationChanged = true;
-                        inst.remove();
+    // steps a live set backwards over the instruction the view is at
+    static void transferInst(InstructionArena.InstView inst, long[] live) {
+        if (inst.getDef() >= 0) clearBit(live, inst.getDef());
+        for (int k = 0; k < inst.getNumUses(); ++k) setBit(live, inst.getUse(k));
+    }
+
+    private boolean isLiveIn(BasicBlock bb, IRRegister reg) {
+        FuncInfo funcInfo = funcInfoMap.get(bb.getFunc());
+        if (funcInfo == null) return false;
+        int bbIdx = funcInfo.arena.getBBIdx(bb), vregIdx = funcInfo.arena.getVregIdx(reg);
+        return bbIdx >= 0 && vregIdx >= 0 && testBit(funcInfo.liveIn[bbIdx], vregIdx);
+    }
+
+    // live sets of a block of the arena, indexed by the register numbers of the arena; not to be changed
+    long[] getLiveInSet(IRFunction func, int bbIdx) {
+        return funcInfoMap.get(func).liveIn[bbIdx];
+    }
+
+    long[] getLiveOutSet(IRFunction func, int bbIdx) {
+        return funcInfoMap.get(func).liveOut[bbIdx];
+    }
+
+    private boolean isEliminable(IRInstruction inst) {
+        return inst instanceof IRBinaryOperation || inst instanceof IRComparison ||
+                inst instanceof IRLoad || inst instanceof IRLea || inst instanceof IRMove || inst instanceof IRUnaryOperation ||
+                inst instanceof IRHeapAlloc;
+    }
+
+    // remove instructions whose result never reaches a use, following def-use chains built from reaching
+    // definitions, so that each instruction is touched a bounded number of times
+    private void eliminateDeadInst(IRFunction func) {
+        List<BasicBlock> bbList = func.getReversePreOrder();
+        int numBB = bbList.size();
+        Map<BasicBlock, Integer> bbIdxMap = new HashMap<>();
+        for (int i = 0; i < numBB; ++i) bbIdxMap.put(bbList.get(i), i);
+
+        // index definitions
+        List<IRInstruction> defList = new ArrayList<>();
+        Map<IRInstruction, Integer> defIdxMap = new HashMap<>();
+        Map<VirtualRegister, List<Integer>> vregDefsMap = new HashMap<>();
+        for (BasicBlock bb : bbList) {
+            for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                IRRegister definedReg = inst.getDefinedRegister();
+                if (!(definedReg instanceof VirtualRegister)) continue;
+                defIdxMap.put(inst, defList.size());
+                vregDefsMap.computeIfAbsent((VirtualRegister) definedReg, k -> new ArrayList<>()).add(defList.size());
+                defList.add(inst);
+            }
+        }
+        int numDefs = defList.size(), numWords = (numDefs + 63) >> 6;
+
+        // block level kill and gen lists of reaching definitions
+        int[][] killList = new int[numBB][], genList = new int[numBB][];
+        for (int i = 0; i < numBB; ++i) {
+            Map<VirtualRegister, Integer> lastDefMap = new LinkedHashMap<>();
+            for (IRInstruction inst = bbList.get(i).getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                Integer defIdx = defIdxMap.get(inst);
+                if (defIdx != null) lastDefMap.put((VirtualRegister) inst.getDefinedRegister(), defIdx);
+            }
+            List<Integer> kill = new ArrayList<>();
+            for (VirtualRegister vreg : lastDefMap.keySet()) kill.addAll(vregDefsMap.get(vreg));
+            killList[i] = toIntArray(kill);
+            genList[i] = toIntArray(lastDefMap.values());
+        }
+
+        List<List<Integer>> succIdx = new ArrayList<>();
+        for (int i = 0; i < numBB; ++i) {
+            List<Integer> succ = new ArrayList<>();
+            for (BasicBlock succBB : successors(bbList.get(i))) {
+                Integer idx = bbIdxMap.get(succBB);
+                if (idx != null) succ.add(idx);
+            }
+            succIdx.add(succ);
+        }
+
+        // worklist iterations to solve reaching definitions, seeded in reverse post order
+        long[][] reachIn = new long[numBB][numWords], reachOut = new long[numBB][numWords];
+        Deque<Integer> worklist = new ArrayDeque<>();
+        boolean[] inWorklist = new boolean[numBB];
+        for (int i = numBB - 1; i >= 0; --i) {
+            worklist.add(i);
+            inWorklist[i] = true;
+        }
+        long[] newOut = new long[numWords];
+        while (!worklist.isEmpty()) {
+            int i = worklist.poll();
+            inWorklist[i] = false;
+            System.arraycopy(reachIn[i], 0, newOut, 0, numWords);
+            for (int defIdx : killList[i]) clearBit(newOut, defIdx);
+            for (int defIdx : genList[i]) setBit(newOut, defIdx);
+            if (Arrays.equals(newOut, reachOut[i])) continue;
+            System.arraycopy(newOut, 0, reachOut[i], 0, numWords);
+            for (int succ : succIdx.get(i)) {
+                long[] succIn = reachIn[succ];
+                for (int w = 0; w < numWords; ++w) succIn[w] |= newOut[w];
+                if (!inWorklist[succ]) {
+                    worklist.add(succ);
+                    inWorklist[succ] = true;
+                }
+            }
+        }
+
+        // def-use chains: number of uses reached by each definition, and definitions reaching each user
+        int[] numUses = new int[numDefs];
+        Map<IRInstruction, int[]> useDefsMap = new HashMap<>();
+        long[] reach = new long[numWords];
+        List<Integer> useDefs = new ArrayList<>();
+        for (int i = 0; i < numBB; ++i) {
+            System.arraycopy(reachIn[i], 0, reach, 0, numWords);
+            for (IRInstruction inst = bbList.get(i).getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                useDefs.clear();
+                for (IRRegister usedReg : inst.getUsedRegisters()) {
+                    List<Integer> vregDefs = vregDefsMap.get(usedReg);
+                    if (vregDefs == null) continue;
+                    for (int defIdx : vregDefs) {
+                        if (testBit(reach, defIdx)) {
+                            ++numUses[defIdx];
+                            useDefs.add(defIdx);
+                        }
                     }
                 }
+                if (!useDefs.isEmpty()) useDefsMap.put(inst, toIntArray(useDefs));
+                Integer defIdx = defIdxMap.get(inst);
+                if (defIdx != null) {
+                    for (int otherDefIdx : vregDefsMap.get(inst.getDefinedRegister())) clearBit(reach, otherDefIdx);
+                    setBit(reach, defIdx);
+                }
             }
         }
 
+        Deque<IRInstruction> deadInsts = new ArrayDeque<>();
+        for (BasicBlock bb : bbList) {
+            for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                if (!isEliminable(inst)) continue;
+                Integer defIdx = defIdxMap.get(inst);
+                if (defIdx == null || numUses[defIdx] == 0) deadInsts.add(inst);
+            }
+        }
+        while (!deadInsts.isEmpty()) {
+            IRInstruction inst = deadInsts.poll();
+            inst.remove();
+            int[] instUseDefs = useDefsMap.get(inst);
+            if (instUseDefs == null) continue;
+            for (int defIdx : instUseDefs) {
+                if (--numUses[defIdx] > 0) continue;
+                IRInstruction defInst = defList.get(defIdx);
+                if (isEliminable(defInst) && !defInst.isRemoved()) deadInsts.add(defInst);
+            }
+        }
+    }
+
+    private static int[] toIntArray(Collection<Integer> list) {
+        int[] array = new int[list.size()];
+        int idx = 0;
+        for (int x : list) array[idx++] = x;
+        return array;
+    }
+
+    private boolean tryEliminateForLoops(IRFunction func) {
+        boolean changed = false;
         for (IRRoot.ForRecord forRec : ir.forRecMap.values()) {
+            if (forRec.condBB == null || forRec.condBB.getFunc() != func) continue;
             if (forRec.processed) continue;
             boolean isFieldOutside = false;
             if (forRec.condBB == null || forRec.stepBB == null || forRec.bodyBB == null || forRec.afterBB == null) continue;
             List<BasicBlock> bbList = new ArrayList<>();
             bbList.add(forRec.condBB); bbList.add(forRec.stepBB); bbList.add(forRec.bodyBB); bbList.add(forRec.afterBB);
-            IRInstruction afterFirstInst = forRec.afterBB.getFirstInst();
             for (int i = 0; i < 3; ++i) {
                 for (IRInstruction inst = bbList.get(i).getFirstInst(); inst != null; inst = inst.getNextInst()) {
                     if (inst instanceof IRFunctionCall) {
@@ -103,7 +286,7 @@ public class RegLivelinessAnalysis {
                         continue;
                     }
                     if (inst.getDefinedRegister() != null) {
-                        if (afterFirstInst.liveIn.contains(inst.getDefinedRegister())) {
+                        if (isLiveIn(forRec.afterBB, inst.getDefinedRegister())) {
                             isFieldOutside = true;
                         }
                         continue;
@@ -132,13 +315,13 @@ public class RegLivelinessAnalysis {
                 forRec.condBB.reInit();
                 forRec.condBB.setJumpInst(new IRJump(forRec.condBB, forRec.afterBB));
                 forRec.processed = true;
+                changed = true;
             }
         }
+        return changed;
     }
 
-    private Map<BasicBlock, BasicBlock> jumpTargetBBMap = new HashMap<>();
-
-    BasicBlock replaceJumpTarget(BasicBlock bb) {
+    BasicBlock replaceJumpTarget(Map<BasicBlock, BasicBlock> jumpTargetBBMap, BasicBlock bb) {
         BasicBlock ret = bb, query = jumpTargetBBMap.get(bb);
         while (query != null) {
             ret = query;
@@ -147,8 +330,10 @@ public class RegLivelinessAnalysis {
         return ret;
     }
 
-    void removeBlankBB(IRFunction func) {
-        jumpTargetBBMap.clear();
+    // returns whether some branch has been turned into a jump, which drops a use of its condition
+    boolean removeBlankBB(IRFunction func) {
+        boolean branchRemoved = false;
+        Map<BasicBlock, BasicBlock> jumpTargetBBMap = new HashMap<>();
         for (BasicBlock bb : func.getReversePostOrder()) {
             if (bb.getFirstInst() == bb.getLastInst()) {
                 IRInstruction inst = bb.getFirstInst();
@@ -160,31 +345,38 @@ public class RegLivelinessAnalysis {
         for (BasicBlock bb : func.getReversePostOrder()) {
             if (bb.getLastInst() instanceof IRJump) {
                 IRJump jumpInst = (IRJump) bb.getLastInst();
-                jumpInst.setTargetBB(replaceJumpTarget(jumpInst.getTargetBB()));
+                jumpInst.setTargetBB(replaceJumpTarget(jumpTargetBBMap, jumpInst.getTargetBB()));
             } else if (bb.getLastInst() instanceof IRBranch) {
                 IRBranch branchInst = (IRBranch) bb.getLastInst();
-                branchInst.setThenBB(replaceJumpTarget(branchInst.getThenBB()));
-                branchInst.setElseBB(replaceJumpTarget(branchInst.getElseBB()));
+                branchInst.setThenBB(replaceJumpTarget(jumpTargetBBMap, branchInst.getThenBB()));
+                branchInst.setElseBB(replaceJumpTarget(jumpTargetBBMap, branchInst.getElseBB()));
                 if (branchInst.getThenBB() == branchInst.getElseBB()) {
                     branchInst.replace(new IRJump(bb, branchInst.getThenBB()));
+                    branchRemoved = true;
                 }
             }
         }
+        return branchRemoved;
     }
 
     public void run() {
         for (IRFunction irFunction : ir.getFuncs().values()) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        if (irFunction.isBuiltIn()) {
             livelinessAnalysis(irFunction);
+            return;
         }
-        eliminationChanged = true;
-        while (eliminationChanged) {
-            eliminationChanged = false;
-            for (IRFunction irFunction : ir.getFuncs().values()) {
-                if (irFunction.isBuiltIn()) continue;
-                tryEliminate(irFunction);
-                removeBlankBB(irFunction);
-                livelinessAnalysis(irFunction);
-            }
+        boolean changed = true;
+        while (changed) {
+            eliminateDeadInst(irFunction);
+            changed = removeBlankBB(irFunction);
+            livelinessAnalysis(irFunction);
+            // removing a loop changes the CFG, so dead instructions are searched again
+            changed |= tryEliminateForLoops(irFunction);
         }
     }
 }
@@ -3,223 +3,819 @@ package com.evensgn.emcompiler.backend;
 import com.evensgn.emcompiler.Configuration;
 import com.evensgn.emcompiler.ir.*;
 import com.evensgn.emcompiler.nasm.NASMRegisterSet;
-import com.evensgn.emcompiler.utils.CompilerError;
 
-import javax.rmi.ssl.SslRMIClientSocketFactory;
 import java.util.*;
 
 import static com.evensgn.emcompiler.nasm.NASMRegisterSet.*;
 
+// iterated register coalescing by George and Appel
 public class RegisterAllocator {
     private IRRoot ir;
+    private RegLivelinessAnalysis livelinessAnalysis;
     private List<PhysicalRegister> physicalRegs;
-    private PhysicalRegister preg0, preg1;
+    private PhysicalRegister preg0;
     private int numColors;
+    // the graph of the function a thread is allocating, kept for its next function
+    private ThreadLocal<InterferenceGraph> graphs = ThreadLocal.withInitial(InterferenceGraph::new);
+    // by loop depth, the loads and stores the spill costs kept out of the first round, see compareSpillChoice
+    private Map<Integer, long[]> removedSpillCodeMap = new TreeMap<>();
 
-    public RegisterAllocator(IRRoot ir) {
+    public RegisterAllocator(IRRoot ir, RegLivelinessAnalysis livelinessAnalysis) {
         this.ir = ir;
-        this.physicalRegs = new ArrayList<>(NASMRegisterSet.generalRegs);
+        this.livelinessAnalysis = livelinessAnalysis;
+        this.physicalRegs = getAllocatableRegs(ir);
+        this.preg0 = ir.getPreg0();
+        numColors = this.physicalRegs.size();
+    }
+
+    // registers left for allocation once argument registers and preg0 are taken out, also sets preg0 of ir
+    static List<PhysicalRegister> getAllocatableRegs(IRRoot ir) {
+        List<PhysicalRegister> physicalRegs = new ArrayList<>(NASMRegisterSet.generalRegs);
         for (IRFunction func : ir.getFuncs().values()) {
             if (func.getArgVRegList().size() > ir.getMaxNumFuncArgs())
                 ir.setMaxNumFuncArgs(func.getArgVRegList().size());
         }
         if (ir.getMaxNumFuncArgs() >= 5) physicalRegs.remove(r8);
         if (ir.getMaxNumFuncArgs() >= 6) physicalRegs.remove(r9);
-        if (ir.isHasDivShiftInst()) {
-            preg0 = physicalRegs.get(0);
-            preg1 = physicalRegs.get(1);
+        // preg0 keeps rdx during division by a register, division by a constant needs none
+        if (hasDivByReg(ir)) {
+            ir.setPreg0(physicalRegs.get(0));
+            physicalRegs.remove(ir.getPreg0());
         } else {
-            preg0 = rbx;
-            preg1 = physicalRegs.get(0);
+            ir.setPreg0(rbx);
         }
-        ir.setPreg0(preg0);
-        ir.setPreg1(preg1);
-        this.physicalRegs.remove(preg0);
-        this.physicalRegs.remove(preg1);
-        numColors = this.physicalRegs.size();
+        return physicalRegs;
+    }
+
+    private static boolean hasDivByReg(IRRoot ir) {
+        for (IRFunction func : ir.getFuncs().values()) {
+            for (BasicBlock bb : func.getReversePostOrder()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (inst instanceof IRBinaryOperation && NASMPrinter.isDivByReg((IRBinaryOperation) inst)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // caller save registers are saved around the calls they live across, callee save ones only once
+    // in the prologue, so functions making calls try callee save registers first; allocators also
+    // choose by whether a single value lives across a call, see getPreferredColor
+    static List<PhysicalRegister> getColorOrder(IRFunction irFunction, List<PhysicalRegister> physicalRegs) {
+        boolean hasCall = false;
+        InstructionArena arena = irFunction.getInstArena();
+        InstructionArena.InstView inst = arena.view();
+        for (int i = 0; i < arena.getNumInsts(); ++i) {
+            int opcode = inst.at(i).getOpcode();
+            if (opcode == InstructionArena.OP_CALL || opcode == InstructionArena.OP_HEAP_ALLOC) hasCall = true;
+        }
+        List<PhysicalRegister> colorOrder = new ArrayList<>();
+        for (PhysicalRegister preg : physicalRegs) {
+            if (preg.isCalleeSave() == hasCall) colorOrder.add(preg);
+        }
+        for (PhysicalRegister preg : physicalRegs) {
+            if (preg.isCalleeSave() != hasCall) colorOrder.add(preg);
+        }
+        return colorOrder;
+    }
+
+    // the first color of the class a value prefers: callee save ones for values living across calls,
+    // which then need no save at each call, and caller save ones for the others
+    static PhysicalRegister getPreferredColor(Collection<PhysicalRegister> colors, boolean crossesCall) {
+        for (PhysicalRegister preg : colors) {
+            if (preg.isCalleeSave() == crossesCall) return preg;
+        }
+        return colors.iterator().next();
+    }
+
+    static StackSlot getSpillSlot(IRFunction irFunction, VirtualRegister vreg) {
+        StackSlot slot = irFunction.getArgsStackSlotMap().get(vreg);
+        if (slot == null) slot = new StackSlot(irFunction, vreg.getName(), false);
+        return slot;
+    }
+
+    private enum NodeState {
+        PRECOLORED, INITIAL, SIMPLIFY, FREEZE, SPILL, SPILLED, COALESCED, COLORED, SELECTED
     }
 
     private class VirtualRegInfo {
-        Set<VirtualRegister> neighbours = new HashSet<>();
-        boolean removed = false;
-        IRRegister color = null;
+        // degree does not count precolored neighbours, since argument registers forced on precolored nodes
+        // are never among the colors given to other nodes
         int degree = 0;
-        Set<VirtualRegister> suggestSameVRegs = new HashSet<>();
+        NodeState state;
+        VirtualRegister alias = null;
+        PhysicalRegister color = null;
+        Set<IRMove> moves = new LinkedHashSet<>();
+        // registers clobbered by the printed code of an instruction defining this node
+        Set<PhysicalRegister> forbiddenRegs = new HashSet<>();
+        double spillCost = 0;
+        boolean spillTemp = false;
+        // live after a call or heap allocation which does not define it
+        boolean crossesCall = false;
     }
 
-    private VirtualRegInfo getVregInfo(VirtualRegister vreg) {
-        VirtualRegInfo vregInfo = vregInfoMap.get(vreg);
-        if (vregInfo == null) {
-            vregInfo = new VirtualRegInfo();
-            vregInfoMap.put(vreg, vregInfo);
+    private class SpillCandidate {
+        VirtualRegister vreg;
+        double priority;
+        int order;
+
+        SpillCandidate(VirtualRegister vreg, double priority, int order) {
+            this.vreg = vreg;
+            this.priority = priority;
+            this.order = order;
         }
-        return vregInfo;
     }
 
-    private Map<VirtualRegister, VirtualRegInfo> vregInfoMap = new HashMap<>();
-    private List<VirtualRegister> vregOrder = new ArrayList<>();
-    private Set<PhysicalRegister> usedColors = new HashSet<>();
-    private Set<VirtualRegister> vregNodes = new HashSet<>();
-    private Set<VirtualRegister> degreeSmallVregNodes = new HashSet<>();
-
-    private Map<IRRegister, IRRegister> renameMap = new HashMap<>();
+    // for reports only, run before run(irFunction) and apart from it: colors the first round of the function
+    // as run() would and once more with spills chosen in worklist order, blind to spill costs, and records how
+    // much spill code the first coloring has less than the second; the baseline is that hypothetical blind
+    // choice, not an earlier build of the allocator, and the IR is left untouched
+    public void compareSpillChoice(IRFunction irFunction) {
+        new FuncAllocator(irFunction).compareSpillChoice();
+    }
 
-    private void addEdge(VirtualRegister x, VirtualRegister y) {
-        getVregInfo(x).neighbours.add(y);
-        getVregInfo(y).neighbours.add(x);
+    private synchronized void addRemovedSpillCode(Map<Integer, long[]> blindSpillCode, Map<Integer, long[]> spillCode) {
+        for (Map.Entry<Integer, long[]> entry : blindSpillCode.entrySet()) {
+            long[] removed = removedSpillCodeMap.computeIfAbsent(entry.getKey(), k -> new long[2]);
+            removed[0] += entry.getValue()[0];
+            removed[1] += entry.getValue()[1];
+        }
+        for (Map.Entry<Integer, long[]> entry : spillCode.entrySet()) {
+            long[] removed = removedSpillCodeMap.computeIfAbsent(entry.getKey(), k -> new long[2]);
+            removed[0] -= entry.getValue()[0];
+            removed[1] -= entry.getValue()[1];
+        }
     }
 
-    private void removeVregNode(VirtualRegister vreg) {
-        VirtualRegInfo vregInfo = vregInfoMap.get(vreg), neigbhourInfo;
-        vregInfo.removed = true;
-        vregNodes.remove(vreg);
-        for (VirtualRegister neighbour : vregInfo.neighbours) {
-            neigbhourInfo = vregInfoMap.get(neighbour);
-            if (neigbhourInfo.removed) continue;;
-            --neigbhourInfo.degree;
-            if (neigbhourInfo.degree < numColors) {
-                degreeSmallVregNodes.add(neighbour);
-            }
+    // spill loads and stores by loop depth the spill costs removed compared with the cost blind choice,
+    // negative where they added some
+    public synchronized Map<String, Long> getRemovedSpillCode() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Map.Entry<Integer, long[]> entry : removedSpillCodeMap.entrySet()) {
+            counts.put(String.format("loadsRemovedAtDepth%d", entry.getKey()), entry.getValue()[0]);
+            counts.put(String.format("storesRemovedAtDepth%d", entry.getKey()), entry.getValue()[1]);
         }
+        return counts;
     }
 
     public void run() {
         for (IRFunction irFunction : ir.getFuncs().values()) {
-            vregInfoMap.clear();
-            vregNodes.clear();
-            degreeSmallVregNodes.clear();
+            run(irFunction);
+        }
+    }
 
-            for (VirtualRegister argVreg : irFunction.getArgVRegList()) {
-                getVregInfo(argVreg);
+    public void run(IRFunction irFunction) {
+        new FuncAllocator(irFunction).allocate();
+    }
+
+    // allocation state of a single function, so that functions can be allocated concurrently;
+    // linked collections keep the coloring independent of identity hash codes
+    private class FuncAllocator {
+        private IRFunction irFunction;
+        private List<PhysicalRegister> colorOrder;
+        // nodes are register ids, neighbours include precolored nodes
+        private InterferenceGraph graph = graphs.get();
+        // by register id, the registers are kept in the order first seen so that the coloring is deterministic
+        private VirtualRegInfo[] vregInfos = new VirtualRegInfo[0];
+        private List<VirtualRegister> vregList = new ArrayList<>();
+        private Set<VirtualRegister> spillTemps = new HashSet<>();
+
+        private Set<VirtualRegister> simplifyWorklist = new LinkedHashSet<>();
+        private Set<VirtualRegister> freezeWorklist = new LinkedHashSet<>();
+        private Set<VirtualRegister> spillWorklist = new LinkedHashSet<>();
+        // spill priorities of nodes only grow while they stay in spillWorklist,
+        // so stale entries are recomputed when they come to the head of the queue
+        private PriorityQueue<SpillCandidate> spillQueue = new PriorityQueue<>((a, b) ->
+                a.priority != b.priority ? Double.compare(a.priority, b.priority) : Integer.compare(a.order, b.order));
+        private int spillCandidateCnt = 0;
+        private List<VirtualRegister> spilledNodes = new ArrayList<>();
+        private List<VirtualRegister> coalescedNodes = new ArrayList<>();
+        private Deque<VirtualRegister> selectStack = new ArrayDeque<>();
+        private Set<IRMove> worklistMoves = new LinkedHashSet<>();
+        private Set<IRMove> activeMoves = new LinkedHashSet<>();
+        private boolean isSpillCostBlind = false;
+
+        FuncAllocator(IRFunction irFunction) {
+            this.irFunction = irFunction;
+        }
+
+        private VirtualRegInfo getVregInfo(VirtualRegister vreg) {
+            int id = irFunction.getVregId(vreg);
+            if (id >= vregInfos.length) vregInfos = Arrays.copyOf(vregInfos, Math.max(id + 1, irFunction.getNumVregIds()));
+            VirtualRegInfo vregInfo = vregInfos[id];
+            if (vregInfo == null) {
+                vregInfo = new VirtualRegInfo();
+                if (vreg.getForcedPhysicalRegister() != null) {
+                    vregInfo.state = NodeState.PRECOLORED;
+                    vregInfo.color = vreg.getForcedPhysicalRegister();
+                } else {
+                    vregInfo.state = NodeState.INITIAL;
+                }
+                vregInfo.spillTemp = spillTemps.contains(vreg);
+                vregInfos[id] = vregInfo;
+                vregList.add(vreg);
             }
+            return vregInfo;
+        }
+
+        // null for registers not in the graph
+        private VirtualRegInfo vregInfoOf(VirtualRegister vreg) {
+            int id = vreg.getId();
+            return id >= 0 && id < vregInfos.length ? vregInfos[id] : null;
+        }
+
+        private boolean isPrecolored(VirtualRegister vreg) {
+            return vregInfoOf(vreg).state == NodeState.PRECOLORED;
+        }
+
+        private void allocate() {
+            colorOrder = getColorOrder(irFunction, physicalRegs);
+            while (true) {
+                color();
+                if (spilledNodes.isEmpty()) break;
+                rewriteProgram();
+                livelinessAnalysis.livelinessAnalysis(irFunction);
+            }
+            Map<VirtualRegister, PhysicalRegister> colorMap = new HashMap<>();
+            for (VirtualRegister vreg : vregList) {
+                colorMap.put(vreg, vregInfoOf(vreg).color);
+            }
+            assignPhysicalRegs(irFunction, colorMap);
+        }
+
+        private void compareSpillChoice() {
+            colorOrder = getColorOrder(irFunction, physicalRegs);
+            isSpillCostBlind = true;
+            color();
+            Map<Integer, long[]> blindSpillCode = countSpillCode();
+            isSpillCostBlind = false;
+            color();
+            addRemovedSpillCode(blindSpillCode, countSpillCode());
+        }
+
+        private void color() {
+            build();
+            makeWorklist();
+            while (true) {
+                if (!simplifyWorklist.isEmpty()) simplify();
+                else if (!worklistMoves.isEmpty()) coalesce();
+                else if (!freezeWorklist.isEmpty()) freeze();
+                else if (!spillWorklist.isEmpty()) selectSpill();
+                else break;
+            }
+            assignColors();
+        }
+
+        // by loop depth, the loads and stores rewriteProgram would add for the spilled nodes, leaving out
+        // call arguments read from stack slots and moves within a shared slot
+        private Map<Integer, long[]> countSpillCode() {
+            Set<VirtualRegister> spilledVregs = new HashSet<>(spilledNodes);
+            for (VirtualRegister vreg : coalescedNodes) {
+                if (vregInfoOf(getAlias(vreg)).state == NodeState.SPILLED) spilledVregs.add(vreg);
+            }
+            Map<Integer, long[]> spillCode = new HashMap<>();
+            if (spilledVregs.isEmpty()) return spillCode;
+            Set<IRRegister> loadedRegs = new HashSet<>();
             for (BasicBlock bb : irFunction.getReversePreOrder()) {
                 for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
-                    IRRegister definedReg = inst.getDefinedRegister();
-                    if (!(definedReg instanceof VirtualRegister)) continue;
-                    VirtualRegInfo vregInfo = getVregInfo((VirtualRegister) definedReg);
-                    if (inst instanceof IRMove) {
-                        RegValue rhs = ((IRMove) inst).getRhs();
-                        if (rhs instanceof VirtualRegister) {
-                            vregInfo.suggestSameVRegs.add((VirtualRegister) rhs);
-                            getVregInfo((VirtualRegister) rhs).suggestSameVRegs.add((VirtualRegister) definedReg);
+                    if (inst instanceof IRFunctionCall) continue;
+                    loadedRegs.clear();
+                    for (IRRegister reg : inst.getUsedRegisters()) {
+                        if (spilledVregs.contains(reg)) loadedRegs.add(reg);
+                    }
+                    boolean isStored = spilledVregs.contains(inst.getDefinedRegister());
+                    if (loadedRegs.isEmpty() && !isStored) continue;
+                    long[] counts = spillCode.computeIfAbsent(bb.getLoopDepth(), k -> new long[2]);
+                    counts[0] += loadedRegs.size();
+                    if (isStored) ++counts[1];
+                }
+            }
+            return spillCode;
+        }
+
+        private void addEdge(VirtualRegister u, VirtualRegister v) {
+            if (u == v) return;
+            VirtualRegInfo uInfo = getVregInfo(u), vInfo = getVregInfo(v);
+            if (!graph.addEdge(u.getId(), v.getId())) return;
+            if (uInfo.state != NodeState.PRECOLORED && vInfo.state != NodeState.PRECOLORED) {
+                ++uInfo.degree;
+                ++vInfo.degree;
+            }
+        }
+
+        private void build() {
+            vregInfos = new VirtualRegInfo[irFunction.getNumVregIds()];
+            vregList.clear();
+            simplifyWorklist.clear();
+            freezeWorklist.clear();
+            spillWorklist.clear();
+            spillQueue.clear();
+            spilledNodes.clear();
+            coalescedNodes.clear();
+            selectStack.clear();
+            worklistMoves.clear();
+            activeMoves.clear();
+
+            for (VirtualRegister argVreg : irFunction.getArgVRegList()) {
+                getVregInfo(argVreg);
+            }
+            graph.reset(irFunction.getNumVregIds());
+            InstructionArena arena = irFunction.getInstArena();
+            InstructionArena.InstView inst = arena.view();
+            long[] live = new long[(arena.getNumVregs() + 63) >> 6];
+            for (int b = 0; b < arena.getNumBBs(); ++b) {
+                // loop depth is given by LoopNestingAnalysis
+                double weight = Math.pow(10, arena.getBB(b).getLoopDepth());
+                for (int i = arena.getBBStart(b); i < arena.getBBEnd(b); ++i) {
+                    inst.at(i);
+                    for (int k = 0; k < inst.getNumUses(); ++k) getVregInfo(arena.getVreg(inst.getUse(k))).spillCost += weight;
+                    if (inst.getDef() < 0) continue;
+                    VirtualRegister dest = arena.getVreg(inst.getDef());
+                    VirtualRegInfo destInfo = getVregInfo(dest);
+                    destInfo.spillCost += weight;
+                    if (inst.getMoveSrc() >= 0) {
+                        VirtualRegister moveSrc = arena.getVreg(inst.getMoveSrc());
+                        if (moveSrc != dest) {
+                            IRMove moveInst = (IRMove) inst.getInst();
+                            destInfo.moves.add(moveInst);
+                            getVregInfo(moveSrc).moves.add(moveInst);
+                            worklistMoves.add(moveInst);
                         }
-                        for (VirtualRegister vreg : inst.liveOut) {
-                            if (vreg != rhs && vreg != definedReg) {
-                                addEdge(vreg, (VirtualRegister) definedReg);
+                    } else if (inst.getOpcode() == InstructionArena.OP_BINARY) {
+                        IRBinaryOperation.IRBinaryOp op = inst.getBinaryOp();
+                        if (op == IRBinaryOperation.IRBinaryOp.DIV || op == IRBinaryOperation.IRBinaryOp.MOD) {
+                            destInfo.forbiddenRegs.add(rdx);
+                        } else if (op == IRBinaryOperation.IRBinaryOp.SHL || op == IRBinaryOperation.IRBinaryOp.SHR) {
+                            destInfo.forbiddenRegs.add(rcx);
+                        }
+                    }
+                }
+
+                // a definition interferes with the registers live after it, walking the block backwards
+                System.arraycopy(livelinessAnalysis.getLiveOutSet(irFunction, b), 0, live, 0, live.length);
+                for (int i = arena.getBBEnd(b) - 1; i >= arena.getBBStart(b); --i) {
+                    inst.at(i);
+                    int def = inst.getDef(), moveSrc = inst.getMoveSrc();
+                    if (inst.getOpcode() == InstructionArena.OP_CALL || inst.getOpcode() == InstructionArena.OP_HEAP_ALLOC) {
+                        for (int w = 0; w < live.length; ++w) {
+                            for (long word = live[w]; word != 0; word &= word - 1) {
+                                int idx = (w << 6) + Long.numberOfTrailingZeros(word);
+                                if (idx != def) getVregInfo(arena.getVreg(idx)).crossesCall = true;
                             }
                         }
-                    } else {
-                        for (VirtualRegister vreg : inst.liveOut) {
-                            if (vreg != definedReg) {
-                                addEdge(vreg, (VirtualRegister) definedReg);
+                    }
+                    if (def >= 0) {
+                        VirtualRegister dest = arena.getVreg(def);
+                        for (int w = 0; w < live.length; ++w) {
+                            for (long word = live[w]; word != 0; word &= word - 1) {
+                                int idx = (w << 6) + Long.numberOfTrailingZeros(word);
+                                if (idx != moveSrc) addEdge(arena.getVreg(idx), dest);
                             }
                         }
                     }
+                    RegLivelinessAnalysis.transferInst(inst, live);
+                }
+            }
+        }
+
+        private void makeWorklist() {
+            for (VirtualRegister vreg : vregList) {
+                VirtualRegInfo vregInfo = vregInfoOf(vreg);
+                if (vregInfo.state != NodeState.INITIAL) continue;
+                if (vregInfo.degree >= numColors) {
+                    pushToWorklist(vreg, NodeState.SPILL);
+                } else if (isMoveRelated(vreg)) {
+                    vregInfo.state = NodeState.FREEZE;
+                    freezeWorklist.add(vreg);
+                } else {
+                    vregInfo.state = NodeState.SIMPLIFY;
+                    simplifyWorklist.add(vreg);
+                }
+            }
+        }
+
+        private List<VirtualRegister> adjacent(VirtualRegister vreg) {
+            List<VirtualRegister> adjacentList = new ArrayList<>();
+            for (int k = 0, id = vreg.getId(); k < graph.getNumAdj(id); ++k) {
+                VirtualRegInfo neighbourInfo = vregInfos[graph.getAdj(id, k)];
+                if (neighbourInfo.state != NodeState.SELECTED && neighbourInfo.state != NodeState.COALESCED) {
+                    adjacentList.add(irFunction.getVregById(graph.getAdj(id, k)));
+                }
+            }
+            return adjacentList;
+        }
+
+        private List<IRMove> nodeMoves(VirtualRegister vreg) {
+            List<IRMove> moveList = new ArrayList<>();
+            for (IRMove move : vregInfoOf(vreg).moves) {
+                if (activeMoves.contains(move) || worklistMoves.contains(move)) moveList.add(move);
+            }
+            return moveList;
+        }
+
+        private boolean isMoveRelated(VirtualRegister vreg) {
+            for (IRMove move : vregInfoOf(vreg).moves) {
+                if (activeMoves.contains(move) || worklistMoves.contains(move)) return true;
+            }
+            return false;
+        }
+
+        private void pushToWorklist(VirtualRegister vreg, NodeState state) {
+            VirtualRegInfo vregInfo = vregInfoOf(vreg);
+            switch (vregInfo.state) {
+                case SIMPLIFY:
+                    simplifyWorklist.remove(vreg);
+                    break;
+                case FREEZE:
+                    freezeWorklist.remove(vreg);
+                    break;
+                case SPILL:
+                    spillWorklist.remove(vreg);
+                    break;
+                default:
+                    break;
+            }
+            vregInfo.state = state;
+            switch (state) {
+                case SIMPLIFY:
+                    simplifyWorklist.add(vreg);
+                    break;
+                case FREEZE:
+                    freezeWorklist.add(vreg);
+                    break;
+                case SPILL:
+                    spillWorklist.add(vreg);
+                    spillQueue.add(new SpillCandidate(vreg, getSpillPriority(vreg), spillCandidateCnt++));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private double getSpillPriority(VirtualRegister vreg) {
+            VirtualRegInfo vregInfo = vregInfoOf(vreg);
+            return vregInfo.spillTemp ? Double.POSITIVE_INFINITY : vregInfo.spillCost / vregInfo.degree;
+        }
+
+        private void simplify() {
+            Iterator<VirtualRegister> iterator = simplifyWorklist.iterator();
+            VirtualRegister vreg = iterator.next();
+            iterator.remove();
+            vregInfoOf(vreg).state = NodeState.SELECTED;
+            selectStack.push(vreg);
+            for (VirtualRegister neighbour : adjacent(vreg)) {
+                decrementDegree(neighbour);
+            }
+        }
+
+        private void decrementDegree(VirtualRegister vreg) {
+            VirtualRegInfo vregInfo = vregInfoOf(vreg);
+            if (vregInfo.state == NodeState.PRECOLORED) return;
+            int degree = vregInfo.degree--;
+            if (degree == numColors) {
+                enableMoves(vreg);
+                for (VirtualRegister neighbour : adjacent(vreg)) enableMoves(neighbour);
+                if (vregInfo.state == NodeState.SPILL) {
+                    pushToWorklist(vreg, isMoveRelated(vreg) ? NodeState.FREEZE : NodeState.SIMPLIFY);
+                }
+            }
+        }
+
+        private void enableMoves(VirtualRegister vreg) {
+            for (IRMove move : nodeMoves(vreg)) {
+                if (activeMoves.remove(move)) worklistMoves.add(move);
+            }
+        }
+
+        private VirtualRegister getAlias(VirtualRegister vreg) {
+            VirtualRegInfo vregInfo = vregInfoOf(vreg);
+            while (vregInfo.state == NodeState.COALESCED) {
+                vreg = vregInfo.alias;
+                vregInfo = vregInfoOf(vreg);
+            }
+            return vreg;
+        }
+
+        private void addWorklist(VirtualRegister vreg) {
+            VirtualRegInfo vregInfo = vregInfoOf(vreg);
+            if (vregInfo.state == NodeState.FREEZE && !isMoveRelated(vreg) && vregInfo.degree < numColors) {
+                pushToWorklist(vreg, NodeState.SIMPLIFY);
+            }
+        }
+
+        // Briggs: the merged node has fewer than K neighbours of significant degree
+        private boolean isConservative(VirtualRegister u, VirtualRegister v) {
+            int uId = u.getId(), vId = v.getId(), k = 0;
+            for (int i = 0; i < graph.getNumAdj(uId); ++i) {
+                if (isSignificant(graph.getAdj(uId, i)) && ++k >= numColors) return false;
+            }
+            for (int i = 0; i < graph.getNumAdj(vId); ++i) {
+                int node = graph.getAdj(vId, i);
+                if (!graph.isAdjacent(uId, node) && isSignificant(node) && ++k >= numColors) return false;
+            }
+            return true;
+        }
+
+        private boolean isSignificant(int id) {
+            VirtualRegInfo vregInfo = vregInfos[id];
+            return vregInfo.state != NodeState.PRECOLORED && vregInfo.state != NodeState.SELECTED
+                    && vregInfo.state != NodeState.COALESCED && vregInfo.degree >= numColors;
+        }
+
+        private void coalesce() {
+            Iterator<IRMove> iterator = worklistMoves.iterator();
+            IRMove move = iterator.next();
+            iterator.remove();
+            VirtualRegister x = getAlias((VirtualRegister) move.getLhs());
+            VirtualRegister y = getAlias((VirtualRegister) move.getRhs());
+            VirtualRegister u, v;
+            if (isPrecolored(y)) {
+                u = y;
+                v = x;
+            } else {
+                u = x;
+                v = y;
+            }
+            VirtualRegInfo uInfo = vregInfoOf(u), vInfo = vregInfoOf(v);
+            if (u == v) {
+                addWorklist(u);
+            } else if (vInfo.state == NodeState.PRECOLORED || graph.isAdjacent(u.getId(), v.getId())) {
+                addWorklist(u);
+                addWorklist(v);
+            } else if (uInfo.state == NodeState.PRECOLORED ? !vInfo.forbiddenRegs.contains(uInfo.color) : isConservative(u, v)) {
+                // merging into a precolored node never makes others uncolorable, as its color is not
+                // among the allocatable ones, the George test is therefore trivially satisfied
+                combine(u, v);
+                addWorklist(u);
+            } else {
+                activeMoves.add(move);
+            }
+        }
+
+        private void combine(VirtualRegister u, VirtualRegister v) {
+            VirtualRegInfo uInfo = vregInfoOf(u), vInfo = vregInfoOf(v);
+            pushToWorklist(v, NodeState.COALESCED);
+            coalescedNodes.add(v);
+            vInfo.alias = u;
+            uInfo.moves.addAll(vInfo.moves);
+            uInfo.forbiddenRegs.addAll(vInfo.forbiddenRegs);
+            uInfo.spillCost += vInfo.spillCost;
+            uInfo.spillTemp &= vInfo.spillTemp;
+            uInfo.crossesCall |= vInfo.crossesCall;
+            enableMoves(v);
+            for (VirtualRegister neighbour : adjacent(v)) {
+                addEdge(neighbour, u);
+                decrementDegree(neighbour);
+            }
+            if (uInfo.degree >= numColors && uInfo.state == NodeState.FREEZE) {
+                pushToWorklist(u, NodeState.SPILL);
+            }
+        }
+
+        private void freeze() {
+            VirtualRegister vreg = freezeWorklist.iterator().next();
+            pushToWorklist(vreg, NodeState.SIMPLIFY);
+            freezeMoves(vreg);
+        }
+
+        private void freezeMoves(VirtualRegister u) {
+            for (IRMove move : nodeMoves(u)) {
+                VirtualRegister x = getAlias((VirtualRegister) move.getLhs());
+                VirtualRegister y = getAlias((VirtualRegister) move.getRhs());
+                VirtualRegister v = y == getAlias(u) ? x : y;
+                if (!activeMoves.remove(move)) worklistMoves.remove(move);
+                VirtualRegInfo vInfo = vregInfoOf(v);
+                if (vInfo.state == NodeState.FREEZE && !isMoveRelated(v) && vInfo.degree < numColors) {
+                    pushToWorklist(v, NodeState.SIMPLIFY);
+                }
+            }
+        }
+
+        // spill the node with least spill cost per degree, temporaries made by earlier spills last
+        private void selectSpill() {
+            if (isSpillCostBlind) {
+                VirtualRegister vreg = spillWorklist.iterator().next();
+                pushToWorklist(vreg, NodeState.SIMPLIFY);
+                freezeMoves(vreg);
+                return;
+            }
+            while (true) {
+                SpillCandidate candidate = spillQueue.poll();
+                if (vregInfoOf(candidate.vreg).state != NodeState.SPILL) continue;
+                double priority = getSpillPriority(candidate.vreg);
+                if (priority != candidate.priority) {
+                    candidate.priority = priority;
+                    spillQueue.add(candidate);
+                    continue;
+                }
+                pushToWorklist(candidate.vreg, NodeState.SIMPLIFY);
+                freezeMoves(candidate.vreg);
+                return;
+            }
+        }
+
+        private void assignColors() {
+            while (!selectStack.isEmpty()) {
+                VirtualRegister vreg = selectStack.pop();
+                VirtualRegInfo vregInfo = vregInfoOf(vreg);
+                Set<PhysicalRegister> okColors = new LinkedHashSet<>(colorOrder);
+                for (int k = 0, id = vreg.getId(); k < graph.getNumAdj(id); ++k) {
+                    VirtualRegInfo aliasInfo = vregInfoOf(getAlias(irFunction.getVregById(graph.getAdj(id, k))));
+                    if (aliasInfo.state == NodeState.COLORED || aliasInfo.state == NodeState.PRECOLORED) {
+                        okColors.remove(aliasInfo.color);
+                    }
+                }
+                if (okColors.isEmpty()) {
+                    vregInfo.state = NodeState.SPILLED;
+                    spilledNodes.add(vreg);
+                    continue;
+                }
+                vregInfo.state = NodeState.COLORED;
+                vregInfo.color = getPreferredColor(okColors, vregInfo.crossesCall);
+                // prefer the color of a frozen move partner, so that the move can still be removed
+                for (IRMove move : vregInfo.moves) {
+                    VirtualRegister lhs = getAlias((VirtualRegister) move.getLhs());
+                    VirtualRegister partner = lhs == vreg ? getAlias((VirtualRegister) move.getRhs()) : lhs;
+                    VirtualRegInfo partnerInfo = vregInfoOf(partner);
+                    if ((partnerInfo.state == NodeState.COLORED || partnerInfo.state == NodeState.PRECOLORED) &&
+                            okColors.contains(partnerInfo.color)) {
+                        vregInfo.color = partnerInfo.color;
+                        break;
+                    }
                 }
             }
-            for (VirtualRegInfo vregInfo : vregInfoMap.values()) {
-                vregInfo.degree = vregInfo.neighbours.size();
-            }
-            vregNodes.addAll(vregInfoMap.keySet());
-            for (VirtualRegister vreg : vregNodes) {
-                if (vregInfoMap.get(vreg).degree < numColors) {
-                    degreeSmallVregNodes.add(vreg);
-                }
-            }
-
-            vregOrder.clear();
-            while (!vregNodes.isEmpty()) {
-                while (!degreeSmallVregNodes.isEmpty()) {
-                    Iterator<VirtualRegister> iterator = degreeSmallVregNodes.iterator();
-                    VirtualRegister vreg = iterator.next();
-                    iterator.remove();
-                    removeVregNode(vreg);
-                    vregOrder.add(vreg);
-                }
-                if (vregNodes.isEmpty()) break;
-                Iterator<VirtualRegister> iterator = vregNodes.iterator();
-                VirtualRegister vreg = iterator.next();
-                iterator.remove();
-                removeVregNode(vreg);
-                vregOrder.add(vreg);
-            }
-            Collections.reverse(vregOrder);
-            for (VirtualRegister vreg : vregOrder) {
-                VirtualRegInfo vregInfo = vregInfoMap.get(vreg);
-                vregInfo.removed = false;
-                usedColors.clear();
-                for (VirtualRegister neighbour : vregInfo.neighbours) {
-                    VirtualRegInfo neighbourInfo = vregInfoMap.get(neighbour);
-                    if (!neighbourInfo.removed && neighbourInfo.color instanceof PhysicalRegister) {
-                        usedColors.add((PhysicalRegister) neighbourInfo.color);
+            for (VirtualRegister vreg : coalescedNodes) {
+                vregInfoOf(vreg).color = vregInfoOf(getAlias(vreg)).color;
+            }
+        }
+
+        // spilled nodes, together with the nodes coalesced into them, live in a stack slot,
+        // and allocation is rerun with the short lived temporaries of the spill code
+        private void rewriteProgram() {
+            Map<VirtualRegister, List<VirtualRegister>> groupMap = new LinkedHashMap<>();
+            for (VirtualRegister vreg : spilledNodes) {
+                groupMap.put(vreg, new ArrayList<>(Collections.singletonList(vreg)));
+            }
+            for (VirtualRegister vreg : coalescedNodes) {
+                List<VirtualRegister> group = groupMap.get(getAlias(vreg));
+                if (group != null) group.add(vreg);
+            }
+            coalesceSpillSlots(groupMap);
+
+            Map<VirtualRegister, StackSlot> slotMap = new HashMap<>();
+            for (List<VirtualRegister> group : new LinkedHashSet<>(groupMap.values())) {
+                StackSlot slot = null;
+                for (VirtualRegister vreg : group) {
+                    if (irFunction.getArgsStackSlotMap().containsKey(vreg)) slot = irFunction.getArgsStackSlotMap().get(vreg);
+                }
+                if (slot == null) slot = getSpillSlot(irFunction, group.get(0));
+                for (VirtualRegister vreg : group) slotMap.put(vreg, slot);
+            }
+            rewriteSpilledRegs(irFunction, slotMap, spillTemps);
+        }
+
+        // spilled move partners which do not interfere share a stack slot, so that the move between them
+        // needs no load and store; copies left by SSA destruction are the usual case
+        private void coalesceSpillSlots(Map<VirtualRegister, List<VirtualRegister>> groupMap) {
+            for (VirtualRegister vreg : spilledNodes) {
+                for (IRMove move : vregInfoOf(vreg).moves) {
+                    VirtualRegister lhs = getAlias((VirtualRegister) move.getLhs());
+                    VirtualRegister partner = lhs == vreg ? getAlias((VirtualRegister) move.getRhs()) : lhs;
+                    List<VirtualRegister> group = groupMap.get(vreg), partnerGroup = groupMap.get(partner);
+                    if (partnerGroup == null || partnerGroup == group || !canShareSlot(group, partnerGroup)) continue;
+                    group.addAll(partnerGroup);
+                    for (VirtualRegister member : partnerGroup) {
+                        if (groupMap.containsKey(member)) groupMap.put(member, group);
                     }
                 }
-                PhysicalRegister forcedPhysicalRegister = vreg.getForcedPhysicalRegister();
-                if (forcedPhysicalRegister != null) {
-                    if (usedColors.contains(forcedPhysicalRegister)) {
-                        throw new CompilerError("forced physical register has been used");
+            }
+        }
+
+        private boolean canShareSlot(List<VirtualRegister> group1, List<VirtualRegister> group2) {
+            boolean hasArgSlot1 = false, hasArgSlot2 = false;
+            for (VirtualRegister vreg : group1) {
+                if (irFunction.getArgsStackSlotMap().containsKey(vreg)) hasArgSlot1 = true;
+            }
+            for (VirtualRegister vreg : group2) {
+                if (irFunction.getArgsStackSlotMap().containsKey(vreg)) hasArgSlot2 = true;
+                for (VirtualRegister other : group1) {
+                    if (graph.isAdjacent(vreg.getId(), other.getId())) return false;
+                }
+            }
+            return !(hasArgSlot1 && hasArgSlot2);
+        }
+    }
+
+    // each use and definition of a spilled register gets a fresh temporary, loaded from or stored to its slot,
+    // the temporaries are added to spillTemps
+    static void rewriteSpilledRegs(IRFunction irFunction, Map<VirtualRegister, StackSlot> slotMap, Set<VirtualRegister> spillTemps) {
+        Map<IRRegister, IRRegister> renameMap = new HashMap<>();
+        Map<VirtualRegister, VirtualRegister> tempMap = new HashMap<>();
+        for (BasicBlock bb : irFunction.getReversePreOrder()) {
+            for (IRInstruction inst = bb.getFirstInst(), nextInst; inst != null; inst = nextInst) {
+                nextInst = inst.getNextInst();
+                tempMap.clear();
+                if (inst instanceof IRMove && slotMap.get(((IRMove) inst).getLhs()) != null &&
+                        slotMap.get(((IRMove) inst).getLhs()) == slotMap.get(((IRMove) inst).getRhs())) {
+                    // both sides share a stack slot
+                    inst.remove();
+                    continue;
+                }
+                if (inst instanceof IRFunctionCall) {
+                    // arguments can be passed from stack slots directly
+                    List<RegValue> args = ((IRFunctionCall) inst).getArgs();
+                    for (int i = 0; i < args.size(); ++i) {
+                        StackSlot slot = slotMap.get(args.get(i));
+                        if (slot != null) args.set(i, slot);
                     }
-                    vregInfo.color = forcedPhysicalRegister;
+                    inst.reloadUsedRegistersRegValues();
                 } else {
-                    for (VirtualRegister suggestSameVreg : vregInfo.suggestSameVRegs) {
-                        IRRegister color = getVregInfo(suggestSameVreg).color;
-                        if (color instanceof PhysicalRegister && !usedColors.contains(color)) {
-                            vregInfo.color = color;
-                            break;
-                        }
-                    }
-                    if (vregInfo.color == null) {
-                        for (PhysicalRegister physicalReg : physicalRegs) {
-                            if (!usedColors.contains(physicalReg)) {
-                                vregInfo.color = physicalReg;
-                                break;
+                    boolean spilledUse = false;
+                    renameMap.clear();
+                    for (IRRegister reg : inst.getUsedRegisters()) {
+                        StackSlot slot = slotMap.get(reg);
+                        if (slot != null) {
+                            VirtualRegister temp = tempMap.get(reg);
+                            if (temp == null) {
+                                temp = new VirtualRegister(((VirtualRegister) reg).getName());
+                                spillTemps.add(temp);
+                                tempMap.put((VirtualRegister) reg, temp);
+                                inst.prependInst(new IRLoad(bb, temp, Configuration.getRegSize(), slot, 0));
                             }
-                        }
-                        if (vregInfo.color == null) {
-                            vregInfo.color = irFunction.getArgsStackSlotMap().get(vreg);
-                            if (vregInfo.color == null) vregInfo.color = new StackSlot(irFunction, vreg.getName(), false);
+                            renameMap.put(reg, temp);
+                            spilledUse = true;
+                        } else {
+                            renameMap.put(reg, reg);
                         }
                     }
+                    if (spilledUse) inst.setUsedRegisters(renameMap);
+                }
+                IRRegister definedReg = inst.getDefinedRegister();
+                StackSlot slot = slotMap.get(definedReg);
+                if (slot == null) continue;
+                if (inst instanceof IRLoad && ((IRLoad) inst).getAddr() == slot) {
+                    // an argument loaded from its own stack slot
+                    inst.remove();
+                    continue;
+                }
+                VirtualRegister temp = tempMap.get(definedReg);
+                if (temp == null) {
+                    temp = new VirtualRegister(((VirtualRegister) definedReg).getName());
+                    spillTemps.add(temp);
                 }
+                inst.setDefinedRegister(temp);
+                inst.appendInst(new IRStore(bb, temp, Configuration.getRegSize(), slot, 0));
             }
+        }
+    }
 
-            updateInstruction(irFunction);
+    // spill and argument loads and stores left after allocation, in total and inside loops
+    public static Map<String, Long> countStackSlotAccesses(IRRoot ir) {
+        long loads = 0, stores = 0, loadsInLoops = 0, storesInLoops = 0;
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            for (BasicBlock bb : irFunction.getReversePreOrder()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (inst instanceof IRLoad && ((IRLoad) inst).getAddr() instanceof StackSlot) {
+                        ++loads;
+                        if (bb.getLoopDepth() > 0) ++loadsInLoops;
+                    } else if (inst instanceof IRStore && ((IRStore) inst).getAddr() instanceof StackSlot) {
+                        ++stores;
+                        if (bb.getLoopDepth() > 0) ++storesInLoops;
+                    }
+                }
+            }
         }
+        Map<String, Long> counts = new LinkedHashMap<>();
+        counts.put("loads", loads);
+        counts.put("stores", stores);
+        counts.put("loadsInLoops", loadsInLoops);
+        counts.put("storesInLoops", storesInLoops);
+        return counts;
     }
 
-    private void updateInstruction(IRFunction func) {
-        for (BasicBlock bb : func.getReversePreOrder()) {
+    static void assignPhysicalRegs(IRFunction irFunction, Map<VirtualRegister, PhysicalRegister> colorMap) {
+        Map<IRRegister, IRRegister> renameMap = new HashMap<>();
+        for (BasicBlock bb : irFunction.getReversePreOrder()) {
             for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
                 if (inst instanceof IRFunctionCall) {
                     List<RegValue> args = ((IRFunctionCall) inst).getArgs();
                     for (int i = 0; i < args.size(); ++i) {
                         if (args.get(i) instanceof VirtualRegister) {
-                            args.set(i, vregInfoMap.get(args.get(i)).color);
+                            PhysicalRegister color = colorMap.get(args.get(i));
+                            args.set(i, color);
+                            irFunction.getUsedPhysicalGeneralRegs().add(color);
                         }
                     }
+                    inst.reloadUsedRegistersRegValues();
                 } else {
                     Collection<IRRegister> usedRegisters = inst.getUsedRegisters();
                     if (!usedRegisters.isEmpty()) {
-                        boolean usedPreg0 = false;
                         renameMap.clear();
                         for (IRRegister reg : usedRegisters) {
                             if (reg instanceof VirtualRegister) {
-                                IRRegister color = vregInfoMap.get(reg).color;
-                                if (color instanceof StackSlot) {
-                                    PhysicalRegister preg;
-                                    if (usedPreg0) {
-                                        preg = preg1;
-                                    } else {
-                                        preg = preg0;
-                                        usedPreg0 = true;
-                                    }
-                                    inst.prependInst(new IRLoad(bb, preg, Configuration.getRegSize(), color, 0));
-                                    renameMap.put(reg, preg);
-                                    func.getUsedPhysicalGeneralRegs().add(preg);
-                                } else {
-                                    renameMap.put(reg, color);
-                                    func.getUsedPhysicalGeneralRegs().add((PhysicalRegister) color);
-                                }
+                                PhysicalRegister color = colorMap.get(reg);
+                                renameMap.put(reg, color);
+                                irFunction.getUsedPhysicalGeneralRegs().add(color);
                             } else {
                                 renameMap.put(reg, reg);
                             }
@@ -229,18 +825,11 @@ public class RegisterAllocator {
                 }
                 IRRegister definedReg = inst.getDefinedRegister();
                 if (definedReg instanceof VirtualRegister) {
-                    IRRegister color = vregInfoMap.get(definedReg).color;
-                    if (color instanceof StackSlot) {
-                        inst.setDefinedRegister(preg0);
-                        inst.appendInst(new IRStore(bb, preg0, Configuration.getRegSize(), color, 0));
-                        func.getUsedPhysicalGeneralRegs().add(preg0);
-                        inst = inst.getNextInst();
-                    } else {
-                        inst.setDefinedRegister(color);
-                        func.getUsedPhysicalGeneralRegs().add((PhysicalRegister) color);
-                    }
+                    PhysicalRegister color = colorMap.get(definedReg);
+                    inst.setDefinedRegister(color);
+                    irFunction.getUsedPhysicalGeneralRegs().add(color);
                 }
             }
         }
     }
-}
\ No newline at end of file
+}
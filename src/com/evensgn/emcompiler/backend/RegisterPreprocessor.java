@@ -32,7 +32,11 @@ public class RegisterPreprocessor {
 
     public void run() {
         for (IRFunction irFunction : ir.getFuncs().values()) {
-            processFuncArgs(irFunction);
+            run(irFunction);
         }
     }
+
+    public void run(IRFunction irFunction) {
+        processFuncArgs(irFunction);
+    }
 }
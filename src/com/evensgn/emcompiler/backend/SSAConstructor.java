@@ -0,0 +1,176 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.util.*;
+
+// SSA construction by Cytron et al.: phi functions at the iterated dominance frontiers of the definitions
+// of registers live across blocks, then renaming in a preorder walk of the dominator tree
+public class SSAConstructor {
+    private IRRoot ir;
+
+    public SSAConstructor(IRRoot ir) {
+        this.ir = ir;
+    }
+
+    public void run() {
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        new FuncConstructor(irFunction).construct();
+    }
+
+    private class FuncConstructor {
+        private IRFunction irFunction;
+        private DominatorTree domTree;
+        private Map<BasicBlock, List<IRPhi>> phiMap = new HashMap<>();
+        private Map<IRPhi, VirtualRegister> phiVarMap = new HashMap<>();
+        private Map<VirtualRegister, Deque<VirtualRegister>> nameStackMap = new HashMap<>();
+
+        FuncConstructor(IRFunction irFunction) {
+            this.irFunction = irFunction;
+        }
+
+        private void construct() {
+            domTree = new DominatorTree(irFunction);
+            insertPhis();
+            rename();
+            removeDeadPhis();
+            // the renamed versions take the place of the original registers
+            irFunction.renumberVregs(irFunction.getReversePostOrder());
+        }
+
+        private void insertPhis() {
+            // registers used in some block before defined there are the only ones needing phi functions
+            Map<VirtualRegister, Set<BasicBlock>> defBBMap = new LinkedHashMap<>();
+            Set<VirtualRegister> globalVregs = new HashSet<>();
+            for (VirtualRegister argVreg : irFunction.getArgVRegList()) {
+                defBBMap.computeIfAbsent(argVreg, k -> new LinkedHashSet<>()).add(irFunction.getStartBB());
+            }
+            for (BasicBlock bb : domTree.getBBList()) {
+                Set<VirtualRegister> killed = new HashSet<>();
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    for (IRRegister reg : inst.getUsedRegisters()) {
+                        if (reg instanceof VirtualRegister && !killed.contains(reg)) globalVregs.add((VirtualRegister) reg);
+                    }
+                    if (inst.getDefinedRegister() instanceof VirtualRegister) {
+                        VirtualRegister vreg = (VirtualRegister) inst.getDefinedRegister();
+                        killed.add(vreg);
+                        defBBMap.computeIfAbsent(vreg, k -> new LinkedHashSet<>()).add(bb);
+                    }
+                }
+            }
+
+            for (Map.Entry<VirtualRegister, Set<BasicBlock>> entry : defBBMap.entrySet()) {
+                VirtualRegister vreg = entry.getKey();
+                if (!globalVregs.contains(vreg)) continue;
+                Set<BasicBlock> phiBBs = new HashSet<>();
+                Deque<BasicBlock> worklist = new ArrayDeque<>(entry.getValue());
+                Set<BasicBlock> inWorklist = new HashSet<>(entry.getValue());
+                while (!worklist.isEmpty()) {
+                    BasicBlock bb = worklist.poll();
+                    for (BasicBlock frontier : domTree.getDominanceFrontier(bb)) {
+                        if (!phiBBs.add(frontier)) continue;
+                        IRPhi phi = new IRPhi(frontier, vreg);
+                        frontier.getFirstInst().prependInst(phi);
+                        phiMap.computeIfAbsent(frontier, k -> new ArrayList<>()).add(phi);
+                        phiVarMap.put(phi, vreg);
+                        if (inWorklist.add(frontier)) worklist.add(frontier);
+                    }
+                }
+            }
+        }
+
+        private VirtualRegister newName(VirtualRegister vreg) {
+            VirtualRegister newVreg = new VirtualRegister(vreg.getName());
+            nameStackMap.computeIfAbsent(vreg, k -> new ArrayDeque<>()).push(newVreg);
+            return newVreg;
+        }
+
+        // null if no definition reaches here
+        private VirtualRegister currentName(VirtualRegister vreg) {
+            Deque<VirtualRegister> nameStack = nameStackMap.get(vreg);
+            return nameStack == null || nameStack.isEmpty() ? null : nameStack.peek();
+        }
+
+        // preorder walk of the dominator tree with an explicit stack, names pushed in a block are popped after its subtree
+        private void rename() {
+            for (VirtualRegister argVreg : irFunction.getArgVRegList()) {
+                nameStackMap.computeIfAbsent(argVreg, k -> new ArrayDeque<>()).push(argVreg);
+            }
+            Map<IRRegister, IRRegister> renameMap = new HashMap<>();
+            Deque<BasicBlock> bbStack = new ArrayDeque<>();
+            Deque<List<VirtualRegister>> pushedStack = new ArrayDeque<>();
+            Set<BasicBlock> visited = new HashSet<>();
+            bbStack.push(irFunction.getStartBB());
+            while (!bbStack.isEmpty()) {
+                BasicBlock bb = bbStack.peek();
+                if (visited.contains(bb)) {
+                    bbStack.pop();
+                    for (VirtualRegister vreg : pushedStack.pop()) nameStackMap.get(vreg).pop();
+                    continue;
+                }
+                visited.add(bb);
+                List<VirtualRegister> pushed = new ArrayList<>();
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (!(inst instanceof IRPhi)) {
+                        renameMap.clear();
+                        for (IRRegister reg : inst.getUsedRegisters()) {
+                            VirtualRegister name = reg instanceof VirtualRegister ? currentName((VirtualRegister) reg) : null;
+                            renameMap.put(reg, name == null ? reg : name);
+                        }
+                        if (!renameMap.isEmpty()) inst.setUsedRegisters(renameMap);
+                    }
+                    IRRegister definedReg = inst.getDefinedRegister();
+                    if (definedReg instanceof VirtualRegister) {
+                        VirtualRegister vreg = inst instanceof IRPhi ? phiVarMap.get(inst) : (VirtualRegister) definedReg;
+                        inst.setDefinedRegister(newName(vreg));
+                        pushed.add(vreg);
+                    }
+                }
+                for (BasicBlock succ : RegLivelinessAnalysis.successors(bb)) {
+                    List<IRPhi> phis = phiMap.get(succ);
+                    if (phis == null) continue;
+                    for (IRPhi phi : phis) {
+                        VirtualRegister name = currentName(phiVarMap.get(phi));
+                        phi.setPath(bb, name == null ? new IntImmediate(0) : name);
+                    }
+                }
+                pushedStack.push(pushed);
+                List<BasicBlock> children = domTree.getChildren(bb);
+                for (int i = children.size() - 1; i >= 0; --i) bbStack.push(children.get(i));
+            }
+        }
+
+        // phi functions whose results reach no other instruction than phi functions are removed
+        private void removeDeadPhis() {
+            Map<VirtualRegister, IRPhi> phiDefMap = new HashMap<>();
+            for (List<IRPhi> phis : phiMap.values()) {
+                for (IRPhi phi : phis) phiDefMap.put(phi.getDest(), phi);
+            }
+            Set<IRPhi> livePhis = new HashSet<>();
+            Deque<IRPhi> worklist = new ArrayDeque<>();
+            for (BasicBlock bb : domTree.getBBList()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (inst instanceof IRPhi) continue;
+                    for (IRRegister reg : inst.getUsedRegisters()) {
+                        IRPhi phi = phiDefMap.get(reg);
+                        if (phi != null && livePhis.add(phi)) worklist.add(phi);
+                    }
+                }
+            }
+            while (!worklist.isEmpty()) {
+                for (IRRegister reg : worklist.poll().getUsedRegisters()) {
+                    IRPhi phi = phiDefMap.get(reg);
+                    if (phi != null && livePhis.add(phi)) worklist.add(phi);
+                }
+            }
+            for (IRPhi phi : phiDefMap.values()) {
+                if (!livePhis.contains(phi)) phi.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.util.*;
+
+// replaces phi functions with moves at the end of predecessors; critical edges are split first,
+// and the moves of an edge, which are parallel copies, are sequentialized with temporaries for cycles
+public class SSADestructor {
+    private IRRoot ir;
+
+    public SSADestructor(IRRoot ir) {
+        this.ir = ir;
+    }
+
+    private class Copy {
+        VirtualRegister dest;
+        RegValue src;
+
+        Copy(VirtualRegister dest, RegValue src) {
+            this.dest = dest;
+            this.src = src;
+        }
+    }
+
+    public void run() {
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        boolean changed = false;
+        for (BasicBlock bb : new ArrayList<>(irFunction.getReversePostOrder())) {
+            List<IRPhi> phis = new ArrayList<>();
+            for (IRInstruction inst = bb.getFirstInst(); inst instanceof IRPhi; inst = inst.getNextInst()) {
+                phis.add((IRPhi) inst);
+            }
+            if (phis.isEmpty()) continue;
+            changed = true;
+
+            Map<BasicBlock, List<Copy>> copyMap = new LinkedHashMap<>();
+            for (IRPhi phi : phis) {
+                for (Map.Entry<BasicBlock, RegValue> entry : phi.getPaths().entrySet()) {
+                    copyMap.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(new Copy(phi.getDest(), entry.getValue()));
+                }
+                phi.remove();
+            }
+            for (Map.Entry<BasicBlock, List<Copy>> entry : copyMap.entrySet()) {
+                BasicBlock pred = entry.getKey();
+                if (pred.getLastInst() instanceof IRBranch) pred = splitEdge(pred, bb);
+                sequentialize(pred, entry.getValue());
+            }
+        }
+        // block orders are computed again on demand
+        if (changed) irFunction.setNewBBGraph(irFunction.getStartBB(), irFunction.getEndBB());
+    }
+
+    // inserts a block on the edge from pred to bb, and returns it
+    private BasicBlock splitEdge(BasicBlock pred, BasicBlock bb) {
+        BasicBlock midBB = new BasicBlock(pred.getFunc(), "split_edge");
+        midBB.setJumpInst(new IRJump(midBB, bb));
+        IRBranch branch = (IRBranch) pred.getLastInst();
+        IRBranch newBranch = new IRBranch(pred, branch.getCond(),
+                branch.getThenBB() == bb ? midBB : branch.getThenBB(),
+                branch.getElseBB() == bb ? midBB : branch.getElseBB());
+        branch.remove();
+        pred.setJumpInst(newBranch);
+        return midBB;
+    }
+
+    private void sequentialize(BasicBlock bb, List<Copy> copies) {
+        IRInstruction jumpInst = bb.getLastInst();
+        List<Copy> pending = new ArrayList<>();
+        for (Copy copy : copies) {
+            if (copy.dest != copy.src) pending.add(copy);
+        }
+        while (!pending.isEmpty()) {
+            Copy ready = null;
+            for (Copy copy : pending) {
+                boolean isSrc = false;
+                for (Copy other : pending) {
+                    if (other.src == copy.dest) {
+                        isSrc = true;
+                        break;
+                    }
+                }
+                if (!isSrc) {
+                    ready = copy;
+                    break;
+                }
+            }
+            if (ready == null) {
+                // only cycles left, save one destination and read the saved value instead
+                Copy copy = pending.get(0);
+                VirtualRegister temp = new VirtualRegister(copy.dest.getName() + "_phi_tmp");
+                jumpInst.prependInst(new IRMove(bb, temp, copy.dest));
+                for (Copy other : pending) {
+                    if (other.src == copy.dest) other.src = temp;
+                }
+                continue;
+            }
+            jumpInst.prependInst(new IRMove(bb, ready.dest, ready.src));
+            pending.remove(ready);
+        }
+    }
+}
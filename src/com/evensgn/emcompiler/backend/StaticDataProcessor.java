@@ -13,13 +13,14 @@ public class StaticDataProcessor {
     }
 
     private class FuncInfo {
-        Set<StaticData> definedStaticData = new HashSet<>();
-        Set<StaticData> recursiveDefinedStaticData = new HashSet<>();
-        Set<StaticData> recursiveUsedStaticData = new HashSet<>();
-        Map<StaticData, VirtualRegister> staticDataVregMap = new HashMap<>();
+        Set<StaticData> definedStaticData = new LinkedHashSet<>();
+        Set<StaticData> recursiveDefinedStaticData = new LinkedHashSet<>();
+        Set<StaticData> recursiveUsedStaticData = new LinkedHashSet<>();
+        Map<StaticData, VirtualRegister> staticDataVregMap = new LinkedHashMap<>();
     }
 
-    private Map<IRFunction, FuncInfo> funcInfoMap = new HashMap<>();
+    // by function id
+    private FuncInfo[] funcInfos;
 
     private boolean isStaticLoadStore(IRInstruction inst) {
         return (inst instanceof IRLoad && ((IRLoad) inst).isStaticData()) ||
@@ -36,9 +37,10 @@ public class StaticDataProcessor {
     }
 
     public void run() {
+        funcInfos = new FuncInfo[ir.getNumFuncIds()];
         for (IRFunction irFunction : ir.getFuncs().values()) {
             FuncInfo funcInfo = new FuncInfo();
-            funcInfoMap.put(irFunction, funcInfo);
+            funcInfos[irFunction.getId()] = funcInfo;
             Map<IRRegister, IRRegister> renameMap = new HashMap<>();
             for (BasicBlock bb : irFunction.getReversePostOrder()) {
                 for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
@@ -72,28 +74,28 @@ public class StaticDataProcessor {
         }
 
         for (IRFunction builtFunc : ir.getBuiltInFuncs().values()) {
-            funcInfoMap.put(builtFunc, new FuncInfo());
+            funcInfos[builtFunc.getId()] = new FuncInfo();
         }
         for (IRFunction irFunction : ir.getFuncs().values()) {
-            FuncInfo funcInfo = funcInfoMap.get(irFunction);
+            FuncInfo funcInfo = funcInfos[irFunction.getId()];
             funcInfo.recursiveUsedStaticData.addAll(funcInfo.staticDataVregMap.keySet());
             funcInfo.recursiveDefinedStaticData.addAll(funcInfo.definedStaticData);
             for (IRFunction calleeFunc : irFunction.recursiveCalleeSet) {
-                FuncInfo calleeFuncInfo = funcInfoMap.get(calleeFunc);
+                FuncInfo calleeFuncInfo = funcInfos[calleeFunc.getId()];
                 funcInfo.recursiveUsedStaticData.addAll(calleeFuncInfo.staticDataVregMap.keySet());
                 funcInfo.recursiveDefinedStaticData.addAll(calleeFuncInfo.definedStaticData);
             }
         }
 
         for (IRFunction irFunction : ir.getFuncs().values()) {
-            FuncInfo funcInfo = funcInfoMap.get(irFunction);
+            FuncInfo funcInfo = funcInfos[irFunction.getId()];
             Set<StaticData> usedStaticData = funcInfo.staticDataVregMap.keySet();
             if (usedStaticData.isEmpty()) continue;
             for (BasicBlock bb : irFunction.getReversePostOrder()) {
                 for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
                     if (!(inst instanceof IRFunctionCall)) continue;
                     IRFunction calleeFunc = ((IRFunctionCall) inst).getFunc();
-                    FuncInfo calleeFuncInfo = funcInfoMap.get(calleeFunc);
+                    FuncInfo calleeFuncInfo = funcInfos[calleeFunc.getId()];
                     // store defined static data before function call
                     for (StaticData staticData : funcInfo.definedStaticData) {
                         if (staticData instanceof StaticString) continue;
@@ -103,7 +105,7 @@ public class StaticDataProcessor {
                     }
                     // load used static data after function call
                     if (calleeFuncInfo.recursiveDefinedStaticData.isEmpty()) continue;
-                    Set<StaticData> loadStaticDataSet = new HashSet<>();
+                    Set<StaticData> loadStaticDataSet = new LinkedHashSet<>();
                     loadStaticDataSet.addAll(calleeFuncInfo.recursiveDefinedStaticData);
                     loadStaticDataSet.retainAll(usedStaticData);
                     for (StaticData staticData : loadStaticDataSet) {
@@ -115,7 +117,7 @@ public class StaticDataProcessor {
         }
 
         for (IRFunction irFunction : ir.getFuncs().values()) {
-            FuncInfo funcInfo = funcInfoMap.get(irFunction);
+            FuncInfo funcInfo = funcInfos[irFunction.getId()];
             IRReturn retInst = irFunction.getRetInstList().get(0);
             // store defined data at the end of function
             for (StaticData staticData : funcInfo.definedStaticData) {
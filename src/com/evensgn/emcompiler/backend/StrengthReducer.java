@@ -0,0 +1,362 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.util.*;
+
+import static com.evensgn.emcompiler.ir.IRBinaryOperation.IRBinaryOp.*;
+
+// strength reduction of induction variables on SSA form: a register computed as scale * i + base + offset from
+// a basic induction variable i, like the address of a[i], gets its own variable moved by a constant stride;
+// a counter then only read by the exit comparison is replaced there by such a variable and removed
+public class StrengthReducer {
+    private IRRoot ir;
+
+    public StrengthReducer(IRRoot ir) {
+        this.ir = ir;
+    }
+
+    public void run() {
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        new FuncReducer(irFunction).reduce();
+    }
+
+    // i = phi(init, next) in the loop header, with next = i + stride in the loop
+    private class BasicIV {
+        IRPhi phi;
+        RegValue init;
+        IRBinaryOperation nextInst;
+        long stride;
+    }
+
+    // value of scale * i + base + offset, base being null or a register not changed in the loop
+    private class DerivedIV {
+        BasicIV basicIV;
+        long scale, offset;
+        IRRegister base;
+
+        DerivedIV(BasicIV basicIV, long scale, IRRegister base, long offset) {
+            this.basicIV = basicIV;
+            this.scale = scale;
+            this.base = base;
+            this.offset = offset;
+        }
+    }
+
+    // the new induction variable of a (basic IV, scale, base) family
+    private class ReducedIV {
+        BasicIV basicIV;
+        VirtualRegister cur, next;
+        long scale;
+        IRRegister base;
+    }
+
+    private class FuncReducer {
+        private IRFunction irFunction;
+        private DominatorTree domTree;
+        private Map<VirtualRegister, BasicBlock> defBBMap = new HashMap<>();
+        private Set<VirtualRegister> multiDefVregs = new HashSet<>();
+        // static data of the loop being reduced are invariant unless written there or by a callee
+        private Set<IRRegister> loopDefinedRegs = new HashSet<>();
+        private boolean loopHasCall;
+
+        FuncReducer(IRFunction irFunction) {
+            this.irFunction = irFunction;
+        }
+
+        private void reduce() {
+            domTree = new DominatorTree(irFunction);
+            List<NaturalLoop> loops = NaturalLoop.findLoops(domTree);
+            if (loops.isEmpty()) return;
+            for (VirtualRegister argVreg : irFunction.getArgVRegList()) defBBMap.put(argVreg, null);
+            for (BasicBlock bb : domTree.getBBList()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (!(inst.getDefinedRegister() instanceof VirtualRegister)) continue;
+                    VirtualRegister vreg = (VirtualRegister) inst.getDefinedRegister();
+                    if (defBBMap.containsKey(vreg)) multiDefVregs.add(vreg);
+                    defBBMap.put(vreg, bb);
+                }
+            }
+            for (NaturalLoop loop : loops) {
+                BasicBlock preheader = loop.getPreheader(domTree);
+                if (preheader != null) reduceLoop(loop, preheader);
+            }
+        }
+
+        private boolean isSSAReg(RegValue value) {
+            return value instanceof VirtualRegister && defBBMap.containsKey(value) && !multiDefVregs.contains(value);
+        }
+
+        private boolean isInvariant(NaturalLoop loop, RegValue value) {
+            if (value instanceof StaticVar) return !loopHasCall && !loopDefinedRegs.contains(value);
+            return value instanceof IntImmediate || (isSSAReg(value) && !loop.contains(defBBMap.get(value)));
+        }
+
+        private boolean isInt(long value) {
+            return value == (int) value;
+        }
+
+        private void reduceLoop(NaturalLoop loop, BasicBlock preheader) {
+            Map<VirtualRegister, BasicIV> basicIVMap = findBasicIVs(loop, preheader);
+            if (basicIVMap.isEmpty()) return;
+            loopDefinedRegs.clear();
+            loopHasCall = false;
+            for (BasicBlock bb : loop.getBody()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (inst.getDefinedRegister() != null) loopDefinedRegs.add(inst.getDefinedRegister());
+                    if (inst instanceof IRFunctionCall) loopHasCall = true;
+                }
+            }
+
+            // derived induction variables, operands come before their uses in the dominator tree order
+            Map<VirtualRegister, DerivedIV> derivedIVMap = new LinkedHashMap<>();
+            Map<VirtualRegister, IRInstruction> derivedDefMap = new LinkedHashMap<>();
+            for (BasicIV basicIV : basicIVMap.values()) {
+                derivedIVMap.put(basicIV.phi.getDest(), new DerivedIV(basicIV, 1, null, 0));
+            }
+            for (BasicBlock bb : domTree.getBBList()) {
+                if (!loop.contains(bb)) continue;
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    if (!(inst instanceof IRBinaryOperation) || !isSSAReg(inst.getDefinedRegister())) continue;
+                    DerivedIV derivedIV = deriveIV(loop, (IRBinaryOperation) inst, derivedIVMap);
+                    if (derivedIV == null) continue;
+                    derivedIVMap.put((VirtualRegister) inst.getDefinedRegister(), derivedIV);
+                    derivedDefMap.put((VirtualRegister) inst.getDefinedRegister(), inst);
+                }
+            }
+
+            // only values read by something else than another derived induction variable are reduced,
+            // a multiplication being there to save
+            Map<VirtualRegister, List<IRInstruction>> useMap = collectUses();
+            Map<List<Object>, ReducedIV> reducedIVMap = new LinkedHashMap<>();
+            Map<IRRegister, IRRegister> renameMap = new HashMap<>();
+            for (Map.Entry<VirtualRegister, IRInstruction> entry : derivedDefMap.entrySet()) {
+                VirtualRegister vreg = entry.getKey();
+                DerivedIV derivedIV = derivedIVMap.get(vreg);
+                if (derivedIV.scale == 1) continue;
+                boolean needed = false;
+                for (IRInstruction use : useMap.getOrDefault(vreg, Collections.emptyList())) {
+                    if (!derivedDefMap.containsKey(use.getDefinedRegister())) needed = true;
+                }
+                if (!needed || !isInt(derivedIV.scale) || !isInt(derivedIV.offset) ||
+                        !isInt(derivedIV.scale * derivedIV.basicIV.stride)) continue;
+                ReducedIV reducedIV = reducedIVMap.computeIfAbsent(Arrays.asList(derivedIV.basicIV, derivedIV.scale, derivedIV.base),
+                        k -> newReducedIV(loop, preheader, derivedIV));
+                IRInstruction defInst = entry.getValue();
+                if (derivedIV.offset == 0) {
+                    renameMap.put(vreg, reducedIV.cur);
+                    defInst.remove();
+                } else {
+                    defInst.replace(new IRBinaryOperation(defInst.getParentBB(), vreg, ADD, reducedIV.cur, new IntImmediate((int) derivedIV.offset)));
+                }
+            }
+            if (reducedIVMap.isEmpty()) return;
+            rename(renameMap);
+            removeDeadDerivedIVs(derivedDefMap);
+            for (BasicIV basicIV : basicIVMap.values()) {
+                for (ReducedIV reducedIV : reducedIVMap.values()) {
+                    if (reducedIV.basicIV == basicIV && replaceTest(loop, preheader, basicIV, reducedIV)) break;
+                }
+            }
+        }
+
+        private Map<VirtualRegister, BasicIV> findBasicIVs(NaturalLoop loop, BasicBlock preheader) {
+            Map<VirtualRegister, BasicIV> basicIVMap = new LinkedHashMap<>();
+            for (IRInstruction inst = loop.getHeader().getFirstInst(); inst instanceof IRPhi; inst = inst.getNextInst()) {
+                IRPhi phi = (IRPhi) inst;
+                if (phi.getPaths().size() != 2 || !phi.getPaths().containsKey(preheader)) continue;
+                BasicIV basicIV = new BasicIV();
+                basicIV.phi = phi;
+                RegValue next = null;
+                for (Map.Entry<BasicBlock, RegValue> entry : phi.getPaths().entrySet()) {
+                    if (entry.getKey() == preheader) basicIV.init = entry.getValue();
+                    else next = entry.getValue();
+                }
+                if (!isSSAReg(next) || !loop.contains(defBBMap.get(next))) continue;
+                for (IRInstruction def = defBBMap.get(next).getFirstInst(); def != null; def = def.getNextInst()) {
+                    if (def.getDefinedRegister() == next && def instanceof IRBinaryOperation) basicIV.nextInst = (IRBinaryOperation) def;
+                }
+                IRBinaryOperation nextInst = basicIV.nextInst;
+                if (nextInst == null || !(nextInst.getRhs() instanceof IntImmediate)) continue;
+                int step = ((IntImmediate) nextInst.getRhs()).getValue();
+                if (nextInst.getLhs() != phi.getDest() || (nextInst.getOp() != ADD && nextInst.getOp() != SUB)) continue;
+                basicIV.stride = nextInst.getOp() == ADD ? step : -(long) step;
+                basicIVMap.put(phi.getDest(), basicIV);
+            }
+            return basicIVMap;
+        }
+
+        // null if the result is not an induction variable of the forms above
+        private DerivedIV deriveIV(NaturalLoop loop, IRBinaryOperation inst, Map<VirtualRegister, DerivedIV> derivedIVMap) {
+            RegValue lhs = inst.getLhs(), rhs = inst.getRhs();
+            DerivedIV iv = derivedIVMap.get(lhs);
+            RegValue other = rhs;
+            if (iv == null && inst.isCommutativeOp()) {
+                iv = derivedIVMap.get(rhs);
+                other = lhs;
+            }
+            if (iv == null || !isInvariant(loop, other)) return null;
+            long imm = other instanceof IntImmediate ? ((IntImmediate) other).getValue() : 0;
+            switch (inst.getOp()) {
+                case ADD:
+                    if (other instanceof IntImmediate) return new DerivedIV(iv.basicIV, iv.scale, iv.base, iv.offset + imm);
+                    if (iv.base != null) return null;
+                    return new DerivedIV(iv.basicIV, iv.scale, (IRRegister) other, iv.offset);
+                case SUB:
+                    if (!(other instanceof IntImmediate) || other != rhs) return null;
+                    return new DerivedIV(iv.basicIV, iv.scale, iv.base, iv.offset - imm);
+                case MUL:
+                    if (!(other instanceof IntImmediate) || iv.base != null) return null;
+                    return new DerivedIV(iv.basicIV, iv.scale * imm, null, iv.offset * imm);
+                case SHL:
+                    if (!(other instanceof IntImmediate) || other != rhs || imm < 0 || imm > 31 || iv.base != null) return null;
+                    return new DerivedIV(iv.basicIV, iv.scale << imm, null, iv.offset << imm);
+                default:
+                    return null;
+            }
+        }
+
+        // computes value * scale + base before the jump of the preheader
+        private RegValue emitLinear(BasicBlock preheader, RegValue value, long scale, IRRegister base, String name) {
+            IRInstruction jumpInst = preheader.getLastInst();
+            RegValue result;
+            if (value instanceof IntImmediate) {
+                result = new IntImmediate((int) (((IntImmediate) value).getValue() * scale));
+            } else if (scale == 1) {
+                result = value;
+            } else {
+                VirtualRegister vreg = new VirtualRegister(name);
+                jumpInst.prependInst(new IRBinaryOperation(preheader, vreg, MUL, value, new IntImmediate((int) scale)));
+                defBBMap.put(vreg, preheader);
+                result = vreg;
+            }
+            if (base == null) return result;
+            VirtualRegister vreg = new VirtualRegister(name);
+            jumpInst.prependInst(new IRBinaryOperation(preheader, vreg, ADD, base, result));
+            defBBMap.put(vreg, preheader);
+            return vreg;
+        }
+
+        private boolean fitsLinear(RegValue value, long scale) {
+            return !(value instanceof IntImmediate) || isInt(((IntImmediate) value).getValue() * scale);
+        }
+
+        private ReducedIV newReducedIV(NaturalLoop loop, BasicBlock preheader, DerivedIV derivedIV) {
+            BasicIV basicIV = derivedIV.basicIV;
+            ReducedIV reducedIV = new ReducedIV();
+            reducedIV.basicIV = basicIV;
+            reducedIV.scale = derivedIV.scale;
+            reducedIV.base = derivedIV.base;
+            // an initial value not fitting an immediate is computed at run time
+            RegValue init = basicIV.init;
+            if (!fitsLinear(init, derivedIV.scale)) {
+                VirtualRegister vreg = new VirtualRegister("iv_init");
+                preheader.getLastInst().prependInst(new IRMove(preheader, vreg, init));
+                defBBMap.put(vreg, preheader);
+                init = vreg;
+            }
+            init = emitLinear(preheader, init, derivedIV.scale, derivedIV.base, "iv_init");
+            reducedIV.cur = new VirtualRegister("iv");
+            reducedIV.next = new VirtualRegister("iv_next");
+            IRPhi phi = new IRPhi(loop.getHeader(), reducedIV.cur);
+            for (BasicBlock pred : basicIV.phi.getPaths().keySet()) {
+                phi.setPath(pred, pred == preheader ? init : reducedIV.next);
+            }
+            loop.getHeader().getFirstInst().prependInst(phi);
+            basicIV.nextInst.appendInst(new IRBinaryOperation(basicIV.nextInst.getParentBB(), reducedIV.next, ADD,
+                    reducedIV.cur, new IntImmediate((int) (derivedIV.scale * basicIV.stride))));
+            defBBMap.put(reducedIV.cur, loop.getHeader());
+            defBBMap.put(reducedIV.next, basicIV.nextInst.getParentBB());
+            return reducedIV;
+        }
+
+        private Map<VirtualRegister, List<IRInstruction>> collectUses() {
+            Map<VirtualRegister, List<IRInstruction>> useMap = new HashMap<>();
+            for (BasicBlock bb : domTree.getBBList()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    for (IRRegister reg : inst.getUsedRegisters()) {
+                        if (reg instanceof VirtualRegister) useMap.computeIfAbsent((VirtualRegister) reg, k -> new ArrayList<>()).add(inst);
+                    }
+                }
+            }
+            return useMap;
+        }
+
+        private void rename(Map<IRRegister, IRRegister> renameMap) {
+            if (renameMap.isEmpty()) return;
+            Map<IRRegister, IRRegister> instRenameMap = new HashMap<>();
+            for (BasicBlock bb : domTree.getBBList()) {
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    boolean renamed = false;
+                    instRenameMap.clear();
+                    for (IRRegister reg : inst.getUsedRegisters()) {
+                        instRenameMap.put(reg, renameMap.getOrDefault(reg, reg));
+                        if (renameMap.containsKey(reg)) renamed = true;
+                    }
+                    if (renamed) inst.setUsedRegisters(instRenameMap);
+                }
+            }
+        }
+
+        // the multiplications left behind are removed here, as the counter test below needs their uses gone
+        private void removeDeadDerivedIVs(Map<VirtualRegister, IRInstruction> derivedDefMap) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                Map<VirtualRegister, List<IRInstruction>> useMap = collectUses();
+                for (IRInstruction inst : derivedDefMap.values()) {
+                    if (inst.isRemoved() || useMap.containsKey(inst.getDefinedRegister())) continue;
+                    inst.remove();
+                    changed = true;
+                }
+            }
+        }
+
+        // linear function test replacement: i < n becomes iv < scale * n + base when i has no other use
+        private boolean replaceTest(NaturalLoop loop, BasicBlock preheader, BasicIV basicIV, ReducedIV reducedIV) {
+            if (reducedIV.scale <= 0) return false;
+            Map<VirtualRegister, List<IRInstruction>> useMap = collectUses();
+            VirtualRegister cur = basicIV.phi.getDest(), next = (VirtualRegister) basicIV.nextInst.getDest();
+            IRComparison cmp = null;
+            List<IRInstruction> uses = new ArrayList<>(useMap.getOrDefault(cur, Collections.emptyList()));
+            uses.addAll(useMap.getOrDefault(next, Collections.emptyList()));
+            for (IRInstruction use : uses) {
+                if (use == basicIV.nextInst || use == basicIV.phi) continue;
+                if (!(use instanceof IRComparison) || cmp != null || !loop.contains(use.getParentBB())) return false;
+                cmp = (IRComparison) use;
+            }
+            if (cmp == null) return false;
+            boolean ivOnLeft = cmp.getLhs() == cur || cmp.getLhs() == next;
+            RegValue iv = ivOnLeft ? cmp.getLhs() : cmp.getRhs(), bound = ivOnLeft ? cmp.getRhs() : cmp.getLhs();
+            if (iv == bound || !isInvariant(loop, bound) || !fitsLinear(bound, reducedIV.scale)) return false;
+
+            RegValue newBound = emitLinear(preheader, bound, reducedIV.scale, reducedIV.base, "iv_bound");
+            VirtualRegister newIV = iv == cur ? reducedIV.cur : reducedIV.next;
+            IRComparison.IRCmpOp op = ivOnLeft ? cmp.getOp() : swapCmpOp(cmp.getOp());
+            cmp.replace(new IRComparison(cmp.getParentBB(), cmp.getDest(), op, newIV, newBound));
+            basicIV.phi.remove();
+            basicIV.nextInst.remove();
+            return true;
+        }
+
+        private IRComparison.IRCmpOp swapCmpOp(IRComparison.IRCmpOp op) {
+            switch (op) {
+                case GREATER:
+                    return IRComparison.IRCmpOp.LESS;
+                case LESS:
+                    return IRComparison.IRCmpOp.GREATER;
+                case GREATER_EQUAL:
+                    return IRComparison.IRCmpOp.LESS_EQUAL;
+                case LESS_EQUAL:
+                    return IRComparison.IRCmpOp.GREATER_EQUAL;
+                default:
+                    return op;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.evensgn.emcompiler.backend;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.util.*;
+
+// self-recursive calls in tail position become jumps back to the old start block, on SSA form before inlining:
+// the arguments are given to phi functions there, and a new start block enters the loop made this way;
+// other tail calls are turned into jumps by NASMTransformer
+public class TailRecursionEliminator {
+    private IRRoot ir;
+
+    public TailRecursionEliminator(IRRoot ir) {
+        this.ir = ir;
+    }
+
+    public void run() {
+        boolean changed = false;
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            if (run(irFunction)) {
+                irFunction.updateCalleeSet();
+                changed = true;
+            }
+        }
+        // functions whose recursion is gone may be inlined now
+        if (changed) ir.updateCalleeSet();
+    }
+
+    // whether the value of the call, or nothing for a void call, goes through copies and phi functions alone to
+    // the return of the function; NASMTransformer also asks this after register allocation
+    static boolean isTailCall(IRFunctionCall funcCall) {
+        Set<RegValue> values = new HashSet<>();
+        if (funcCall.getDest() != null) values.add(funcCall.getDest());
+        Set<BasicBlock> visited = new HashSet<>();
+        BasicBlock fromBB = null;
+        IRInstruction inst = funcCall.getNextInst();
+        while (inst != null) {
+            if (inst instanceof IRPhi) {
+                if (values.contains(((IRPhi) inst).getPaths().get(fromBB))) values.add(((IRPhi) inst).getDest());
+            } else if (inst instanceof IRMove) {
+                // a copy into a global would be seen by the callee
+                IRRegister lhs = ((IRMove) inst).getLhs();
+                if (!(lhs instanceof VirtualRegister || lhs instanceof PhysicalRegister)) return false;
+                if (values.contains(((IRMove) inst).getRhs())) values.add(lhs);
+                else values.remove(lhs);
+            } else if (inst instanceof IRJump) {
+                BasicBlock targetBB = ((IRJump) inst).getTargetBB();
+                if (!visited.add(targetBB)) return false;
+                fromBB = inst.getParentBB();
+                inst = targetBB.getFirstInst();
+                continue;
+            } else if (inst instanceof IRReturn) {
+                RegValue retValue = ((IRReturn) inst).getRetValue();
+                return retValue == null ? funcCall.getDest() == null : values.contains(retValue);
+            } else {
+                return false;
+            }
+            inst = inst.getNextInst();
+        }
+        return false;
+    }
+
+    // whether the end block can still be reached once the tail calls are loops
+    private boolean isEndReachable(IRFunction irFunction, List<IRFunctionCall> tailCalls) {
+        Set<BasicBlock> visited = new HashSet<>();
+        for (IRFunctionCall funcCall : tailCalls) visited.add(funcCall.getParentBB());
+        Deque<BasicBlock> worklist = new ArrayDeque<>();
+        if (visited.add(irFunction.getStartBB())) worklist.add(irFunction.getStartBB());
+        while (!worklist.isEmpty()) {
+            BasicBlock bb = worklist.poll();
+            if (bb == irFunction.getEndBB()) return true;
+            for (BasicBlock nextBB : bb.getNextBBSet()) {
+                if (visited.add(nextBB)) worklist.add(nextBB);
+            }
+        }
+        return false;
+    }
+
+    private boolean run(IRFunction irFunction) {
+        List<IRFunctionCall> tailCalls = new ArrayList<>();
+        for (BasicBlock bb : irFunction.getReversePostOrder()) {
+            for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                if (!(inst instanceof IRFunctionCall) || ((IRFunctionCall) inst).getFunc() != irFunction) continue;
+                // a call with the return in its own block is run by every return
+                if (!(bb.getLastInst() instanceof IRJump)) continue;
+                if (isTailCall((IRFunctionCall) inst)) tailCalls.add((IRFunctionCall) inst);
+            }
+        }
+        if (tailCalls.isEmpty() || !isEndReachable(irFunction, tailCalls)) return false;
+        BasicBlock oldStartBB = irFunction.getStartBB();
+        if (!oldStartBB.getPrevBBSet().isEmpty()) return false;
+
+        BasicBlock newStartBB = new BasicBlock(irFunction, "tail_entry");
+        newStartBB.setJumpInst(new IRJump(newStartBB, oldStartBB));
+
+        // arguments are read from the phi functions from now on
+        Map<IRRegister, IRRegister> argRenameMap = new HashMap<>();
+        List<IRPhi> argPhis = new ArrayList<>();
+        for (VirtualRegister argVreg : irFunction.getArgVRegList()) {
+            IRPhi phi = new IRPhi(oldStartBB, new VirtualRegister(argVreg.getName()));
+            phi.setPath(newStartBB, argVreg);
+            argRenameMap.put(argVreg, phi.getDest());
+            argPhis.add(phi);
+        }
+        Map<IRRegister, IRRegister> renameMap = new HashMap<>();
+        for (BasicBlock bb : irFunction.getReversePostOrder()) {
+            for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                boolean renamed = false;
+                renameMap.clear();
+                for (IRRegister reg : inst.getUsedRegisters()) {
+                    renameMap.put(reg, argRenameMap.getOrDefault(reg, reg));
+                    if (argRenameMap.containsKey(reg)) renamed = true;
+                }
+                if (renamed) inst.setUsedRegisters(renameMap);
+            }
+        }
+        IRInstruction oldFirstInst = oldStartBB.getFirstInst();
+        for (IRPhi phi : argPhis) oldFirstInst.prependInst(phi);
+
+        for (IRFunctionCall funcCall : tailCalls) {
+            BasicBlock bb = funcCall.getParentBB();
+            for (int i = 0; i < argPhis.size(); ++i) argPhis.get(i).setPath(bb, funcCall.getArgs().get(i));
+            BasicBlock oldTargetBB = ((IRJump) bb.getLastInst()).getTargetBB();
+            for (IRInstruction inst = oldTargetBB.getFirstInst(); inst instanceof IRPhi; inst = inst.getNextInst()) {
+                ((IRPhi) inst).removePath(bb);
+            }
+            while (bb.getLastInst() != funcCall) bb.getLastInst().remove();
+            funcCall.remove();
+            bb.setJumpInst(new IRJump(bb, oldStartBB));
+        }
+        irFunction.setNewBBGraph(newStartBB, irFunction.getEndBB());
+        return true;
+    }
+}
@@ -2,6 +2,9 @@ package com.evensgn.emcompiler.backend;
 
 import com.evensgn.emcompiler.ir.*;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class TwoRegOpTransformer {
     private IRRoot ir;
 
@@ -11,28 +14,45 @@ public class TwoRegOpTransformer {
 
     public void run() {
         for (IRFunction irFunction : ir.getFuncs().values()) {
-            for (BasicBlock bb : irFunction.getReversePostOrder()) {
-                for (IRInstruction inst = bb.getFirstInst(), nextInst; inst != null; inst = nextInst) {
-                    nextInst = inst.getNextInst();
-                    if (!(inst instanceof IRBinaryOperation)) continue;
-                    IRBinaryOperation binaryInst = (IRBinaryOperation) inst;
-                    if (binaryInst.getDest() == binaryInst.getLhs()) continue;
-                    if (binaryInst.getDest() == binaryInst.getRhs()) {
-                        if (binaryInst.isCommutativeOp()) {
-                            binaryInst.setRhs(binaryInst.getLhs());
-                            binaryInst.setLhs(binaryInst.getDest());
-                        } else {
-                            VirtualRegister vreg = new VirtualRegister("rhsBak");
-                            binaryInst.prependInst(new IRMove(binaryInst.getParentBB(), vreg, binaryInst.getRhs()));
-                            binaryInst.prependInst(new IRMove(binaryInst.getParentBB(), binaryInst.getDest(), binaryInst.getLhs()));
-                            binaryInst.setLhs(binaryInst.getDest());
-                            binaryInst.setRhs(vreg);
-                        }
-                    } else if (binaryInst.getOp() != IRBinaryOperation.IRBinaryOp.DIV &&
-                            binaryInst.getOp() != IRBinaryOperation.IRBinaryOp.MOD) {
+            run(irFunction);
+        }
+    }
+
+    public void run(IRFunction irFunction) {
+        Map<IRRegister, Integer> useCntMap = new HashMap<>();
+        for (BasicBlock bb : irFunction.getReversePostOrder()) {
+            for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                for (IRRegister reg : inst.getUsedRegisters()) useCntMap.merge(reg, 1, Integer::sum);
+            }
+        }
+        for (BasicBlock bb : irFunction.getReversePostOrder()) {
+            for (IRInstruction inst = bb.getFirstInst(), nextInst; inst != null; inst = nextInst) {
+                nextInst = inst.getNextInst();
+                if (!(inst instanceof IRBinaryOperation)) continue;
+                IRBinaryOperation binaryInst = (IRBinaryOperation) inst;
+                if (binaryInst.getDest() == binaryInst.getLhs()) continue;
+                if (binaryInst.getDest() == binaryInst.getRhs()) {
+                    if (binaryInst.isCommutativeOp()) {
+                        binaryInst.setRhs(binaryInst.getLhs());
+                        binaryInst.setLhs(binaryInst.getDest());
+                    } else {
+                        VirtualRegister vreg = new VirtualRegister("rhsBak");
+                        binaryInst.prependInst(new IRMove(binaryInst.getParentBB(), vreg, binaryInst.getRhs()));
                         binaryInst.prependInst(new IRMove(binaryInst.getParentBB(), binaryInst.getDest(), binaryInst.getLhs()));
                         binaryInst.setLhs(binaryInst.getDest());
+                        binaryInst.setRhs(vreg);
                     }
+                } else if (binaryInst.isCommutativeOp() && binaryInst.getRhs() instanceof VirtualRegister &&
+                        useCntMap.get(binaryInst.getRhs()) == 1 && useCntMap.getOrDefault(binaryInst.getLhs(), 0) != 1) {
+                    // the operand used only here dies, so the move to dest can be coalesced by register allocation
+                    RegValue rhs = binaryInst.getRhs();
+                    binaryInst.prependInst(new IRMove(binaryInst.getParentBB(), binaryInst.getDest(), rhs));
+                    binaryInst.setRhs(binaryInst.getLhs());
+                    binaryInst.setLhs(binaryInst.getDest());
+                } else if (binaryInst.getOp() != IRBinaryOperation.IRBinaryOp.DIV &&
+                        binaryInst.getOp() != IRBinaryOperation.IRBinaryOp.MOD) {
+                    binaryInst.prependInst(new IRMove(binaryInst.getParentBB(), binaryInst.getDest(), binaryInst.getLhs()));
+                    binaryInst.setLhs(binaryInst.getDest());
                 }
             }
         }
@@ -19,6 +19,11 @@ import org.antlr.v4.runtime.tree.ParseTree;
 
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 
 /**
  * @author Zhou Fan
@@ -28,15 +33,29 @@ public class Compiler {
     private InputStream inS;
     private PrintStream astOutS, irOutS, nasmOutS;
     private ProgramNode ast;
+    private Scope globalScope;
+    private IRRoot ir;
+    private RegLivelinessAnalysis livelinessAnalysis;
+    private PassManager passManager;
+    private ExecutionProfile profile = null;
 
     public Compiler(InputStream inS, PrintStream astOutS, PrintStream irOutS, PrintStream nasmOutS) {
+        this(inS, astOutS, irOutS, nasmOutS, null);
+    }
+
+    public Compiler(InputStream inS, PrintStream astOutS, PrintStream irOutS, PrintStream nasmOutS, PrintStream passReportOutS) {
         this.inS = inS;
         this.astOutS = astOutS;
         this.irOutS = irOutS;
         this.nasmOutS = nasmOutS;
+        this.passManager = new PassManager(passReportOutS);
+    }
+
+    public void setProfile(ExecutionProfile profile) {
+        this.profile = profile;
     }
 
-    private void buildAST() throws Exception {
+    private void parse() throws Exception {
         CharStream input = CharStreams.fromStream(inS);
         EMxStarLexer lexer = new EMxStarLexer(input);
         CommonTokenStream tokens = new CommonTokenStream(lexer);
@@ -48,27 +67,135 @@ public class Compiler {
         ast = (ProgramNode) astBuilder.visit(tree);
     }
 
+    // functions are independent in the passes given here, so they may be processed in parallel
+    private void runPerFunction(IRRoot ir, Consumer<IRFunction> stage) {
+        if (!Configuration.isParallelBackend()) {
+            for (IRFunction irFunction : ir.getFuncs().values()) {
+                stage.accept(irFunction);
+            }
+            return;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        Thread passThread = Thread.currentThread();
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                long allocatedBefore = passManager.isReporting() ? PassManager.getThreadAllocatedBytes() : -1;
+                stage.accept(irFunction);
+                // a task joined by the pass thread may run on it, and is then counted by the pass itself
+                if (allocatedBefore >= 0 && Thread.currentThread() != passThread) {
+                    passManager.addTaskAllocatedBytes(PassManager.getThreadAllocatedBytes() - allocatedBefore);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
+    // the stages below must be called in this order, compile() runs all of them
+
+    public void buildAST() throws Exception {
+        passManager.run("buildAST", this::parse);
+        if (astOutS != null) passManager.run("ASTPrinter", () -> new ASTPrinter(astOutS).visit(ast));
+    }
+
+    public void checkSemantics() throws Exception {
+        passManager.run("GlobalScopePreScanner", () -> {
+            GlobalScopePreScanner globalScopePreScanner = new GlobalScopePreScanner();
+            globalScopePreScanner.visit(ast);
+            globalScope = globalScopePreScanner.getScope();
+        });
+        passManager.run("ClassVarMemberScanner", () -> new ClassVarMemberScanner(globalScope).visit(ast));
+        passManager.run("FunctionScopeScanner", () -> new FunctionScopeScanner(globalScope).visit(ast));
+        passManager.run("StaticUsagePreScanner", () -> new StaticUsagePreScanner(globalScope).visit(ast));
+    }
+
+    public void buildIR() throws Exception {
+        passManager.run("IRBuilder", () -> {
+            IRBuilder irBuilder = new IRBuilder(globalScope);
+            irBuilder.visit(ast);
+            ir = irBuilder.getIR();
+            passManager.setIR(ir);
+        });
+        SSAConstructor ssaConstructor = new SSAConstructor(ir);
+        passManager.run("SSAConstructor", () -> runPerFunction(ir, ssaConstructor::run));
+        passManager.run("SiteNumbering", () -> ExecutionProfile.numberSites(ir));
+    }
+
+    public void prepareIR() throws Exception {
+        if (Configuration.isEnableTailCallElimination()) passManager.run("TailRecursionEliminator", () -> new TailRecursionEliminator(ir).run());
+        if (Configuration.isEnableFunctionInline()) passManager.run("FunctionInlineProcessor", () -> new FunctionInlineProcessor(ir, profile).run());
+        if (Configuration.isEnableConstantPropagation()) {
+            ConstantPropagator constantPropagator = new ConstantPropagator(ir);
+            passManager.run("ConstantPropagator", () -> runPerFunction(ir, constantPropagator::run));
+        }
+        if (Configuration.isEnableCommonSubexprElimination()) {
+            CommonSubexprEliminator commonSubexprEliminator = new CommonSubexprEliminator(ir);
+            passManager.run("CommonSubexprEliminator", () -> runPerFunction(ir, commonSubexprEliminator::run));
+        }
+        if (Configuration.isEnableLoopInvariantCodeMotion()) {
+            LoopInvariantHoister loopInvariantHoister = new LoopInvariantHoister(ir);
+            passManager.run("LoopInvariantHoister", () -> runPerFunction(ir, loopInvariantHoister::run));
+        }
+        if (Configuration.isEnableStrengthReduction()) {
+            StrengthReducer strengthReducer = new StrengthReducer(ir);
+            passManager.run("StrengthReducer", () -> runPerFunction(ir, strengthReducer::run));
+        }
+        if (Configuration.isEnableInstructionSelection()) {
+            InstructionSelector instructionSelector = new InstructionSelector(ir);
+            passManager.run("InstructionSelector", () -> runPerFunction(ir, instructionSelector::run));
+        }
+        SSADestructor ssaDestructor = new SSADestructor(ir);
+        passManager.run("SSADestructor", () -> runPerFunction(ir, ssaDestructor::run));
+        TwoRegOpTransformer twoRegOpTransformer = new TwoRegOpTransformer(ir);
+        passManager.run("TwoRegOpTransformer", () -> runPerFunction(ir, twoRegOpTransformer::run));
+        if (irOutS != null) passManager.run("IRPrinter", () -> new IRPrinter(irOutS).visit(ir));
+        passManager.run("StaticDataProcessor", () -> new StaticDataProcessor(ir).run());
+        RegisterPreprocessor registerPreprocessor = new RegisterPreprocessor(ir);
+        passManager.run("RegisterPreprocessor", () -> runPerFunction(ir, registerPreprocessor::run));
+    }
+
+    public void analyzeLiveliness() throws Exception {
+        livelinessAnalysis = new RegLivelinessAnalysis(ir);
+        passManager.run("RegLivelinessAnalysis", () -> runPerFunction(ir, livelinessAnalysis::run));
+        LoopNestingAnalysis loopNestingAnalysis = new LoopNestingAnalysis(ir);
+        passManager.run("LoopNestingAnalysis", () -> runPerFunction(ir, loopNestingAnalysis::run));
+    }
+
+    public void allocateRegisters() throws Exception {
+        if (Configuration.isLinearScanAllocator()) {
+            LinearScanRegisterAllocator registerAllocator = new LinearScanRegisterAllocator(ir, livelinessAnalysis);
+            passManager.run("LinearScanRegisterAllocator", () -> runPerFunction(ir, registerAllocator::run));
+        } else {
+            RegisterAllocator registerAllocator = new RegisterAllocator(ir, livelinessAnalysis);
+            // a pass of its own, so that the time and allocation of RegisterAllocator are those of a normal build
+            if (passManager.isReporting()) {
+                passManager.run("SpillChoiceComparison", () -> runPerFunction(ir, registerAllocator::compareSpillChoice));
+                passManager.report("spillCodeRemovedVsCostBlindChoice", registerAllocator.getRemovedSpillCode());
+            }
+            passManager.run("RegisterAllocator", () -> runPerFunction(ir, registerAllocator::run));
+        }
+        if (passManager.isReporting()) passManager.report("stackSlotAccesses", RegisterAllocator.countStackSlotAccesses(ir));
+    }
+
+    public void generateNASM() throws Exception {
+        passManager.run("NASMTransformer", () -> new NASMTransformer(ir).run());
+        passManager.run("ExtraInstructionOptimizer", () -> new ExtraInstructionOptimizer(ir).run());
+        if (Configuration.isEnableBlockLayout()) {
+            BlockLayoutOptimizer blockLayoutOptimizer = new BlockLayoutOptimizer(ir, profile);
+            passManager.run("BlockLayoutOptimizer", () -> runPerFunction(ir, blockLayoutOptimizer::run));
+        }
+        passManager.run("NASMPrinter", () -> new NASMPrinter(nasmOutS).visit(ir));
+    }
+
     public void compile() throws Exception {
         buildAST();
-        if (astOutS != null) new ASTPrinter(astOutS).visit(ast);
-        GlobalScopePreScanner globalScopePreScanner = new GlobalScopePreScanner();
-        globalScopePreScanner.visit(ast);
-        Scope globalScope = globalScopePreScanner.getScope();
-        new ClassVarMemberScanner(globalScope).visit(ast);
-        new FunctionScopeScanner(globalScope).visit(ast);
-        new StaticUsagePreScanner(globalScope).visit(ast);
-        IRBuilder irBuilder = new IRBuilder(globalScope);
-        irBuilder.visit(ast);
-        IRRoot ir = irBuilder.getIR();
-        new TwoRegOpTransformer(ir).run();
-        if (Configuration.isEnableFunctionInline()) new FunctionInlineProcessor(ir).run();
-        if (irOutS != null) new IRPrinter(irOutS).visit(ir);
-        new StaticDataProcessor(ir).run();
-        new RegisterPreprocessor(ir).run();
-        new RegLivelinessAnalysis(ir).run();
-        new RegisterAllocator(ir).run();
-        new NASMTransformer(ir).run();
-        new ExtraInstructionOptimizer(ir).run();
-        new NASMPrinter(nasmOutS).visit(ir);
+        checkSemantics();
+        buildIR();
+        prepareIR();
+        analyzeLiveliness();
+        allocateRegisters();
+        generateNASM();
+        passManager.finish();
     }
-}
\ No newline at end of file
+}
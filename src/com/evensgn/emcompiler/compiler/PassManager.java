@@ -0,0 +1,147 @@
+package com.evensgn.emcompiler.compiler;
+
+import com.evensgn.emcompiler.ir.*;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs compiler passes and, if a report stream is given, records wall time,
+ * allocated bytes and IR size around each of them.
+ * The report is written as one JSON object per line.
+ */
+public class PassManager {
+    public interface Pass {
+        void run() throws Exception;
+    }
+
+    private static class IRSize {
+        int numFuncs = 0, numBBs = 0, numInsts = 0, numVregs = 0;
+
+        String toJson() {
+            return String.format("{\"funcs\":%d,\"bbs\":%d,\"insts\":%d,\"vregs\":%d}", numFuncs, numBBs, numInsts, numVregs);
+        }
+    }
+
+    private PrintStream reportOutS;
+    private IRRoot ir = null;
+    private long totalNanos = 0, totalAllocatedBytes = 0;
+    private boolean isAllocationKnown = true;
+    // bytes allocated during the running pass by tasks on other threads, see addTaskAllocatedBytes
+    private AtomicLong taskAllocatedBytes = new AtomicLong();
+
+    public PassManager(PrintStream reportOutS) {
+        this.reportOutS = reportOutS;
+    }
+
+    public void setIR(IRRoot ir) {
+        this.ir = ir;
+    }
+
+    public void run(String passName, Pass pass) throws Exception {
+        if (reportOutS == null) {
+            pass.run();
+            return;
+        }
+        IRSize sizeBefore = calcIRSize();
+        taskAllocatedBytes.set(0);
+        long allocatedBefore = getThreadAllocatedBytes();
+        long startTime = System.nanoTime();
+        pass.run();
+        long nanos = System.nanoTime() - startTime;
+        long allocatedAfter = getThreadAllocatedBytes();
+        IRSize sizeAfter = calcIRSize();
+        totalNanos += nanos;
+        // null if the JVM does not count allocations
+        String allocatedBytes = "null";
+        if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+            long bytes = allocatedAfter - allocatedBefore + taskAllocatedBytes.get();
+            totalAllocatedBytes += bytes;
+            allocatedBytes = String.valueOf(bytes);
+        } else {
+            isAllocationKnown = false;
+        }
+        reportOutS.printf("{\"pass\":\"%s\",\"timeMs\":%.3f,\"allocatedBytes\":%s,\"irBefore\":%s,\"irAfter\":%s}\n",
+                passName, nanos / 1e6, allocatedBytes,
+                sizeBefore == null ? "null" : sizeBefore.toJson(), sizeAfter == null ? "null" : sizeAfter.toJson());
+    }
+
+    public boolean isReporting() {
+        return reportOutS != null;
+    }
+
+    // extra statistics computed by the caller, written as a line of their own
+    public void report(String name, Map<String, ? extends Number> values) {
+        if (reportOutS == null) return;
+        StringBuilder sb = new StringBuilder(String.format("{\"report\":\"%s\"", name));
+        for (Map.Entry<String, ? extends Number> entry : values.entrySet()) {
+            sb.append(String.format(",\"%s\":%s", entry.getKey(), entry.getValue()));
+        }
+        reportOutS.println(sb.append("}"));
+    }
+
+    public void finish() {
+        if (reportOutS == null) return;
+        reportOutS.printf("{\"pass\":\"total\",\"timeMs\":%.3f,\"allocatedBytes\":%s}\n",
+                totalNanos / 1e6, isAllocationKnown ? String.valueOf(totalAllocatedBytes) : "null");
+        reportOutS.flush();
+    }
+
+    // a per-function task of the running pass measures its own thread and adds what it allocated here,
+    // unless it ran on the thread that runs the pass, which is measured as a whole
+    public void addTaskAllocatedBytes(long allocatedBytes) {
+        taskAllocatedBytes.addAndGet(allocatedBytes);
+    }
+
+    // bytes allocated so far by the current thread, -1 if the JVM does not count them
+    public static long getThreadAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!sunThreadMXBean.isThreadAllocatedMemorySupported() || !sunThreadMXBean.isThreadAllocatedMemoryEnabled()) return -1;
+        return sunThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // walks the CFG through jump instructions, so the cached block orders of functions are left untouched
+    private IRSize calcIRSize() {
+        if (ir == null) return null;
+        IRSize size = new IRSize();
+        Set<BasicBlock> visited = new HashSet<>();
+        Set<VirtualRegister> vregs = new HashSet<>();
+        Deque<BasicBlock> stack = new ArrayDeque<>();
+        for (IRFunction irFunction : ir.getFuncs().values()) {
+            ++size.numFuncs;
+            if (irFunction.getStartBB() == null) continue;
+            stack.push(irFunction.getStartBB());
+            visited.add(irFunction.getStartBB());
+            while (!stack.isEmpty()) {
+                BasicBlock bb = stack.pop();
+                ++size.numBBs;
+                for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                    ++size.numInsts;
+                    for (IRRegister reg : inst.getUsedRegisters()) {
+                        if (reg instanceof VirtualRegister) vregs.add((VirtualRegister) reg);
+                    }
+                    if (inst.getDefinedRegister() instanceof VirtualRegister) {
+                        vregs.add((VirtualRegister) inst.getDefinedRegister());
+                    }
+                }
+                IRInstruction lastInst = bb.getLastInst();
+                List<BasicBlock> nextBBs = Collections.emptyList();
+                if (lastInst instanceof IRJump) {
+                    nextBBs = Collections.singletonList(((IRJump) lastInst).getTargetBB());
+                } else if (lastInst instanceof IRBranch) {
+                    nextBBs = Arrays.asList(((IRBranch) lastInst).getThenBB(), ((IRBranch) lastInst).getElseBB());
+                }
+                for (BasicBlock nextBB : nextBBs) {
+                    if (visited.add(nextBB)) stack.push(nextBB);
+                }
+            }
+        }
+        size.numVregs = vregs.size();
+        return size;
+    }
+}
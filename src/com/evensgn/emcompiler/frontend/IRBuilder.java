@@ -577,7 +577,9 @@ public class IRBuilder extends BaseScopeScanner {
             case IRRoot.BUILTIN_STRING_LENGTH_FUNC_NAME:
             case IRRoot.BUILTIN_ARRAY_SIZE_FUNC_NAME:
                 vreg = new VirtualRegister("sizeOrLength");
-                currentBB.addInst(new IRLoad(currentBB, vreg, Configuration.getRegSize(), thisExpr.getRegValue(), 0));
+                IRLoad lengthLoad = new IRLoad(currentBB, vreg, Configuration.getRegSize(), thisExpr.getRegValue(), 0);
+                lengthLoad.setLengthLoad(true);
+                currentBB.addInst(lengthLoad);
                 node.setRegValue(vreg);
                 break;
 
@@ -893,7 +895,6 @@ public class IRBuilder extends BaseScopeScanner {
                     node.setRegValue(new IntImmediate(lhsImm / rhsImm));
                     return;
                 }
-                ir.setHasDivShiftInst(true);
                 break;
             case MOD:
                 op = IRBinaryOperation.IRBinaryOp.MOD;
@@ -901,7 +902,6 @@ public class IRBuilder extends BaseScopeScanner {
                     node.setRegValue(new IntImmediate(lhsImm % rhsImm));
                     return;
                 }
-                ir.setHasDivShiftInst(true);
                 break;
             case ADD:
                 op = IRBinaryOperation.IRBinaryOp.ADD;
@@ -923,7 +923,6 @@ public class IRBuilder extends BaseScopeScanner {
                     node.setRegValue(new IntImmediate(lhsImm << rhsImm));
                     return;
                 }
-                ir.setHasDivShiftInst(true);
                 break;
             case SHR:
                 op = IRBinaryOperation.IRBinaryOp.SHR;
@@ -931,7 +930,6 @@ public class IRBuilder extends BaseScopeScanner {
                     node.setRegValue(new IntImmediate(lhsImm >> rhsImm));
                     return;
                 }
-                ir.setHasDivShiftInst(true);
                 break;
             case BITWISE_AND:
                 op = IRBinaryOperation.IRBinaryOp.BITWISE_AND;
@@ -4,7 +4,7 @@ import com.evensgn.emcompiler.ast.ForStmtNode;
 import com.evensgn.emcompiler.ast.StmtNode;
 import com.evensgn.emcompiler.utils.CompilerError;
 
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 public class BasicBlock {
@@ -13,12 +13,19 @@ public class BasicBlock {
     private String name;
     private boolean hasJumpInst = false;
     private int postOrderIdx, preOrderIdx;
-    private Set<BasicBlock> prevBBSet = new HashSet<>(), nextBBSet = new HashSet<>();
+    // dense index among the blocks ever made in the function, see IRFunction.getBBById
+    private int id;
+    private int loopDepth = 0;
+    // the function and index the block is numbered with before any optimization, kept by inlined copies
+    private String siteFuncName = null;
+    private int siteIdx = -1;
+    private Set<BasicBlock> prevBBSet = new LinkedHashSet<>(), nextBBSet = new LinkedHashSet<>();
     public StmtNode forNode = null;
 
     public BasicBlock(IRFunction func, String name) {
         this.func = func;
         this.name = name;
+        this.id = func != null ? func.addBB(this) : -1;
     }
 
     public void addInst(IRInstruction inst) {
@@ -118,6 +125,31 @@ public class BasicBlock {
         return postOrderIdx;
     }
 
+    public int getId() {
+        return id;
+    }
+
+    public int getLoopDepth() {
+        return loopDepth;
+    }
+
+    public void setLoopDepth(int loopDepth) {
+        this.loopDepth = loopDepth;
+    }
+
+    public String getSiteFuncName() {
+        return siteFuncName;
+    }
+
+    public int getSiteIdx() {
+        return siteIdx;
+    }
+
+    public void setSite(String siteFuncName, int siteIdx) {
+        this.siteFuncName = siteFuncName;
+        this.siteIdx = siteIdx;
+    }
+
     public IRInstruction getFirstInst() {
         return firstInst;
     }
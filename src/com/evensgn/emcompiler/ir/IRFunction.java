@@ -11,11 +11,20 @@ public class IRFunction {
     private List<VirtualRegister> argVRegList = new ArrayList<>();
     private List<BasicBlock> reversePostOrder = null;
     private List<BasicBlock> reversePreOrder = null;
+    private List<BasicBlock> layout = null;
+    private InstructionArena instArena = null;
     private String name, builtInCallLabel;
     private boolean recursiveCall = false;
     private List<IRReturn> retInstList = new ArrayList<>();
-    private Set<PhysicalRegister> usedPhysicalGeneralRegs = new HashSet<>();
+    private Set<PhysicalRegister> usedPhysicalGeneralRegs = new LinkedHashSet<>();
+    // of a builtin, the registers a call may change, declared by IRRoot
+    private Set<PhysicalRegister> clobberedRegs = new LinkedHashSet<>();
     private boolean isBuiltIn = false;
+    // dense ids: of the function in IRRoot, and of the blocks and virtual registers of the function, so that
+    // passes can keep arrays and bitsets instead of hash maps; block ids stay, register ids may be compacted
+    private int id = -1;
+    private List<BasicBlock> bbIdList = new ArrayList<>();
+    private List<VirtualRegister> vregIdList = new ArrayList<>();
 
     public String getName() {
         return name;
@@ -42,6 +51,62 @@ public class IRFunction {
 
     public IRFunction() {}
 
+    public int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    int addBB(BasicBlock bb) {
+        bbIdList.add(bb);
+        return bbIdList.size() - 1;
+    }
+
+    public int getNumBBIds() {
+        return bbIdList.size();
+    }
+
+    public BasicBlock getBBById(int id) {
+        return bbIdList.get(id);
+    }
+
+    // numbers a register of this function the first time it is seen, so inlined copies get theirs on demand
+    public int getVregId(VirtualRegister vreg) {
+        int id = vreg.getId();
+        if (id >= 0 && id < vregIdList.size() && vregIdList.get(id) == vreg) return id;
+        vreg.setId(vregIdList.size());
+        vregIdList.add(vreg);
+        return vreg.getId();
+    }
+
+    public int getNumVregIds() {
+        return vregIdList.size();
+    }
+
+    public VirtualRegister getVregById(int id) {
+        return vregIdList.get(id);
+    }
+
+    // numbers the registers of a block not numbered yet in the order they appear,
+    // the defined register of an instruction before the used ones
+    public void numberVregs(BasicBlock bb) {
+        for (IRInstruction inst = bb.getFirstInst(); inst != null; inst = inst.getNextInst()) {
+            if (inst.getDefinedRegister() instanceof VirtualRegister) getVregId((VirtualRegister) inst.getDefinedRegister());
+            for (IRRegister usedReg : inst.getUsedRegisters()) {
+                if (usedReg instanceof VirtualRegister) getVregId((VirtualRegister) usedReg);
+            }
+        }
+    }
+
+    // numbers the registers again without the ones gone, in the order they appear in the given blocks
+    public void renumberVregs(List<BasicBlock> bbList) {
+        for (VirtualRegister vreg : vregIdList) vreg.setId(-1);
+        vregIdList.clear();
+        for (BasicBlock bb : bbList) numberVregs(bb);
+    }
+
     public Set<IRFunction> calleeSet = new HashSet<>();
     public Set<IRFunction> recursiveCalleeSet = new HashSet<>();
 
@@ -61,6 +126,7 @@ public class IRFunction {
         endBB = newEndBB;
         reversePreOrder = null;
         reversePostOrder = null;
+        instArena = null;
     }
 
     public void setArgVRegList(List<VirtualRegister> argVRegList) {
@@ -140,6 +206,25 @@ public class IRFunction {
         Collections.reverse(reversePostOrder);
     }
 
+    // the order blocks are emitted in, reverse post order unless BlockLayoutOptimizer gives one
+    public List<BasicBlock> getLayout() {
+        return layout != null ? layout : getReversePostOrder();
+    }
+
+    public void setLayout(List<BasicBlock> layout) {
+        this.layout = layout;
+    }
+
+    // packed instructions in reverse pre order, built by RegLivelinessAnalysis for the code it has analyzed,
+    // null once the block graph changes
+    public InstructionArena getInstArena() {
+        return instArena;
+    }
+
+    public void setInstArena(InstructionArena instArena) {
+        this.instArena = instArena;
+    }
+
     public List<BasicBlock> getReversePreOrder() {
         if (reversePreOrder == null) {
             calcReversePreOrder();
@@ -200,6 +285,10 @@ public class IRFunction {
         return usedPhysicalGeneralRegs;
     }
 
+    public Set<PhysicalRegister> getClobberedRegs() {
+        return clobberedRegs;
+    }
+
     public boolean isBuiltIn() {
         return isBuiltIn;
     }
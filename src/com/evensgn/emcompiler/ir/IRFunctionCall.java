@@ -8,6 +8,11 @@ public class IRFunctionCall extends IRInstruction {
     private IRFunction func;
     private List<RegValue> args;
     private IRRegister dest;
+    // the function and index the call site is numbered with before any inlining, kept by copies
+    private String siteFuncName = null;
+    private int siteIdx = -1;
+    // set by NASMTransformer when the callee returns to our caller, printed as a jump
+    private boolean tailCall = false;
 
     public IRFunctionCall(BasicBlock parentBB, IRFunction func, List<RegValue> args, VirtualRegister dest) {
         super(parentBB);
@@ -63,17 +68,40 @@ public class IRFunctionCall extends IRInstruction {
         return dest;
     }
 
+    public String getSiteFuncName() {
+        return siteFuncName;
+    }
+
+    public int getSiteIdx() {
+        return siteIdx;
+    }
+
+    public void setSite(String siteFuncName, int siteIdx) {
+        this.siteFuncName = siteFuncName;
+        this.siteIdx = siteIdx;
+    }
+
+    public boolean isTailCall() {
+        return tailCall;
+    }
+
+    public void setTailCall(boolean tailCall) {
+        this.tailCall = tailCall;
+    }
+
     @Override
     public IRFunctionCall copyRename(Map<Object, Object> renameMap) {
         List<RegValue> copyArgs = new ArrayList<>();
         for (RegValue arg : args) {
             copyArgs.add((RegValue) renameMap.getOrDefault(arg, arg));
         }
-        return new IRFunctionCall(
+        IRFunctionCall copy = new IRFunctionCall(
                 (BasicBlock) renameMap.getOrDefault(getParentBB(), getParentBB()),
                 func,
                 copyArgs,
                 (VirtualRegister) renameMap.getOrDefault(dest, dest)
         );
+        copy.setSite(siteFuncName, siteIdx);
+        return copy;
     }
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+package com.evensgn.emcompiler.ir;
+
+import java.util.Map;
+
+// dest = base + index * scale + offset computed by lea, base or index may be null
+public class IRLea extends IRInstruction {
+    private IRRegister dest;
+    private IRRegister base, index;
+    private int scale, offset;
+
+    public IRLea(BasicBlock parentBB, IRRegister dest, IRRegister base, IRRegister index, int scale, int offset) {
+        super(parentBB);
+        this.dest = dest;
+        this.base = base;
+        this.index = index;
+        this.scale = scale;
+        this.offset = offset;
+        reloadUsedRegistersRegValues();
+    }
+
+    @Override
+    public void reloadUsedRegistersRegValues() {
+        usedRegisters.clear();
+        usedRegValues.clear();
+        if (base != null) {
+            usedRegisters.add(base);
+            usedRegValues.add(base);
+        }
+        if (index != null) {
+            usedRegisters.add(index);
+            usedRegValues.add(index);
+        }
+    }
+
+    @Override
+    public void setUsedRegisters(Map<IRRegister, IRRegister> renameMap) {
+        if (base != null) base = renameMap.get(base);
+        if (index != null) index = renameMap.get(index);
+        reloadUsedRegistersRegValues();
+    }
+
+    @Override
+    public IRRegister getDefinedRegister() {
+        return dest;
+    }
+
+    @Override
+    public void setDefinedRegister(IRRegister vreg) {
+        dest = vreg;
+    }
+
+    public void accept(IRVisitor visitor) {
+        visitor.visit(this);
+    }
+
+    public IRRegister getDest() {
+        return dest;
+    }
+
+    public IRRegister getBase() {
+        return base;
+    }
+
+    public IRRegister getIndex() {
+        return index;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public IRLea copyRename(Map<Object, Object> renameMap) {
+        return new IRLea(
+                (BasicBlock) renameMap.getOrDefault(getParentBB(), getParentBB()),
+                (IRRegister) renameMap.getOrDefault(dest, dest),
+                base == null ? null : (IRRegister) renameMap.getOrDefault(base, base),
+                index == null ? null : (IRRegister) renameMap.getOrDefault(index, index),
+                scale,
+                offset
+        );
+    }
+}
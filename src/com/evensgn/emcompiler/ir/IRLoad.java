@@ -7,7 +7,12 @@ public class IRLoad extends IRInstruction {
     private int size;
     private RegValue addr;
     private int addrOffset;
+    // the address is addr + index * scale + addrOffset when index is set
+    private IRRegister index = null;
+    private int scale = 1;
     private boolean isStaticData, isLoadAddr;
+    // size of an array or length of a string, never written after allocation
+    private boolean isLengthLoad = false;
 
     public IRLoad(BasicBlock parentBB, IRRegister dest, int size, RegValue addr, int addrOffset) {
         super(parentBB);
@@ -32,12 +37,14 @@ public class IRLoad extends IRInstruction {
         usedRegisters.clear();
         usedRegValues.clear();
         if (addr instanceof IRRegister && !(addr instanceof StackSlot)) usedRegisters.add((IRRegister) addr);
+        if (index != null) usedRegisters.add(index);
         usedRegValues.add(addr);
     }
 
     @Override
     public void setUsedRegisters(Map<IRRegister, IRRegister> renameMap) {
         if (addr instanceof IRRegister && !(addr instanceof StackSlot)) addr = renameMap.get(addr);
+        if (index != null) index = renameMap.get(index);
         reloadUsedRegistersRegValues();
     }
 
@@ -86,16 +93,27 @@ public class IRLoad extends IRInstruction {
                     isLoadAddr
             );
         } else {
-            return new IRLoad(
+            IRLoad load = new IRLoad(
                     (BasicBlock) renameMap.getOrDefault(getParentBB(), getParentBB()),
                     (IRRegister) renameMap.getOrDefault(dest, dest),
                     size,
                     (RegValue) renameMap.getOrDefault(addr, addr),
                     addrOffset
             );
+            load.setLengthLoad(isLengthLoad);
+            if (index != null) load.setIndex((IRRegister) renameMap.getOrDefault(index, index), scale);
+            return load;
         }
     }
 
+    public boolean isLengthLoad() {
+        return isLengthLoad;
+    }
+
+    public void setLengthLoad(boolean lengthLoad) {
+        isLengthLoad = lengthLoad;
+    }
+
     public void setAddr(RegValue addr) {
         this.addr = addr;
     }
@@ -103,4 +121,18 @@ public class IRLoad extends IRInstruction {
     public void setAddrOffset(int addrOffset) {
         this.addrOffset = addrOffset;
     }
+
+    public IRRegister getIndex() {
+        return index;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    public void setIndex(IRRegister index, int scale) {
+        this.index = index;
+        this.scale = scale;
+        reloadUsedRegistersRegValues();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package com.evensgn.emcompiler.ir;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// only exists between SSAConstructor and SSADestructor
+public class IRPhi extends IRInstruction {
+    private VirtualRegister dest;
+    private Map<BasicBlock, RegValue> paths = new LinkedHashMap<>();
+
+    public IRPhi(BasicBlock parentBB, VirtualRegister dest) {
+        super(parentBB);
+        this.dest = dest;
+        reloadUsedRegistersRegValues();
+    }
+
+    public void setPath(BasicBlock bb, RegValue value) {
+        paths.put(bb, value);
+        reloadUsedRegistersRegValues();
+    }
+
+    public void removePath(BasicBlock bb) {
+        paths.remove(bb);
+        reloadUsedRegistersRegValues();
+    }
+
+    public Map<BasicBlock, RegValue> getPaths() {
+        return paths;
+    }
+
+    @Override
+    public void reloadUsedRegistersRegValues() {
+        usedRegisters.clear();
+        usedRegValues.clear();
+        for (RegValue value : paths.values()) {
+            if (value instanceof IRRegister) usedRegisters.add((IRRegister) value);
+            usedRegValues.add(value);
+        }
+    }
+
+    @Override
+    public void setUsedRegisters(Map<IRRegister, IRRegister> renameMap) {
+        for (Map.Entry<BasicBlock, RegValue> entry : paths.entrySet()) {
+            if (entry.getValue() instanceof IRRegister) entry.setValue(renameMap.get(entry.getValue()));
+        }
+        reloadUsedRegistersRegValues();
+    }
+
+    @Override
+    public VirtualRegister getDefinedRegister() {
+        return dest;
+    }
+
+    @Override
+    public void setDefinedRegister(IRRegister vreg) {
+        dest = (VirtualRegister) vreg;
+    }
+
+    public void accept(IRVisitor visitor) {
+        visitor.visit(this);
+    }
+
+    public VirtualRegister getDest() {
+        return dest;
+    }
+
+    @Override
+    public IRPhi copyRename(Map<Object, Object> renameMap) {
+        IRPhi phi = new IRPhi(
+                (BasicBlock) renameMap.getOrDefault(getParentBB(), getParentBB()),
+                (VirtualRegister) renameMap.getOrDefault(dest, dest)
+        );
+        for (Map.Entry<BasicBlock, RegValue> entry : paths.entrySet()) {
+            phi.setPath((BasicBlock) renameMap.getOrDefault(entry.getKey(), entry.getKey()),
+                    (RegValue) renameMap.getOrDefault(entry.getValue(), entry.getValue()));
+        }
+        return phi;
+    }
+}
@@ -11,11 +11,11 @@ import java.util.*;
 public class IRRoot {
     private Map<String, IRFunction> funcs = new HashMap<>();
     private Map<String, IRFunction> builtInFuncs = new HashMap<>();
+    private int numFuncIds = 0;
     private List<StaticData> staticDataList = new ArrayList<>();
     private Map<String, StaticString> staticStrs = new HashMap<>();
-    private boolean hasDivShiftInst = false;
     private int maxNumFuncArgs = 3;
-    private PhysicalRegister preg0, preg1;
+    private PhysicalRegister preg0;
 
     static public String irMemberFuncName(String className, String funcName) {
         return String.format("__member_%s_%s", className, funcName);
@@ -25,67 +25,69 @@ public class IRRoot {
         insertBuiltInFuncs();
     }
 
+    // the registers each builtin may change are read off lib/builtin_functions.asm: builtins calling the C
+    // library may change all its calls may, the others only the registers they write
     private void insertBuiltInFuncs() {
         IRFunction func;
 
         func = new IRFunction(BUILTIN_STRING_CONCAT_FUNC_NAME, "__builtin_string_concat");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_STRING_EQUAL_FUNC_NAME, "__builtin_string_equal");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_STRING_INEQUAL_FUNC_NAME, "__builtin_string_inequal");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_STRING_LESS_FUNC_NAME, "__builtin_string_less");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_STRING_LESS_EQUAL_FUNC_NAME, "__builtin_string_less_equal");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_PRINT_FUNC_NAME, "_Z5printPc");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_PRINTLN_FUNC_NAME, "_Z7printlnPc");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_PRINT_INT_FUNC_NAME, "_Z8printInti");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_PRINTLN_INT_FUNC_NAME, "_Z10printlnInti");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_GET_STRING_FUNC_NAME, "_Z9getStringv");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_GET_INT_FUNC_NAME, "_Z6getIntv");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_TO_STRING_FUNC_NAME, "_Z8toStringi");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_STRING_SUBSTRING_FUNC_NAME, "_Z27__member___string_substringPcii");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(NASMRegisterSet.libcClobberedRegs);
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_STRING_PARSEINT_FUNC_NAME, "_Z26__member___string_parseIntPc");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(Arrays.asList(NASMRegisterSet.rax, NASMRegisterSet.rcx, NASMRegisterSet.rdx));
         addBuiltInFunc(func);
 
         func = new IRFunction(BUILTIN_STRING_ORD_FUNC_NAME, "_Z21__member___string_ordPci");
-        func.getUsedPhysicalGeneralRegs().addAll(NASMRegisterSet.generalRegs);
+        func.getClobberedRegs().addAll(Arrays.asList(NASMRegisterSet.rax, NASMRegisterSet.rdx));
         addBuiltInFunc(func);
     }
 
@@ -93,19 +95,13 @@ public class IRRoot {
         return preg0;
     }
 
-    public PhysicalRegister getPreg1() {
-        return preg1;
-    }
-
     public void setPreg0(PhysicalRegister preg0) {
         this.preg0 = preg0;
     }
 
-    public void setPreg1(PhysicalRegister preg1) {
-        this.preg1 = preg1;
-    }
-
+    // user and built-in functions share one range of ids, never reused
     public void addFunc(IRFunction func) {
+        func.setId(numFuncIds++);
         funcs.put(func.getName(), func);
     }
 
@@ -114,9 +110,14 @@ public class IRRoot {
     }
 
     public void addBuiltInFunc(IRFunction builtInFunc) {
+        builtInFunc.setId(numFuncIds++);
         builtInFuncs.put(builtInFunc.getName(), builtInFunc);
     }
 
+    public int getNumFuncIds() {
+        return numFuncIds;
+    }
+
     public IRFunction getBuiltInFunc(String name) {
         return builtInFuncs.get(name);
     }
@@ -213,18 +214,10 @@ public class IRRoot {
         visitor.visit(this);
     }
 
-    public boolean isHasDivShiftInst() {
-        return hasDivShiftInst;
-    }
-
     public int getMaxNumFuncArgs() {
         return maxNumFuncArgs;
     }
 
-    public void setHasDivShiftInst(boolean hasDivShiftInst) {
-        this.hasDivShiftInst = hasDivShiftInst;
-    }
-
     public void setMaxNumFuncArgs(int maxNumFuncArgs) {
         this.maxNumFuncArgs = maxNumFuncArgs;
     }
@@ -7,6 +7,9 @@ public class IRStore extends IRInstruction {
     private int size;
     private RegValue addr;
     private int addrOffset;
+    // the address is addr + index * scale + addrOffset when index is set
+    private IRRegister index = null;
+    private int scale = 1;
     private boolean isStaticData;
 
     public IRStore(BasicBlock parentBB, RegValue value, int size, RegValue addr, int addrOffset) {
@@ -41,6 +44,7 @@ public class IRStore extends IRInstruction {
         usedRegisters.clear();
         usedRegValues.clear();
         if (addr instanceof IRRegister && !(addr instanceof StackSlot)) usedRegisters.add((IRRegister) addr);
+        if (index != null) usedRegisters.add(index);
         if (value instanceof IRRegister) usedRegisters.add((IRRegister) value);
         usedRegValues.add(addr);
         usedRegValues.add(value);
@@ -49,6 +53,7 @@ public class IRStore extends IRInstruction {
     @Override
     public void setUsedRegisters(Map<IRRegister, IRRegister> renameMap) {
         if (addr instanceof IRRegister && !(addr instanceof StackSlot)) addr = renameMap.get(addr);
+        if (index != null) index = renameMap.get(index);
         if (value instanceof IRRegister) value = renameMap.get(value);
         reloadUsedRegistersRegValues();
     }
@@ -87,13 +92,15 @@ public class IRStore extends IRInstruction {
                     (StaticData) renameMap.getOrDefault(addr, addr)
             );
         } else {
-            return new IRStore(
+            IRStore store = new IRStore(
                     (BasicBlock) renameMap.getOrDefault(getParentBB(), getParentBB()),
                     (RegValue) renameMap.getOrDefault(value, value),
                     size,
                     (RegValue) renameMap.getOrDefault(addr, addr),
                     addrOffset
             );
+            if (index != null) store.setIndex((IRRegister) renameMap.getOrDefault(index, index), scale);
+            return store;
         }
     }
 
@@ -104,4 +111,18 @@ public class IRStore extends IRInstruction {
     public void setAddrOffset(int addrOffset) {
         this.addrOffset = addrOffset;
     }
+
+    public IRRegister getIndex() {
+        return index;
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    public void setIndex(IRRegister index, int scale) {
+        this.index = index;
+        this.scale = scale;
+        reloadUsedRegistersRegValues();
+    }
 }
\ No newline at end of file
@@ -15,10 +15,12 @@ public interface IRVisitor {
     void visit(IRMove node);
     void visit(IRLoad node);
     void visit(IRStore node);
+    void visit(IRLea node);
     void visit(IRFunctionCall node);
     void visit(IRHeapAlloc node);
     void visit(IRPush node);
     void visit(IRPop node);
+    void visit(IRPhi node);
 
     void visit(VirtualRegister node);
     void visit(PhysicalRegister node);
@@ -0,0 +1,241 @@
+package com.evensgn.emcompiler.ir;
+
+import java.util.*;
+
+// instructions of a function packed into int arrays in a given block order, so that passes walking them many
+// times, like liveliness analysis and register allocation, read contiguous memory instead of following the
+// linked lists; virtual registers are known by their ids in the function, which IRFunction.renumberVregs is to
+// have made dense first, instructions are numbered in block order, and the successors and predecessors of blocks
+// are kept the same way
+//
+// the linked lists of BasicBlock stay the IR, which passes not ported keep using: an arena is a snapshot built
+// again once they change, see IRFunction.getInstArena, and InstView.getInst gives the instruction behind a position
+public class InstructionArena {
+    public static final int OP_OTHER = 0, OP_MOVE = 1, OP_BINARY = 2, OP_CALL = 3, OP_HEAP_ALLOC = 4,
+            OP_JUMP = 5, OP_BRANCH = 6, OP_RETURN = 7;
+    private static final IRBinaryOperation.IRBinaryOp[] BINARY_OPS = IRBinaryOperation.IRBinaryOp.values();
+
+    private IRFunction func;
+    private BasicBlock[] bbs;
+    // index in the arena by block id, -1 for blocks left out
+    private int[] bbIdxById;
+    private int numVregs;
+    private IRInstruction[] insts;
+
+    // instructions of block b are at [bbStart[b], bbStart[b + 1])
+    private int[] bbStart;
+    private int[] opcode;
+    // index of the defined virtual register, or -1
+    private int[] def;
+    // used virtual registers of instruction i are at uses[useStart[i]] to uses[useStart[i + 1] - 1]
+    private int[] useStart, uses;
+    // the source register index of a move between virtual registers, or -1; the operator of a binary operation
+    private int[] aux;
+    private int[] succStart, succs, predStart, preds;
+
+    public InstructionArena(IRFunction func, List<BasicBlock> bbList) {
+        this.func = func;
+        int numBB = bbList.size(), numInsts = 0, numUses = 0;
+        bbs = bbList.toArray(new BasicBlock[0]);
+        bbIdxById = new int[func.getNumBBIds()];
+        Arrays.fill(bbIdxById, -1);
+        for (int b = 0; b < numBB; ++b) {
+            bbIdxById[bbs[b].getId()] = b;
+            for (IRInstruction inst = bbs[b].getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                ++numInsts;
+                numUses += inst.getUsedRegisters().size();
+            }
+        }
+
+        insts = new IRInstruction[numInsts];
+        bbStart = new int[numBB + 1];
+        opcode = new int[numInsts];
+        def = new int[numInsts];
+        aux = new int[numInsts];
+        useStart = new int[numInsts + 1];
+        int[] useBuf = new int[numUses];
+        int pos = 0, usePos = 0;
+        for (int b = 0; b < numBB; ++b) {
+            bbStart[b] = pos;
+            for (IRInstruction inst = bbs[b].getFirstInst(); inst != null; inst = inst.getNextInst()) {
+                insts[pos] = inst;
+                IRRegister definedReg = inst.getDefinedRegister();
+                def[pos] = definedReg instanceof VirtualRegister ? func.getVregId((VirtualRegister) definedReg) : -1;
+                useStart[pos] = usePos;
+                for (IRRegister usedReg : inst.getUsedRegisters()) {
+                    if (usedReg instanceof VirtualRegister) useBuf[usePos++] = func.getVregId((VirtualRegister) usedReg);
+                }
+                aux[pos] = -1;
+                if (inst instanceof IRMove) {
+                    opcode[pos] = OP_MOVE;
+                    RegValue rhs = ((IRMove) inst).getRhs();
+                    if (rhs instanceof VirtualRegister) aux[pos] = func.getVregId((VirtualRegister) rhs);
+                } else if (inst instanceof IRBinaryOperation) {
+                    opcode[pos] = OP_BINARY;
+                    aux[pos] = ((IRBinaryOperation) inst).getOp().ordinal();
+                } else if (inst instanceof IRFunctionCall) {
+                    opcode[pos] = OP_CALL;
+                } else if (inst instanceof IRHeapAlloc) {
+                    opcode[pos] = OP_HEAP_ALLOC;
+                } else if (inst instanceof IRJump) {
+                    opcode[pos] = OP_JUMP;
+                } else if (inst instanceof IRBranch) {
+                    opcode[pos] = OP_BRANCH;
+                } else if (inst instanceof IRReturn) {
+                    opcode[pos] = OP_RETURN;
+                } else {
+                    opcode[pos] = OP_OTHER;
+                }
+                ++pos;
+            }
+        }
+        bbStart[numBB] = pos;
+        useStart[numInsts] = usePos;
+        uses = Arrays.copyOf(useBuf, usePos);
+        numVregs = func.getNumVregIds();
+        buildEdges();
+    }
+
+    // successors are read from the jump instruction, blocks out of the arena are left out
+    private void buildEdges() {
+        int numBB = bbs.length;
+        int[][] succList = new int[numBB][];
+        int[] numPreds = new int[numBB];
+        int numEdges = 0;
+        for (int b = 0; b < numBB; ++b) {
+            IRInstruction lastInst = bbs[b].getLastInst();
+            BasicBlock[] targets;
+            if (lastInst instanceof IRJump) targets = new BasicBlock[]{((IRJump) lastInst).getTargetBB()};
+            else if (lastInst instanceof IRBranch) targets = new BasicBlock[]{((IRBranch) lastInst).getThenBB(), ((IRBranch) lastInst).getElseBB()};
+            else targets = new BasicBlock[0];
+            int[] succ = new int[targets.length];
+            int numSucc = 0;
+            for (BasicBlock target : targets) {
+                int idx = getBBIdx(target);
+                if (idx < 0) continue;
+                succ[numSucc++] = idx;
+                ++numPreds[idx];
+            }
+            succList[b] = Arrays.copyOf(succ, numSucc);
+            numEdges += numSucc;
+        }
+        succStart = new int[numBB + 1];
+        succs = new int[numEdges];
+        predStart = new int[numBB + 1];
+        preds = new int[numEdges];
+        for (int b = 0, pos = 0; b < numBB; ++b) {
+            succStart[b] = pos;
+            for (int succ : succList[b]) succs[pos++] = succ;
+            predStart[b + 1] = predStart[b] + numPreds[b];
+        }
+        succStart[numBB] = numEdges;
+        int[] predPos = Arrays.copyOf(predStart, numBB);
+        for (int b = 0; b < numBB; ++b) {
+            for (int succ : succList[b]) preds[predPos[succ]++] = b;
+        }
+    }
+
+    public int getNumBBs() {
+        return bbs.length;
+    }
+
+    public BasicBlock getBB(int b) {
+        return bbs[b];
+    }
+
+    // -1 if the block is not in the arena
+    public int getBBIdx(BasicBlock bb) {
+        if (bb.getFunc() != func || bb.getId() >= bbIdxById.length) return -1;
+        return bbIdxById[bb.getId()];
+    }
+
+    public int getBBStart(int b) {
+        return bbStart[b];
+    }
+
+    public int getBBEnd(int b) {
+        return bbStart[b + 1];
+    }
+
+    public int getNumInsts() {
+        return insts.length;
+    }
+
+    public int getNumVregs() {
+        return numVregs;
+    }
+
+    public VirtualRegister getVreg(int idx) {
+        return func.getVregById(idx);
+    }
+
+    // -1 if the register is not used in the arena
+    public int getVregIdx(IRRegister reg) {
+        if (!(reg instanceof VirtualRegister)) return -1;
+        int id = ((VirtualRegister) reg).getId();
+        return id >= 0 && id < numVregs && func.getVregById(id) == reg ? id : -1;
+    }
+
+    public int getNumSuccs(int b) {
+        return succStart[b + 1] - succStart[b];
+    }
+
+    public int getSucc(int b, int k) {
+        return succs[succStart[b] + k];
+    }
+
+    public int getNumPreds(int b) {
+        return predStart[b + 1] - predStart[b];
+    }
+
+    public int getPred(int b, int k) {
+        return preds[predStart[b] + k];
+    }
+
+    public InstView view() {
+        return new InstView();
+    }
+
+    // a flyweight looking at one position of the arena at a time, moved by at
+    public class InstView {
+        private int pos = -1;
+
+        public InstView at(int pos) {
+            this.pos = pos;
+            return this;
+        }
+
+        public int getPos() {
+            return pos;
+        }
+
+        public int getOpcode() {
+            return opcode[pos];
+        }
+
+        public int getDef() {
+            return def[pos];
+        }
+
+        public int getNumUses() {
+            return useStart[pos + 1] - useStart[pos];
+        }
+
+        public int getUse(int k) {
+            return uses[useStart[pos] + k];
+        }
+
+        // the source register index of a move between virtual registers, -1 for other moves
+        public int getMoveSrc() {
+            return opcode[pos] == OP_MOVE ? aux[pos] : -1;
+        }
+
+        public IRBinaryOperation.IRBinaryOp getBinaryOp() {
+            return opcode[pos] == OP_BINARY ? BINARY_OPS[aux[pos]] : null;
+        }
+
+        public IRInstruction getInst() {
+            return insts[pos];
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.evensgn.emcompiler.ir;
 public class VirtualRegister extends IRRegister {
     private String name;
     private PhysicalRegister forcedPhysicalRegister = null;
+    // dense index in the function using this register, given by IRFunction.getVregId
+    private int id = -1;
 
     public VirtualRegister(String name) {
         this.name = name;
@@ -12,6 +14,14 @@ public class VirtualRegister extends IRRegister {
         return name;
     }
 
+    public int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
     public void accept(IRVisitor visitor) {
         visitor.visit(this);
     }
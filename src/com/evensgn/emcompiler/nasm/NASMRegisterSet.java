@@ -3,6 +3,7 @@ package com.evensgn.emcompiler.nasm;
 import com.evensgn.emcompiler.ir.PhysicalRegister;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -11,6 +12,8 @@ public class NASMRegisterSet {
     public static final Collection<PhysicalRegister> allRegs, generalRegs, callerSaveRegs, calleeSaveRegs;
     public static final NASMRegister rax, rcx, rdx, rbx, rsi, rdi, rsp, rbp, r8, r9, r10, r11, r12, r13, r14, r15;
     public static final List<PhysicalRegister> arg6;
+    // registers a call into the C library may change by the calling convention
+    public static final List<PhysicalRegister> libcClobberedRegs;
 
     static {
         List<NASMRegister> all = new ArrayList<>();
@@ -44,6 +47,8 @@ public class NASMRegisterSet {
         arg6.add(r8);
         arg6.add(r9);
 
+        libcClobberedRegs = Collections.unmodifiableList(Arrays.asList(rax, rcx, rdx, rsi, rdi, r8, r9, r10, r11));
+
         all.add(rax);
         all.add(rcx);
         all.add(rdx);
@@ -1,9 +1,8 @@
 package com.evensgn.emcompiler.utils;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import com.evensgn.emcompiler.backend.ExecutionProfile;
+
+import java.io.*;
 import java.util.*;
 
 /**
@@ -20,8 +19,12 @@ public class LLIRInterpreter {
         String op1;
         String op2;
         int size;           // for `load` / `store`
-        int offset;         // for `load` / `store`
+        int offset;         // for `load` / `store` / `lea`
+        String index;       // for `load` / `store` / `lea`, null if not indexed
+        int scale;
         List<String> args;  // for `call` / `phi`
+        Map<Integer, Long> siteCounts;  // for `call` tagged with its call site
+        int siteIdx;
 
         int lineno;
         String text;
@@ -37,6 +40,8 @@ public class LLIRInterpreter {
             this.op2 = inst.op2;
             this.size = inst.size;
             this.offset = inst.offset;
+            this.index = inst.index;
+            this.scale = inst.scale;
             this.args = inst.args;
             this.lineno = inst.lineno;
             this.text = inst.text;
@@ -63,6 +68,7 @@ public class LLIRInterpreter {
     }
 
     private Map<String, Function> functions = new HashMap<>();
+    private Map<String, Map<Integer, Long>> siteCountMap = new HashMap<>();
     private BasicBlock curBB = null;
     private Function curFunc = null;
     private Instruction curInst = null;
@@ -77,7 +83,7 @@ public class LLIRInterpreter {
 
     // instructions that have destination
     static private final Set<String> opnames2 = new HashSet<>(Arrays.asList(
-            "load", "move", "alloc", "phi",
+            "load", "lea", "move", "alloc", "phi",
             "add", "sub", "mul", "div", "rem", "shl", "shr", "and", "or", "xor", "neg", "not",
             "slt", "sgt", "sle", "sge", "seq", "sne", "call"
     ));
@@ -146,12 +152,20 @@ public class LLIRInterpreter {
                 inst.op2 = words.get(3);
                 inst.size = Integer.valueOf(words.get(1));
                 inst.offset = Integer.valueOf(words.get(4));
+                readIndex(inst, words, 5);
                 return;
             case "load":
                 inst.dest = split[0].trim();
                 inst.op1 = words.get(2);
                 inst.size = Integer.valueOf(words.get(1));
                 inst.offset = Integer.valueOf(words.get(3));
+                readIndex(inst, words, 4);
+                return;
+            case "lea":
+                inst.dest = split[0].trim();
+                inst.op1 = words.get(1);
+                inst.offset = Integer.valueOf(words.get(2));
+                readIndex(inst, words, 3);
                 return;
             case "alloc":
                 inst.dest = split[0].trim();
@@ -160,7 +174,17 @@ public class LLIRInterpreter {
             case "call":
                 if (split.length == 2) inst.dest = split[0].trim();
                 inst.op1 = words.get(1);
-                inst.args = words.subList(2, words.size());
+                int siteTag = words.indexOf("#");
+                if (siteTag < 0) {
+                    inst.args = words.subList(2, words.size());
+                } else {
+                    // `# <function> <site index>` after the arguments, see ExecutionProfile
+                    if (siteTag + 3 != words.size()) throw new SemanticError("expected a call site after `#`");
+                    inst.args = words.subList(2, siteTag);
+                    inst.siteCounts = siteCountMap.computeIfAbsent(words.get(siteTag + 1), k -> new HashMap<>());
+                    inst.siteIdx = Integer.valueOf(words.get(siteTag + 2));
+                    inst.siteCounts.putIfAbsent(inst.siteIdx, 0L);
+                }
                 return;
             case "br":
                 inst.dest = words.get(1);
@@ -189,6 +213,14 @@ public class LLIRInterpreter {
         }
     }
 
+    // optional `index scale` after the offset of an address
+    private void readIndex(Instruction inst, List<String> words, int pos) throws SemanticError {
+        if (words.size() == pos) return;
+        if (words.size() != pos + 2) throw new SemanticError("expected an index and a scale after the offset");
+        inst.index = words.get(pos);
+        inst.scale = Integer.valueOf(words.get(pos + 1));
+    }
+
     private void readFunction() throws IOException, SemanticError {
         List<String> words = splitBySpaces(line);
         if (!words.get(words.size()-1).equals("{")) throw new SemanticError("expected a `{`");
@@ -273,6 +305,12 @@ public class LLIRInterpreter {
         return Integer.valueOf(name);
     }
 
+    private int readAddr() throws RuntimeError {
+        int addr = readSrc(curInst.op1) + curInst.offset;
+        if (curInst.index != null) addr += readSrc(curInst.index) * curInst.scale;
+        return addr;
+    }
+
     private void jump(String name) throws RuntimeError {
         BasicBlock BB = curFunc.blocks.get(name);
         if (BB == null)
@@ -285,14 +323,14 @@ public class LLIRInterpreter {
         if (++cntInst >= instLimit) throw new RuntimeError("instruction limit exceeded");
         switch (curInst.operator) {
             case "load":
-                int addr = readSrc(curInst.op1) + curInst.offset;
+                int addr = readAddr();
                 int res = 0;
                 for (int i = 0; i < curInst.size; ++i) res = (res << 8) | memoryRead(addr+i);
                 registerWrite(curInst.dest, res);
                 return;
 
             case "store":
-                int address = readSrc(curInst.op1) + curInst.offset;
+                int address = readAddr();
                 int data = readSrc(curInst.op2);
                 for (int i = curInst.size-1; i >= 0; --i) {
                     memoryWrite(address+i, (byte)(data & 0xFF));
@@ -300,6 +338,10 @@ public class LLIRInterpreter {
                 }
                 return;
 
+            case "lea":
+                registerWrite(curInst.dest, readAddr());
+                return;
+
             case "alloc":
                 int size = readSrc(curInst.op1);
                 registerWrite(curInst.dest, heapTop);
@@ -327,6 +369,7 @@ public class LLIRInterpreter {
                 if (curInst.dest != null && !func.hasReturnValue) throw new RuntimeError("function `" + func.name + "` has not return value");
                 Map<String, Register> regs = new HashMap<>();
                 if (curInst.args.size() != func.args.size()) throw new RuntimeError("argument size cannot match");
+                if (curInst.siteCounts != null) curInst.siteCounts.merge(curInst.siteIdx, 1L, Long::sum);
                 for (int i = 0; i < curInst.args.size(); ++i) {
                     String name = func.args.get(i);
                     Register reg = regs.get(name);
@@ -493,8 +536,19 @@ public class LLIRInterpreter {
         return isReady;
     }
 
+    // counts of the calls run, in the format of ExecutionProfile
+    public void writeCallSiteProfile(PrintStream out) {
+        ExecutionProfile.write(out, ExecutionProfile.CALL, siteCountMap);
+    }
+
+    // usage: LLIRInterpreter [+ssa] [-profile <file>] < ir
     public static void main(String[] args) throws IOException {
-        boolean ssa = args.length > 0 && args[0].trim().equals("+ssa");
+        boolean ssa = false;
+        String profileFile = null;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].trim().equals("+ssa")) ssa = true;
+            else if (args[i].trim().equals("-profile") && i + 1 < args.length) profileFile = args[++i];
+        }
         LLIRInterpreter vm = new LLIRInterpreter(System.in, ssa);
         if (ssa)
             System.out.println("running with SSA mode");
@@ -504,6 +558,11 @@ public class LLIRInterpreter {
         vm.run();
         System.out.println("exitcode:  " + vm.getExitcode());
         System.out.println("exception: " + vm.exitException());
+        if (profileFile != null) {
+            try (PrintStream profileOut = new PrintStream(new FileOutputStream(profileFile))) {
+                vm.writeCallSiteProfile(profileOut);
+            }
+        }
     }
 
     public int getExitcode() {
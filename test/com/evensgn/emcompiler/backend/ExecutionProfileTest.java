@@ -0,0 +1,78 @@
+package com.evensgn.emcompiler.backend;
+
+import static org.junit.Assert.*;
+
+import com.evensgn.emcompiler.ir.BasicBlock;
+import com.evensgn.emcompiler.ir.IRFunctionCall;
+import com.evensgn.emcompiler.utils.CompilerError;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+public class ExecutionProfileTest {
+    private ExecutionProfile read(String text) throws IOException {
+        return new ExecutionProfile(new ByteArrayInputStream(text.getBytes()));
+    }
+
+    private BasicBlock block(String funcName, int idx) {
+        BasicBlock bb = new BasicBlock(null, "bb");
+        bb.setSite(funcName, idx);
+        return bb;
+    }
+
+    private IRFunctionCall call(String funcName, int idx) {
+        IRFunctionCall funcCall = new IRFunctionCall(null, null, new ArrayList<>(), null);
+        funcCall.setSite(funcName, idx);
+        return funcCall;
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        ExecutionProfile profile = read("# written by an instrumented build\n" +
+                "\n" +
+                "block main 0 1\n" +
+                "  block   main 2 100  \n" +
+                "\t\n" +
+                "call main 0 100\n" +
+                "call f 3 0\n");
+        assertEquals(1, profile.getCount(block("main", 0)));
+        assertEquals(100, profile.getCount(block("main", 2)));
+        assertEquals(100, profile.getCount(call("main", 0)));
+        assertEquals(0, profile.getCount(call("f", 3)));
+        // kinds, functions and indices not listed are unknown
+        assertEquals(-1, profile.getCount(call("main", 2)));
+        assertEquals(-1, profile.getCount(block("main", 1)));
+        assertEquals(-1, profile.getCount(block("f", 3)));
+        assertEquals(-1, profile.getCount(block("g", 0)));
+        assertEquals(-1, profile.getCount(new BasicBlock(null, "bb")));
+    }
+
+    @Test
+    public void testDuplicateLinesSummed() throws Exception {
+        ExecutionProfile profile = read("call main 1 5\nblock main 1 7\ncall main 1 6\ncall main 1 0\n");
+        assertEquals(11, profile.getCount(call("main", 1)));
+        assertEquals(7, profile.getCount(block("main", 1)));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        ExecutionProfile profile = read("");
+        assertEquals(-1, profile.getCount(call("main", 0)));
+    }
+
+    @Test
+    public void testMalformedLines() throws Exception {
+        String[] badLines = {"main 0 1", "call main 0", "call main 0 1 2", "loop main 0 1", "call main x 1",
+                "call main 0 1.5", "block main 0 99999999999999999999"};
+        for (String badLine : badLines) {
+            try {
+                read("call main 0 1\n" + badLine + "\n");
+                fail("accepted: " + badLine);
+            } catch (CompilerError e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("line 2"));
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.evensgn.emcompiler.backend;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.Before;
+
+import java.util.*;
+
+public class InterferenceGraphTest {
+    private InterferenceGraph graph;
+
+    @Before
+    public void before() throws Exception {
+        graph = new InterferenceGraph();
+    }
+
+    private Set<Integer> adjSet(int u) {
+        Set<Integer> adj = new HashSet<>();
+        for (int k = 0; k < graph.getNumAdj(u); ++k) assertTrue(adj.add(graph.getAdj(u, k)));
+        return adj;
+    }
+
+    @Test
+    public void testAddEdge() {
+        graph.reset(5);
+        assertEquals(5, graph.getNumNodes());
+        assertTrue(graph.addEdge(0, 3));
+        assertTrue(graph.addEdge(4, 1));
+        assertTrue(graph.isAdjacent(0, 3));
+        assertTrue(graph.isAdjacent(3, 0));
+        assertTrue(graph.isAdjacent(1, 4));
+        assertTrue(graph.isAdjacent(4, 1));
+        assertFalse(graph.isAdjacent(0, 1));
+        assertEquals(Collections.singleton(3), adjSet(0));
+        assertEquals(Collections.singleton(0), adjSet(3));
+        assertEquals(Collections.singleton(4), adjSet(1));
+        assertEquals(Collections.singleton(1), adjSet(4));
+        assertEquals(0, graph.getNumAdj(2));
+    }
+
+    @Test
+    public void testDuplicateEdges() {
+        graph.reset(3);
+        assertTrue(graph.addEdge(1, 2));
+        assertFalse(graph.addEdge(1, 2));
+        assertFalse(graph.addEdge(2, 1));
+        assertEquals(1, graph.getNumAdj(1));
+        assertEquals(1, graph.getNumAdj(2));
+        // a node never interferes with itself
+        assertFalse(graph.addEdge(0, 0));
+        assertFalse(graph.isAdjacent(0, 0));
+        assertEquals(0, graph.getNumAdj(0));
+    }
+
+    @Test
+    public void testAgainstEdgeSet() {
+        int n = 200;
+        graph.reset(n);
+        Random random = new Random(20);
+        List<Set<Integer>> expected = new ArrayList<>();
+        for (int i = 0; i < n; ++i) expected.add(new HashSet<>());
+        for (int e = 0; e < 5000; ++e) {
+            int u = random.nextInt(n), v = random.nextInt(n);
+            boolean isNew = u != v && !expected.get(u).contains(v);
+            assertEquals(isNew, graph.addEdge(u, v));
+            if (isNew) {
+                expected.get(u).add(v);
+                expected.get(v).add(u);
+            }
+        }
+        for (int u = 0; u < n; ++u) {
+            assertEquals(expected.get(u), adjSet(u));
+            for (int v = 0; v < n; ++v) assertEquals(expected.get(u).contains(v), graph.isAdjacent(u, v));
+        }
+    }
+
+    @Test
+    public void testResetToSmallerGraph() {
+        int n = 300;
+        graph.reset(n);
+        for (int u = 0; u < n; ++u) {
+            for (int v = u + 1; v < n; v += 3) graph.addEdge(u, v);
+        }
+        graph.reset(40);
+        assertEquals(40, graph.getNumNodes());
+        for (int u = 0; u < 40; ++u) {
+            assertEquals(0, graph.getNumAdj(u));
+            for (int v = 0; v < 40; ++v) assertFalse(graph.isAdjacent(u, v));
+        }
+        assertTrue(graph.addEdge(39, 5));
+        assertTrue(graph.isAdjacent(5, 39));
+        assertEquals(Collections.singleton(5), adjSet(39));
+        assertEquals(Collections.singleton(39), adjSet(5));
+
+        // and growing again after the smaller graph
+        graph.reset(n + 10);
+        for (int u = 0; u < n + 10; ++u) {
+            assertEquals(0, graph.getNumAdj(u));
+            for (int v = 0; v < n + 10; ++v) assertFalse(graph.isAdjacent(u, v));
+        }
+        assertTrue(graph.addEdge(0, n + 9));
+        assertEquals(Collections.singleton(n + 9), adjSet(0));
+    }
+}
@@ -0,0 +1,177 @@
+package com.evensgn.emcompiler.backend;
+
+import static org.junit.Assert.*;
+
+import com.evensgn.emcompiler.ir.IRBinaryOperation;
+import com.evensgn.emcompiler.ir.IntImmediate;
+import com.evensgn.emcompiler.ir.PhysicalRegister;
+import org.junit.Test;
+import org.junit.Before;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.*;
+
+import static com.evensgn.emcompiler.ir.IRBinaryOperation.IRBinaryOp.*;
+import static com.evensgn.emcompiler.nasm.NASMRegisterSet.*;
+
+// division and modulo by constants: the printed instructions are run on a few registers and compared with
+// Java long division
+public class NASMPrinterTest {
+    private static final long RDX_VALUE = 0x1234567890L;
+
+    private List<Long> divisors;
+
+    @Before
+    public void before() throws Exception {
+        divisors = new ArrayList<>(Arrays.asList(1L, -1L, 3L, -3L, 7L, -7L, 10L, 641L, (long) Integer.MIN_VALUE, (long) Integer.MAX_VALUE));
+        for (int k = 1; k <= 30; ++k) {
+            divisors.add(1L << k);
+            divisors.add(-(1L << k));
+        }
+    }
+
+    private List<Long> dividends(long d) {
+        List<Long> dividends = new ArrayList<>(Arrays.asList(0L, 1L, -1L, 2L, -2L,
+                (long) Integer.MAX_VALUE, (long) Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1));
+        for (long k = -3; k <= 3; ++k) {
+            dividends.add(d * k - 1);
+            dividends.add(d * k);
+            dividends.add(d * k + 1);
+        }
+        Random random = new Random(d);
+        for (int i = 0; i < 16; ++i) {
+            dividends.add((long) random.nextInt());
+            dividends.add(random.nextLong());
+        }
+        // the only overflowing quotient traps in idiv as well
+        if (d == -1) dividends.remove(Long.MIN_VALUE);
+        return dividends;
+    }
+
+    private static long mulHigh(long x, long y) {
+        return BigInteger.valueOf(x).multiply(BigInteger.valueOf(y)).shiftRight(64).longValue();
+    }
+
+    @Test
+    public void testDivMagic() {
+        for (long d : divisors) {
+            if (Math.abs(d) <= 1) continue;
+            long[] magic = NASMPrinter.getDivMagic(d);
+            long m = magic[0], s = magic[1];
+            assertTrue(s >= 0 && s < 64);
+            for (long n : dividends(d)) {
+                long q = mulHigh(m, n);
+                if (d > 0 && m < 0) q += n;
+                if (d < 0 && m > 0) q -= n;
+                q >>= s;
+                q += q >>> 63;
+                assertEquals(String.format("%d / %d", n, d), n / d, q);
+                assertEquals(String.format("%d %% %d", n, d), n % d, n - q * d);
+            }
+        }
+    }
+
+    @Test
+    public void testKnownMagic() {
+        assertArrayEquals(new long[]{0x5555555555555556L, 0}, NASMPrinter.getDivMagic(3));
+        assertArrayEquals(new long[]{0x4924924924924925L, 1}, NASMPrinter.getDivMagic(7));
+        assertArrayEquals(new long[]{0x6666666666666667L, 2}, NASMPrinter.getDivMagic(10));
+    }
+
+    @Test
+    public void testDivByConst() {
+        checkPrinted(DIV);
+    }
+
+    @Test
+    public void testModByConst() {
+        checkPrinted(MOD);
+    }
+
+    @Test
+    public void testFoldedConstants() {
+        assertEquals(-7 / 2, runPrinted(DIV, rcx, new IntImmediate(-7), 2, new HashMap<>()));
+        assertEquals(-7 % 2, runPrinted(MOD, rcx, new IntImmediate(-7), 2, new HashMap<>()));
+        assertEquals(7, runPrinted(DIV, rcx, new IntImmediate(-7), -1, new HashMap<>()));
+    }
+
+    // the dividend, the result or both are put in rdx as well, since the printed code changes and restores rdx
+    private void checkPrinted(IRBinaryOperation.IRBinaryOp op) {
+        PhysicalRegister[][] destLhsPairs = {{rcx, rsi}, {rsi, rsi}, {rdx, rsi}, {rcx, rdx}, {rdx, rdx}};
+        for (long d : divisors) {
+            for (PhysicalRegister[] destLhs : destLhsPairs) {
+                for (long n : dividends(d)) {
+                    Map<String, Long> regs = new HashMap<>();
+                    regs.put("rdx", RDX_VALUE);
+                    regs.put(destLhs[1].getName(), n);
+                    long rdxBefore = regs.get("rdx");
+                    long result = runPrinted(op, destLhs[0], destLhs[1], d, regs);
+                    String expr = String.format("%d %s %d into %s from %s", n, op, d, destLhs[0].getName(), destLhs[1].getName());
+                    assertEquals(expr, op == DIV ? n / d : n % d, result);
+                    if (destLhs[0] != rdx) assertEquals(expr + " keeps rdx", rdxBefore, (long) regs.get("rdx"));
+                }
+            }
+        }
+    }
+
+    private long runPrinted(IRBinaryOperation.IRBinaryOp op, PhysicalRegister dest, Object lhs, long d, Map<String, Long> regs) {
+        IRBinaryOperation inst = new IRBinaryOperation(null, dest, op,
+                lhs instanceof PhysicalRegister ? (PhysicalRegister) lhs : (IntImmediate) lhs, new IntImmediate((int) d));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new NASMPrinter(new PrintStream(bytes)).visit(inst);
+        for (String line : bytes.toString().split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty()) run(line, regs);
+        }
+        return regs.get(dest.getName());
+    }
+
+    // the instructions printed for division by constants
+    private void run(String line, Map<String, Long> regs) {
+        String[] words = line.split("\\s+", 2);
+        String[] args = words[1].split(",\\s*");
+        long a = value(args[0], regs), b = args.length > 1 ? value(args[1], regs) : 0;
+        switch (words[0]) {
+            case "mov":
+                regs.put(args[0], b);
+                break;
+            case "imul":
+                if (args.length == 3) {
+                    regs.put(args[0], b * value(args[2], regs));
+                } else {
+                    long rax = regs.get("rax");
+                    regs.put("rdx", mulHigh(rax, a));
+                    regs.put("rax", rax * a);
+                }
+                break;
+            case "add":
+                regs.put(args[0], a + b);
+                break;
+            case "sub":
+                regs.put(args[0], a - b);
+                break;
+            case "and":
+                regs.put(args[0], a & b);
+                break;
+            case "sar":
+                regs.put(args[0], a >> b);
+                break;
+            case "shr":
+                regs.put(args[0], a >>> b);
+                break;
+            case "neg":
+                regs.put(args[0], -a);
+                break;
+            default:
+                fail("unexpected instruction: " + line);
+        }
+    }
+
+    private long value(String operand, Map<String, Long> regs) {
+        if (Character.isDigit(operand.charAt(0)) || operand.charAt(0) == '-') return Long.parseLong(operand);
+        Long value = regs.get(operand);
+        return value == null ? 0x5a5a5a5a5a5aL : value;
+    }
+}
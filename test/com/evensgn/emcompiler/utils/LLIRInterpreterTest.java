@@ -0,0 +1,96 @@
+package com.evensgn.emcompiler.utils;
+
+import static org.junit.Assert.*;
+
+import com.evensgn.emcompiler.compiler.Compiler;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+public class LLIRInterpreterTest {
+    private LLIRInterpreter run(String ir) throws Exception {
+        LLIRInterpreter vm = new LLIRInterpreter(new ByteArrayInputStream(ir.getBytes()), false);
+        vm.setInstructionLimit(1 << 20);
+        vm.run();
+        assertFalse(vm.exitException());
+        return vm;
+    }
+
+    @Test
+    public void testIndexedLoadStore() throws Exception {
+        LLIRInterpreter vm = run("func main {\n" +
+                "%main_entry:\n" +
+                "    $a = alloc 80\n" +
+                "    $i = move 3\n" +
+                "    store 8 $a 7 16 $i 8\n" +
+                "    store 8 $a 5 0\n" +
+                "    $p = add $a 16\n" +
+                "    $x = load 8 $p 24\n" +
+                "    $y = load 8 $a 40 $i 0\n" +
+                "    $z = load 8 $a -6 $i 2\n" +
+                "    $x = mul $x 100\n" +
+                "    $x = add $x $z\n" +
+                "    $x = sub $x $y\n" +
+                "    ret $x\n" +
+                "}\n");
+        // 7 is stored at a + 40, 5 at a
+        assertEquals(7 * 100 + 5 - 7, vm.getExitcode());
+    }
+
+    @Test
+    public void testLea() throws Exception {
+        LLIRInterpreter vm = run("func main {\n" +
+                "%main_entry:\n" +
+                "    $b = move 1000\n" +
+                "    $i = move 6\n" +
+                "    $x = lea $b 8\n" +
+                "    $y = lea $b -4 $i 4\n" +
+                "    $z = lea 0 2 $i 8\n" +
+                "    $x = add $x $y\n" +
+                "    $x = add $x $z\n" +
+                "    ret $x\n" +
+                "}\n");
+        assertEquals(1008 + 1020 + 50, vm.getExitcode());
+    }
+
+    @Test
+    public void testMalformedIndex() throws Exception {
+        String[] badLines = {"$x = load 8 $a 0 $i", "store 8 $a 1 0 $i", "$x = lea $a 0 $i 8 8"};
+        for (String badLine : badLines) {
+            String ir = "func main {\n%main_entry:\n    $a = alloc 8\n    $i = move 0\n    " + badLine + "\n    ret 0\n}\n";
+            LLIRInterpreter vm = new LLIRInterpreter(new ByteArrayInputStream(ir.getBytes()), false);
+            assertTrue("accepted: " + badLine, vm.exitException());
+        }
+    }
+
+    // the IR printed by the compiler after instruction selection, with indexed addresses and lea
+    @Test
+    public void testPrintedIR() throws Exception {
+        String program = "int main() {\n" +
+                "    int[] a = new int[10];\n" +
+                "    int[] b = new int[10];\n" +
+                "    int i;\n" +
+                "    for (i = 0; i < 10; ++i) {\n" +
+                "        a[i] = i * 3;\n" +
+                "        b[i] = 9 - i;\n" +
+                "    }\n" +
+                "    int s = 0;\n" +
+                "    for (i = 0; i < 10; ++i) s = s + a[b[i]] * 5 + i;\n" +
+                "    return s;\n" +
+                "}\n";
+        ByteArrayOutputStream irOut = new ByteArrayOutputStream();
+        Compiler compiler = new Compiler(new ByteArrayInputStream(program.getBytes()), null, new PrintStream(irOut), null);
+        compiler.buildAST();
+        compiler.checkSemantics();
+        compiler.buildIR();
+        compiler.prepareIR();
+        String ir = irOut.toString();
+        assertTrue(ir, ir.matches("(?s).*= lea .*"));
+        assertTrue(ir, ir.matches("(?s).*= load \\d+ \\S+ -?\\d+ \\$\\S+ \\d+\n.*"));
+        int expected = 0;
+        for (int i = 0; i < 10; ++i) expected += (9 - i) * 3 * 5 + i;
+        assertEquals(expected, run(ir).getExitcode());
+    }
+}